@@ -0,0 +1,101 @@
+package com.trifonov.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.trifonov.compression.CompressionProgress;
+import com.trifonov.compression.CompressionSettings;
+import com.trifonov.compression.Compressor;
+
+/**
+ * Полный цикл {@link Compressor#compress(Path, Path)} против {@link FakeTinifyServer} с заданной задержкой ответа.
+ * Индекс, журнал, учет ключей и файл метрик отключены, результат записывается в отдельную директорию, поэтому каждая операция
+ * сжимает одни и те же файлы. Одна операция - один файл.
+ * @author Alexandr Trifonov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class CompressBenchmark {
+	private final static int FILES = 500;
+
+	@Param({"0", "20"})
+	private int latencyMillis;
+	@Param({"10"})
+	private int workers;
+	@Param({"16384"})
+	private int fileSize;
+
+	private FakeTinifyServer server;
+	private Path source;
+	private Path output;
+	private Path keys;
+	private CompressionSettings settings;
+
+	@Setup
+	public void setUp() throws IOException {
+		server = new FakeTinifyServer(latencyMillis);
+		source = Files.createTempDirectory("bench-source");
+		output = Files.createTempDirectory("bench-output");
+		byte[] content = new byte[fileSize];
+		System.arraycopy(SyntheticTree.PNG_HEADER, 0, content, 0, SyntheticTree.PNG_HEADER.length);
+		for (int i = 0; i < FILES; i++) {
+			content[SyntheticTree.PNG_HEADER.length] = (byte) i;
+			content[SyntheticTree.PNG_HEADER.length + 1] = (byte) (i >> 8);
+			Files.write(source.resolve("f" + i + ".png"), content);
+		}
+		keys = Files.createTempFile("bench-keys", ".txt");
+		Files.write(keys, Collections.singletonList("benchmark-key"));
+
+		settings = new CompressionSettings();
+		settings.setEndpoint(server.getEndpoint());
+		settings.setWorkerCount(workers);
+		settings.setKeyLimit(Integer.MAX_VALUE);
+		settings.setProgressIntervalSeconds(3600);
+		settings.setIndexFile("");
+		settings.setJournalFile("");
+		settings.setKeyLedgerFile("");
+		settings.setMetricsFile("");
+		settings.setMetricsLog(false);
+		settings.setDeduplicate(false);
+		settings.setOutputDir(output.toString());
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public CompressionProgress compress() {
+		Compressor compressor = new Compressor(settings);
+		compressor.compress(source, keys);
+		CompressionProgress progress = compressor.getProgress();
+		if (progress.getFilesCompressed() != FILES) {
+			throw new IllegalStateException("Unexpected progress: " + progress);
+		}
+		return progress;
+	}
+}
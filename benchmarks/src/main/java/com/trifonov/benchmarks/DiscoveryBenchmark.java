@@ -0,0 +1,74 @@
+package com.trifonov.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.trifonov.compression.FileInfo;
+import com.trifonov.compression.ImageFileVisitor;
+import com.trifonov.compression.ParallelImageWalker;
+
+/**
+ * Обход синтетического дерева последовательным {@link ImageFileVisitor} и параллельным {@link ParallelImageWalker}.
+ * Одна операция - полный обход дерева.
+ * @author Alexandr Trifonov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class DiscoveryBenchmark {
+	@Param({"10000", "1000000"})
+	private int files;
+	@Param({"true", "false"})
+	private boolean checkHeader;
+
+	private Path root;
+
+	@Setup
+	public void setUp() throws IOException {
+		root = SyntheticTree.get(files);
+	}
+
+	@Benchmark
+	public void walkSequential(Blackhole blackhole) throws IOException {
+		List<FileInfo> failed = new ArrayList<>();
+		ImageFileVisitor visitor = new ImageFileVisitor(file -> {
+			blackhole.consume(file);
+			return true;
+		}, failed);
+		visitor.setCheckHeader(checkHeader);
+		Files.walkFileTree(root, visitor);
+		blackhole.consume(failed);
+	}
+
+	@Benchmark
+	public void walkParallel(Blackhole blackhole) {
+		List<FileInfo> failed = Collections.synchronizedList(new ArrayList<>());
+		new ParallelImageWalker(file -> {
+			blackhole.consume(file);
+			return true;
+		}, failed, checkHeader, null).walk(root, Runtime.getRuntime().availableProcessors());
+		blackhole.consume(failed);
+	}
+}
@@ -0,0 +1,105 @@
+package com.trifonov.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP-сервер в том же процессе, который отвечает как TinyPNG API: POST /shrink возвращает адрес результата,
+ * GET по этому адресу возвращает первую половину загруженного файла. Каждый ответ задерживается на заданное время.
+ * @author Alexandr Trifonov
+ *
+ */
+public class FakeTinifyServer implements Closeable {
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "fake-tinify");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Map<String, byte[]> outputs = new ConcurrentHashMap<>();
+	private final AtomicInteger ids = new AtomicInteger();
+	private final AtomicInteger count = new AtomicInteger();
+	private final int latencyMillis;
+
+	public FakeTinifyServer(int latencyMillis) throws IOException {
+		this.latencyMillis = latencyMillis;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * @return адрес сервера для настройки tinify.endpoint
+	 */
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+			byte[] body = readAll(exchange.getRequestBody());
+			String path = exchange.getRequestURI().getPath();
+			if (path.equals("/shrink")) {
+				String id = Integer.toString(ids.incrementAndGet());
+				outputs.put(id, Arrays.copyOf(body, Math.max(1, body.length / 2)));
+				exchange.getResponseHeaders().set("Location", "/output/" + id);
+				send(exchange, 201, "{}".getBytes(StandardCharsets.UTF_8), count.incrementAndGet());
+			} else if (path.startsWith("/output/")) {
+				byte[] output = outputs.remove(path.substring("/output/".length()));
+				if (output == null) {
+					send(exchange, 404, "{\"error\":\"NotFound\",\"message\":\"Unknown output\"}".getBytes(StandardCharsets.UTF_8), count.get());
+				} else {
+					send(exchange, 200, output, count.get());
+				}
+			} else {
+				send(exchange, 404, "{\"error\":\"NotFound\",\"message\":\"Unknown path\"}".getBytes(StandardCharsets.UTF_8), count.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body, int compressionCount) throws IOException {
+		exchange.getResponseHeaders().set("Compression-Count", Integer.toString(compressionCount));
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
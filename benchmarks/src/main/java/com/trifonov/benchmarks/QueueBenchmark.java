@@ -0,0 +1,123 @@
+package com.trifonov.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.trifonov.compression.FileCatalog;
+import com.trifonov.compression.FileInfo;
+import com.trifonov.compression.FileQueue;
+import com.trifonov.compression.PriorityWindowQueue;
+import com.trifonov.compression.SizeLaneQueue;
+
+/**
+ * Сортировка файлов по размеру, заполнение каталога {@link FileCatalog} и передача номеров файлов из потока обхода
+ * рабочим потокам через очереди {@link FileQueue}. Одна операция - один файл.
+ * @author Alexandr Trifonov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class QueueBenchmark {
+	private final static int FILES = 100_000;
+	private final static int WORKERS = 10;
+
+	private final List<FileInfo> files = new ArrayList<>(FILES);
+	private final FileCatalog catalog = new FileCatalog();
+	private ExecutorService executor;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		for (int i = 0; i < FILES; i++) {
+			// Размеры распределены примерно логнормально, как у изображений в типичной директории.
+			long size = (long) Math.exp(8 + random.nextGaussian() * 2);
+			files.add(new FileInfo("/images/f" + i + ".png", size));
+			catalog.add("/images/f" + i + ".png", size);
+		}
+		executor = Executors.newFixedThreadPool(WORKERS + 1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public List<FileInfo> sort() {
+		List<FileInfo> sorted = new ArrayList<>(files);
+		sorted.sort(Comparator.comparingLong(FileInfo::getSize).reversed());
+		return sorted;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public FileCatalog catalog() {
+		FileCatalog filled = new FileCatalog();
+		for (FileInfo file : files) {
+			filled.add(file.getName(), file.getSize());
+		}
+		return filled;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public void handoff(QueueParams params, Blackhole blackhole) throws Exception {
+		FileQueue fileQueue = params.queue.equals("lanes") ? new SizeLaneQueue(catalog, params.capacity, 1024 * 1024)
+				: new PriorityWindowQueue(catalog, params.capacity);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int i = 0; i < WORKERS; i++) {
+			workers.add(executor.submit(() -> {
+				int file;
+				while ((file = fileQueue.take()) != FileCatalog.NONE) {
+					fileQueue.completed(file, catalog.getSize(file));
+					blackhole.consume(file);
+				}
+				return null;
+			}));
+		}
+		for (int file = 0; file < FILES; file++) {
+			fileQueue.put(file);
+		}
+		fileQueue.close();
+		for (Future<?> worker : workers) {
+			worker.get();
+		}
+	}
+
+	/**
+	 * Параметры очереди, которые не относятся к сортировке.
+	 */
+	@State(Scope.Benchmark)
+	public static class QueueParams {
+		@Param({"window", "lanes"})
+		private String queue;
+		@Param({"1000", "2147483647"})
+		private int capacity;
+	}
+}
@@ -0,0 +1,59 @@
+package com.trifonov.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.trifonov.compression.FileInfo;
+import com.trifonov.compression.FileReportCreator;
+
+/**
+ * Запись текстового и json-отчета со списком файлов через {@link FileReportCreator}. Отчеты записываются в report-tinypng
+ * текущей директории. Одна операция - одна запись отчета.
+ * @author Alexandr Trifonov
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class ReportBenchmark {
+	private final static int FILES = 1_000_000;
+
+	private final List<FileInfo> files = new ArrayList<>(FILES);
+	private FileReportCreator creator;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < FILES; i++) {
+			files.add(new FileInfo(String.format("/images/d%04d/f%07d.png", i / 1000, i), 1000 + i));
+		}
+		creator = new FileReportCreator();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public void lines() {
+		creator.createReportFileInfos(files, "bench-files.txt");
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FILES)
+	public void json() {
+		creator.createFileInfoJson(files, "bench-files.json");
+	}
+}
@@ -0,0 +1,49 @@
+package com.trifonov.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Синтетическое дерево файлов для бенчмарков обхода. Файлы PNG с корректной сигнатурой распределены по директориям
+ * по 1000 файлов. Дерево создается один раз во временной директории и переиспользуется следующими запусками.
+ * @author Alexandr Trifonov
+ *
+ */
+public class SyntheticTree {
+	private final static int FILES_PER_DIR = 1000;
+	private final static String COMPLETE = ".complete";
+	static final byte[] PNG_HEADER = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13};
+
+	private SyntheticTree() {
+	}
+
+	/**
+	 * Метод для получения дерева с заданным количеством файлов.
+	 * @param files количество файлов
+	 * @return корневая директория дерева
+	 * @throws IOException если не удалось создать дерево
+	 */
+	public static Path get(int files) throws IOException {
+		Path root = Paths.get(System.getProperty("java.io.tmpdir"), "file-compression-bench", "tree-" + files);
+		if (Files.exists(root.resolve(COMPLETE))) {
+			return root;
+		}
+		byte[] content = new byte[256];
+		System.arraycopy(PNG_HEADER, 0, content, 0, PNG_HEADER.length);
+		for (int i = 0; i < files; i++) {
+			Path dir = root.resolve(String.format("d%04d", i / FILES_PER_DIR));
+			if (i % FILES_PER_DIR == 0) {
+				Files.createDirectories(dir);
+			}
+			Path file = dir.resolve(String.format("f%07d.png", i));
+			if (!Files.exists(file)) {
+				content[PNG_HEADER.length] = (byte) i;
+				Files.write(file, content);
+			}
+		}
+		Files.createFile(root.resolve(COMPLETE));
+		return root;
+	}
+}
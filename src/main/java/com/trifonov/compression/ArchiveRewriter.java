@@ -0,0 +1,503 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lombok.Value;
+
+/**
+ * Класс для сжатия изображений внутри ZIP и JAR архивов за один проход. Записи читаются из архива по порядку, изображения
+ * сжимаются одновременно, а новый архив записывается во временный файл стадии записи в исходном порядке записей и затем
+ * атомарно заменяет архив. Записи, которые не являются изображениями, копируются в сжатом виде без распаковки и повторного сжатия.
+ * Сжатые изображения записываются без сжатия архиватором, так как изображения им почти не сжимаются.
+ * <p>
+ * Распакованные записи на диск не записываются. В памяти одновременно находится не больше окна изображений, изображения
+ * больше ограничения копируются без изменений. Архивы формата ZIP64 и многотомные архивы не поддерживаются.
+ * Подписанные JAR архивы не меняются: подпись содержит хеши записей, и архив со сжатыми изображениями не прошел бы проверку.
+ * @author Alexandr Trifonov
+ *
+ */
+public class ArchiveRewriter {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final static int LOCAL_SIGNATURE = 0x04034b50;
+	private final static int CENTRAL_SIGNATURE = 0x02014b50;
+	private final static int END_SIGNATURE = 0x06054b50;
+	private final static int LOCAL_HEADER_SIZE = 30;
+	private final static int CENTRAL_HEADER_SIZE = 46;
+	private final static int END_SIZE = 22;
+	private final static int MAX_COMMENT = 0xFFFF;
+	private final static long ZIP64_MARKER = 0xFFFFFFFFL;
+	private final static int FLAG_ENCRYPTED = 1;
+	private final static int FLAG_DESCRIPTOR = 8;
+	private final static int STORED = 0;
+	private final static int DEFLATED = 8;
+	private final static List<String> EXTENSIONS = List.of("zip", "jar");
+	private final static String SIGNATURE_DIR = "META-INF/";
+	private final static List<String> SIGNATURE_EXTENSIONS = List.of(".SF", ".RSA", ".DSA", ".EC");
+
+	/**
+	 * Потоки для сжатия изображений архива.
+	 */
+	private final Executor executor;
+	/**
+	 * Максимальное количество записей, которые ожидают записи в новый архив.
+	 */
+	private final int window;
+	/**
+	 * Максимальный размер изображения в байтах, которое сжимается.
+	 */
+	private final int maxEntryBytes;
+
+	/**
+	 * @param executor потоки для сжатия изображений архива
+	 * @param window максимальное количество записей, которые ожидают записи в новый архив
+	 * @param maxEntryBytes максимальный размер изображения в байтах, которое сжимается
+	 */
+	public ArchiveRewriter(Executor executor, int window, int maxEntryBytes) {
+		this.executor = executor;
+		this.window = Math.max(1, window);
+		this.maxEntryBytes = maxEntryBytes;
+	}
+
+	/**
+	 * @param file файл
+	 * @return true, если файл является архивом по расширению
+	 */
+	public static boolean isArchive(Path file) {
+		Path fileName = file.getFileName();
+		if (fileName == null) {
+			return false;
+		}
+		String name = fileName.toString();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Метод для сжатия изображений архива. Если ни одно изображение не уменьшилось либо архив подписан, архив не меняется.
+	 * @param archive архив
+	 * @param output стадия записи сжатых файлов
+	 * @param compressor способ сжатия изображения
+	 * @return результат сжатия архива
+	 * @throws IOException если не удалось прочитать архив или записать новый архив
+	 */
+	public Result rewrite(Path archive, OutputStage output, EntryCompressor compressor) throws IOException {
+		try (FileChannel in = FileChannel.open(archive, StandardOpenOption.READ)) {
+			Directory directory = readCentralDirectory(in);
+			List<Entry> entries = directory.entries;
+			if (directory.signed) {
+				return new Result(entries.size(), 0, 0, null, true);
+			}
+			Path temp = output.tempFile(archive);
+			int images = 0;
+			int compressed = 0;
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				Deque<Pending> pending = new ArrayDeque<>();
+				for (Entry entry : entries) {
+					readLocalHeader(in, entry);
+					CompletableFuture<byte[]> future = null;
+					byte[] data = isImage(entry) ? readData(in, entry) : null;
+					if (data != null) {
+						images++;
+						future = CompletableFuture.supplyAsync(() -> compressor.compress(entry.name, data), executor);
+					}
+					pending.add(new Pending(entry, future));
+					while (!pending.isEmpty() && (pending.size() > window || pending.peek().isDone())) {
+						compressed += write(in, out, pending.poll());
+					}
+				}
+				while (!pending.isEmpty()) {
+					compressed += write(in, out, pending.poll());
+				}
+				writeCentralDirectory(out, entries, directory.comment);
+			} catch (IOException | RuntimeException e) {
+				output.discard(temp);
+				throw e;
+			}
+			if (compressed == 0) {
+				output.discard(temp);
+				return new Result(entries.size(), images, 0, null, false);
+			}
+			return new Result(entries.size(), images, compressed, output.commit(archive, temp), false);
+		}
+	}
+
+	/**
+	 * Метод для записи записи в новый архив. Метод ждет сжатия изображения.
+	 * @return 1, если запись заменена сжатым изображением, иначе 0
+	 */
+	private int write(FileChannel in, FileChannel out, Pending pending) throws IOException {
+		Entry entry = pending.entry;
+		byte[] replaced = null;
+		if (pending.future != null) {
+			try {
+				byte[] result = pending.future.join();
+				if (result != null && result.length < entry.compressedSize) {
+					replaced = result;
+				}
+			} catch (CompletionException e) {
+				logger.error("Failed compress archive entry = {}, message = {}", entry.name, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+			}
+		}
+		entry.offset = out.position();
+		entry.flags &= ~FLAG_DESCRIPTOR;
+		if (replaced != null) {
+			CRC32 crc = new CRC32();
+			crc.update(replaced);
+			entry.method = STORED;
+			entry.crc = crc.getValue();
+			entry.compressedSize = replaced.length;
+			entry.size = replaced.length;
+		}
+		ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + entry.nameBytes.length + entry.localExtra.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(LOCAL_SIGNATURE)
+				.putShort((short) entry.versionNeeded)
+				.putShort((short) entry.flags)
+				.putShort((short) entry.method)
+				.putShort((short) entry.time)
+				.putShort((short) entry.date)
+				.putInt((int) entry.crc)
+				.putInt((int) entry.compressedSize)
+				.putInt((int) entry.size)
+				.putShort((short) entry.nameBytes.length)
+				.putShort((short) entry.localExtra.length)
+				.put(entry.nameBytes)
+				.put(entry.localExtra);
+		writeFully(out, header.flip());
+		if (replaced != null) {
+			writeFully(out, ByteBuffer.wrap(replaced));
+			return 1;
+		}
+		long position = entry.dataOffset;
+		long end = entry.dataOffset + entry.compressedSize;
+		while (position < end) {
+			long transferred = in.transferTo(position, end - position, out);
+			if (transferred <= 0) {
+				throw new ZipException("Unexpected end of archive, entry = " + entry.name);
+			}
+			position += transferred;
+		}
+		return 0;
+	}
+
+	private static void writeCentralDirectory(FileChannel out, List<Entry> entries, byte[] comment) throws IOException {
+		long start = out.position();
+		for (Entry entry : entries) {
+			ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + entry.nameBytes.length + entry.extra.length + entry.comment.length)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(CENTRAL_SIGNATURE)
+					.putShort((short) entry.versionMadeBy)
+					.putShort((short) entry.versionNeeded)
+					.putShort((short) entry.flags)
+					.putShort((short) entry.method)
+					.putShort((short) entry.time)
+					.putShort((short) entry.date)
+					.putInt((int) entry.crc)
+					.putInt((int) entry.compressedSize)
+					.putInt((int) entry.size)
+					.putShort((short) entry.nameBytes.length)
+					.putShort((short) entry.extra.length)
+					.putShort((short) entry.comment.length)
+					.putShort((short) 0)
+					.putShort((short) entry.internalAttributes)
+					.putInt((int) entry.externalAttributes)
+					.putInt((int) entry.offset)
+					.put(entry.nameBytes)
+					.put(entry.extra)
+					.put(entry.comment);
+			writeFully(out, header.flip());
+		}
+		long size = out.position() - start;
+		if (out.position() >= ZIP64_MARKER) {
+			throw new ZipException("Archive is too large without ZIP64, size = " + out.position());
+		}
+		ByteBuffer end = ByteBuffer.allocate(END_SIZE + comment.length).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_SIGNATURE)
+				.putShort((short) 0)
+				.putShort((short) 0)
+				.putShort((short) entries.size())
+				.putShort((short) entries.size())
+				.putInt((int) size)
+				.putInt((int) start)
+				.putShort((short) comment.length)
+				.put(comment);
+		writeFully(out, end.flip());
+	}
+
+	/**
+	 * Метод для чтения центрального каталога архива.
+	 * @return записи в порядке расположения в архиве, комментарий архива и признак подписи
+	 */
+	private static Directory readCentralDirectory(FileChannel in) throws IOException {
+		long fileSize = in.size();
+		int tail = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT);
+		ByteBuffer buffer = read(in, fileSize - tail, tail);
+		int end = -1;
+		for (int i = tail - END_SIZE; i >= 0; i--) {
+			if (buffer.getInt(i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new ZipException("End of central directory is not found");
+		}
+		int disk = Short.toUnsignedInt(buffer.getShort(end + 4));
+		int count = Short.toUnsignedInt(buffer.getShort(end + 10));
+		long directorySize = Integer.toUnsignedLong(buffer.getInt(end + 12));
+		long directoryOffset = Integer.toUnsignedLong(buffer.getInt(end + 16));
+		int commentLength = Math.min(Short.toUnsignedInt(buffer.getShort(end + 20)), tail - end - END_SIZE);
+		if (disk != 0 || count == 0xFFFF || directoryOffset == ZIP64_MARKER || directorySize == ZIP64_MARKER) {
+			throw new ZipException("ZIP64 and multi-volume archives are not supported");
+		}
+		byte[] comment = new byte[commentLength];
+		buffer.position(end + END_SIZE);
+		buffer.get(comment);
+
+		ByteBuffer directory = read(in, directoryOffset, (int) directorySize);
+		List<Entry> entries = new ArrayList<>(count);
+		boolean signed = false;
+		for (int i = 0; i < count; i++) {
+			if (directory.remaining() < CENTRAL_HEADER_SIZE || directory.getInt() != CENTRAL_SIGNATURE) {
+				throw new ZipException("Invalid central directory entry, index = " + i);
+			}
+			Entry entry = new Entry();
+			entry.versionMadeBy = Short.toUnsignedInt(directory.getShort());
+			entry.versionNeeded = Short.toUnsignedInt(directory.getShort());
+			entry.flags = Short.toUnsignedInt(directory.getShort());
+			entry.method = Short.toUnsignedInt(directory.getShort());
+			entry.time = Short.toUnsignedInt(directory.getShort());
+			entry.date = Short.toUnsignedInt(directory.getShort());
+			entry.crc = Integer.toUnsignedLong(directory.getInt());
+			entry.compressedSize = Integer.toUnsignedLong(directory.getInt());
+			entry.size = Integer.toUnsignedLong(directory.getInt());
+			int nameLength = Short.toUnsignedInt(directory.getShort());
+			int extraLength = Short.toUnsignedInt(directory.getShort());
+			int entryCommentLength = Short.toUnsignedInt(directory.getShort());
+			directory.getShort();
+			entry.internalAttributes = Short.toUnsignedInt(directory.getShort());
+			entry.externalAttributes = Integer.toUnsignedLong(directory.getInt());
+			entry.localOffset = Integer.toUnsignedLong(directory.getInt());
+			entry.nameBytes = new byte[nameLength];
+			entry.extra = new byte[extraLength];
+			entry.comment = new byte[entryCommentLength];
+			directory.get(entry.nameBytes).get(entry.extra).get(entry.comment);
+			entry.name = new String(entry.nameBytes, StandardCharsets.UTF_8);
+			if (entry.compressedSize == ZIP64_MARKER || entry.size == ZIP64_MARKER || entry.localOffset == ZIP64_MARKER) {
+				throw new ZipException("ZIP64 entries are not supported, entry = " + entry.name);
+			}
+			signed |= isSignature(entry.name);
+			entries.add(entry);
+		}
+		entries.sort(Comparator.comparingLong(entry -> entry.localOffset));
+		return new Directory(entries, comment, signed);
+	}
+
+	private static void readLocalHeader(FileChannel in, Entry entry) throws IOException {
+		ByteBuffer header = read(in, entry.localOffset, LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_SIGNATURE) {
+			throw new ZipException("Invalid local header, entry = " + entry.name);
+		}
+		int nameLength = Short.toUnsignedInt(header.getShort(26));
+		int extraLength = Short.toUnsignedInt(header.getShort(28));
+		entry.localExtra = new byte[extraLength];
+		read(in, entry.localOffset + LOCAL_HEADER_SIZE + nameLength, extraLength).get(entry.localExtra);
+		entry.dataOffset = entry.localOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+	}
+
+	/**
+	 * @return true, если запись является файлом подписи JAR архива: META-INF/*.SF, *.RSA, *.DSA либо *.EC
+	 */
+	private static boolean isSignature(String name) {
+		String upper = name.toUpperCase(Locale.ROOT);
+		if (!upper.startsWith(SIGNATURE_DIR) || upper.indexOf('/', SIGNATURE_DIR.length()) >= 0) {
+			return false;
+		}
+		for (String extension : SIGNATURE_EXTENSIONS) {
+			if (upper.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, если запись является изображением, которое можно прочитать и сжать
+	 */
+	private boolean isImage(Entry entry) {
+		return !entry.name.endsWith("/") && (entry.flags & FLAG_ENCRYPTED) == 0 && (entry.method == STORED || entry.method == DEFLATED)
+				&& entry.size > 0 && entry.size <= maxEntryBytes && entry.compressedSize <= maxEntryBytes
+				&& ImageFormat.fromName(entry.name) != null;
+	}
+
+	/**
+	 * Метод для чтения содержимого записи.
+	 * @return содержимое записи либо null, если запись повреждена или не является изображением по сигнатуре
+	 */
+	private static byte[] readData(FileChannel in, Entry entry) throws IOException {
+		ByteBuffer raw = read(in, entry.dataOffset, (int) entry.compressedSize);
+		byte[] data;
+		if (entry.method == STORED) {
+			data = new byte[raw.remaining()];
+			raw.get(data);
+		} else {
+			data = new byte[(int) entry.size];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(raw);
+				int length = 0;
+				while (length < data.length && !inflater.finished()) {
+					int inflated = inflater.inflate(data, length, data.length - length);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					length += inflated;
+				}
+				if (length != data.length) {
+					logger.info("Archive entry size does not match, entry = {}", entry.name);
+					return null;
+				}
+			} catch (DataFormatException e) {
+				logger.info("Failed inflate archive entry = {}, message = {}", entry.name, e.getMessage());
+				return null;
+			} finally {
+				inflater.end();
+			}
+		}
+		return ImageFormat.fromHeader(data, Math.min(data.length, ImageFormat.HEADER_LENGTH)) != null ? data : null;
+	}
+
+	private static ByteBuffer read(FileChannel in, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0) {
+				throw new ZipException("Unexpected end of archive");
+			}
+		}
+		return buffer.flip();
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * Способ сжатия изображения из архива.
+	 */
+	public interface EntryCompressor {
+		/**
+		 * @param name имя записи
+		 * @param data содержимое изображения
+		 * @return сжатое изображение либо null, если изображение остается без изменений
+		 */
+		byte[] compress(String name, byte[] data);
+	}
+
+	/**
+	 * Результат сжатия архива.
+	 */
+	@Value
+	public static class Result {
+		/**
+		 * Количество записей архива.
+		 */
+		private int entries;
+		/**
+		 * Количество изображений, отправленных на сжатие.
+		 */
+		private int images;
+		/**
+		 * Количество изображений, замененных сжатыми.
+		 */
+		private int compressed;
+		/**
+		 * Размер и хеш нового архива, отсутствует, если архив не изменился.
+		 */
+		private CompressionResult output;
+		/**
+		 * Архив подписан и оставлен без изменений.
+		 */
+		private boolean signed;
+	}
+
+	/**
+	 * Запись архива: поля центрального каталога и расположение данных.
+	 */
+	private static class Entry {
+		private String name;
+		private byte[] nameBytes;
+		private byte[] extra;
+		private byte[] localExtra;
+		private byte[] comment;
+		private int versionMadeBy;
+		private int versionNeeded;
+		private int flags;
+		private int method;
+		private int time;
+		private int date;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private int internalAttributes;
+		private long externalAttributes;
+		private long localOffset;
+		private long dataOffset;
+		/**
+		 * Смещение записи в новом архиве.
+		 */
+		private long offset;
+	}
+
+	private static class Directory {
+		private final List<Entry> entries;
+		private final byte[] comment;
+		private final boolean signed;
+
+		private Directory(List<Entry> entries, byte[] comment, boolean signed) {
+			this.entries = entries;
+			this.comment = comment;
+			this.signed = signed;
+		}
+	}
+
+	/**
+	 * Запись, ожидающая записи в новый архив, и сжатие ее изображения.
+	 */
+	private static class Pending {
+		private final Entry entry;
+		private final CompletableFuture<byte[]> future;
+
+		private Pending(Entry entry, CompletableFuture<byte[]> future) {
+			this.entry = entry;
+			this.future = future;
+		}
+
+		private boolean isDone() {
+			return future == null || future.isDone();
+		}
+	}
+}
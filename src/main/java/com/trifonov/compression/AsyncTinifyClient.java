@@ -0,0 +1,226 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinify.ConnectionException;
+import com.tinify.ServerException;
+
+/**
+ * Асинхронный клиент TinyPNG API на неблокирующем {@link HttpClient}. Запросы всех ключей выполняются несколькими потоками клиента,
+ * поэтому количество одновременных запросов не ограничено количеством потоков. Файл загружается с диска по мере отправки,
+ * сжатый файл записывается клиентом во временный файл стадии записи и затем атомарно заменяет результат.
+ * Счетчик сжатий ключа из ответа сервера передается в {@link TinifyClient} аренды, поэтому {@link KeyPool} учитывает его как обычно.
+ * Ошибки API преобразуются в исключения библиотеки Tinify так же, как в {@link TinifyClient}.
+ * @author Alexandr Trifonov
+ *
+ */
+public class AsyncTinifyClient implements Closeable {
+	private final static Duration TIMEOUT = Duration.ofSeconds(60);
+	private final static String OCTET_STREAM = "application/octet-stream";
+	private final static ObjectMapper objMapper = new ObjectMapper();
+
+	private final URI endpoint;
+	private final ExecutorService executor;
+	private final HttpClient client;
+	/**
+	 * Метрики времени загрузки и скачивания, могут отсутствовать.
+	 */
+	private final CompressionMetrics metrics;
+
+	/**
+	 * @param endpoint адрес TinyPNG API
+	 * @param threads количество потоков HTTP-клиента
+	 * @param metrics метрики сжатия, могут отсутствовать
+	 */
+	public AsyncTinifyClient(String endpoint, int threads, CompressionMetrics metrics) {
+		this.endpoint = URI.create(endpoint);
+		this.metrics = metrics;
+		AtomicInteger number = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			Thread thread = new Thread(runnable, "async-tinify-" + number.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.client = HttpClient.newBuilder()
+				.executor(executor)
+				.connectTimeout(TIMEOUT)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.build();
+	}
+
+	/**
+	 * Метод для асинхронного сжатия файла с ключом аренды. Результат не записывается на место исходного файла, пока сжатый файл
+	 * не получен полностью: готовый временный файл передается в {@link OutputStage#commit(Path, Path)} вызывающим кодом.
+	 * @param lease аренда ключа
+	 * @param file файл для сжатия
+	 * @param upload файл, который загружается на сервер
+	 * @param output стадия записи сжатых файлов
+	 * @param variants стадия записи вариантов, может отсутствовать. Варианты записываются до завершения сжатия файла
+	 * @return временный файл со сжатым содержимым либо исключение Tinify
+	 */
+	public CompletableFuture<Path> compress(KeyLease lease, FileInfo file, Path upload, OutputStage output, VariantStage variants) {
+		String authorization = authorization(lease);
+		HttpRequest shrink;
+		Path temp;
+		try {
+			shrink = HttpRequest.newBuilder(endpoint.resolve("/shrink"))
+					.timeout(TIMEOUT)
+					.header("Authorization", authorization)
+					.header("Content-Type", OCTET_STREAM)
+					.POST(UploadBody.publisher(upload, UploadBody.length(upload)))
+					.build();
+			temp = output.tempFile(Paths.get(file.getName()));
+		} catch (IOException e) {
+			CompletableFuture<Path> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		long start = System.nanoTime();
+		long[] uploaded = new long[1];
+		URI[] location = new URI[1];
+		CompletableFuture<Path> compressed = client.sendAsync(shrink, HttpResponse.BodyHandlers.ofByteArray())
+				.thenCompose(response -> {
+					uploaded[0] = System.nanoTime();
+					check(lease, response.statusCode(), response.headers().firstValue("Compression-Count").orElse(null), response.body());
+					String header = response.headers().firstValue("Location")
+							.orElseThrow(() -> new ServerException("Location header is missing", "ParseError", response.statusCode()));
+					location[0] = endpoint.resolve(header);
+					HttpRequest download = HttpRequest.newBuilder(location[0])
+							.timeout(TIMEOUT)
+							.header("Authorization", authorization)
+							.GET()
+							.build();
+					return client.sendAsync(download, HttpResponse.BodyHandlers.ofFile(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+				})
+				.handle((response, error) -> {
+					if (error != null) {
+						output.discard(temp);
+						throw translate(error);
+					}
+					if (response.statusCode() / 100 != 2) {
+						byte[] body = readQuietly(response.body());
+						output.discard(temp);
+						check(lease, response.statusCode(), response.headers().firstValue("Compression-Count").orElse(null), body);
+					}
+					lease.getClient().updateCompressionCount(response.headers().firstValue("Compression-Count").orElse(null));
+					if (metrics != null) {
+						metrics.upload(uploaded[0] - start);
+						metrics.download(System.nanoTime() - uploaded[0]);
+					}
+					return response.body();
+				});
+		if (variants == null) {
+			return compressed;
+		}
+		Path source = Paths.get(file.getName());
+		return compressed.thenCompose(path -> variants.writeAsync(this, lease, location[0].toString(), source).thenApply(ignored -> path));
+	}
+
+	/**
+	 * Метод для асинхронного получения варианта сжатого изображения. Вариант записывается во временный файл и затем атомарно
+	 * заменяет файл варианта.
+	 * @param lease аренда ключа, которым сжат файл
+	 * @param location адрес сжатого изображения на сервере
+	 * @param variant вариант
+	 * @param source исходный файл
+	 * @param output стадия записи сжатых файлов
+	 * @return размер и хеш содержимого варианта либо исключение Tinify
+	 */
+	public CompletableFuture<CompressionResult> variant(KeyLease lease, String location, OutputVariant variant, Path source, OutputStage output) {
+		HttpRequest request;
+		Path temp;
+		try {
+			request = HttpRequest.newBuilder(URI.create(location))
+					.timeout(TIMEOUT)
+					.header("Authorization", authorization(lease))
+					.header("Content-Type", "application/json")
+					.POST(HttpRequest.BodyPublishers.ofByteArray(objMapper.writeValueAsBytes(variant.toRequest())))
+					.build();
+			temp = output.variantTempFile(source, variant);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+				.handle((response, error) -> {
+					if (error != null) {
+						output.discard(temp);
+						throw translate(error);
+					}
+					if (response.statusCode() / 100 != 2) {
+						byte[] body = readQuietly(response.body());
+						output.discard(temp);
+						check(lease, response.statusCode(), response.headers().firstValue("Compression-Count").orElse(null), body);
+					}
+					lease.getClient().updateCompressionCount(response.headers().firstValue("Compression-Count").orElse(null));
+					try {
+						return output.commitVariant(source, variant, temp);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				});
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static String authorization(KeyLease lease) {
+		return "Basic " + Base64.getEncoder().encodeToString(("api:" + lease.getKey()).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Метод для проверки ответа сервера. Счетчик сжатий ключа обновляется, ответ с ошибкой преобразуется в исключение Tinify.
+	 */
+	private static void check(KeyLease lease, int status, String count, byte[] body) {
+		lease.getClient().updateCompressionCount(count);
+		if (status / 100 != 2) {
+			throw TinifyClient.error(status, body);
+		}
+	}
+
+	/**
+	 * Метод для преобразования ошибки асинхронного запроса в исключение Tinify. Ошибка чтения загружаемого файла передается
+	 * как {@link UploadException}, остальные ошибки ввода-вывода считаются ошибками соединения.
+	 */
+	private static RuntimeException translate(Throwable error) {
+		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		if (cause instanceof com.tinify.Exception) {
+			return (com.tinify.Exception) cause;
+		}
+		UploadException upload = UploadException.find(cause);
+		if (upload != null) {
+			return new CompletionException(upload);
+		}
+		if (cause instanceof IOException) {
+			return new ConnectionException("Error while connecting: " + cause.getMessage(), cause);
+		}
+		return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+	}
+
+	private static byte[] readQuietly(Path file) {
+		try {
+			return Files.readAllBytes(file);
+		} catch (IOException e) {
+			return new byte[0];
+		}
+	}
+}
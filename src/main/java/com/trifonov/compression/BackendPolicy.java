@@ -0,0 +1,25 @@
+package com.trifonov.compression;
+
+/**
+ * Политика выбора способа сжатия файла в {@link BackendRouter}.
+ * @author Alexandr Trifonov
+ *
+ */
+public enum BackendPolicy {
+	/**
+	 * Все файлы сжимаются через TinyPNG.
+	 */
+	TINYPNG,
+	/**
+	 * Все файлы, формат которых поддерживается, сжимаются локально.
+	 */
+	LOCAL,
+	/**
+	 * Файлы меньше порога размера сжимаются локально, остальные через TinyPNG.
+	 */
+	SIZE,
+	/**
+	 * Файлы сжимаются через TinyPNG, пока остаток сжатий ключей больше резерва, затем локально.
+	 */
+	CREDIT
+}
@@ -0,0 +1,78 @@
+package com.trifonov.compression;
+
+/**
+ * Выбор способа сжатия для каждого файла. Локально сжимаются только PNG и JPEG, остальные файлы всегда отправляются в TinyPNG.
+ * Если локальное сжатие разрешено как запасное, файлы сжимаются локально, когда у ключей не осталось сжатий
+ * или TinyPNG недоступен и выключатель разомкнут.
+ * @author Alexandr Trifonov
+ *
+ */
+public class BackendRouter {
+	private final BackendPolicy policy;
+	/**
+	 * Размер файла в байтах, меньше которого файл сжимается локально по политике {@link BackendPolicy#SIZE}.
+	 */
+	private final long sizeThreshold;
+	/**
+	 * Остаток сжатий ключей, при котором файлы сжимаются локально по политике {@link BackendPolicy#CREDIT}.
+	 */
+	private final int creditReserve;
+	/**
+	 * Сжимать локально, если TinyPNG не может сжать файл.
+	 */
+	private final boolean fallback;
+
+	public BackendRouter(BackendPolicy policy, long sizeThreshold, int creditReserve, boolean fallback) {
+		this.policy = policy;
+		this.sizeThreshold = sizeThreshold;
+		this.creditReserve = creditReserve;
+		this.fallback = fallback;
+	}
+
+	public static BackendRouter of(CompressionSettings settings) {
+		return new BackendRouter(settings.getBackendPolicy(), settings.getBackendSizeThreshold(), settings.getBackendCreditReserve(),
+				settings.isLocalFallback());
+	}
+
+	/**
+	 * Метод для выбора способа сжатия файла до аренды ключа.
+	 * @param file файл
+	 * @param keyPool пул ключей
+	 * @return true, если файл сжимается локально
+	 */
+	public boolean isLocal(FileInfo file, KeyPool keyPool) {
+		if (!LocalBackend.supports(file)) {
+			return false;
+		}
+		switch (policy) {
+		case LOCAL:
+			return true;
+		case SIZE:
+			return file.getSize() < sizeThreshold;
+		case CREDIT:
+			return keyPool.getRemaining() <= creditReserve;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Метод для проверки, что файл сжимается локально, если TinyPNG не может его сжать.
+	 * @param file файл
+	 * @return true, если локальное сжатие разрешено как запасное и формат файла поддерживается
+	 */
+	public boolean isFallback(FileInfo file) {
+		return fallback && LocalBackend.supports(file);
+	}
+
+	/**
+	 * @return true, если какие-либо файлы могут сжиматься локально
+	 */
+	public boolean usesLocal() {
+		return fallback || policy != BackendPolicy.TINYPNG;
+	}
+
+	public BackendPolicy getPolicy() {
+		return policy;
+	}
+}
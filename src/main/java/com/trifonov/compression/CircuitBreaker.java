@@ -0,0 +1,145 @@
+package com.trifonov.compression;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Автоматический выключатель для всех рабочих потоков. После заданного количества ошибок сервера или соединения подряд
+ * выключатель размыкается, и потоки приостанавливаются вместо того, чтобы расходовать очередь файлов во время недоступности TinyPNG.
+ * По истечении паузы один поток выполняет пробный запрос: при успехе работа продолжается, при ошибке пауза удваивается до максимума.
+ * @author Alexandr Trifonov
+ *
+ */
+public class CircuitBreaker {
+	private static final Logger logger = LogManager.getLogger();
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Количество ошибок подряд, после которого выключатель размыкается.
+	 */
+	private final int threshold;
+	/**
+	 * Первая пауза в миллисекундах.
+	 */
+	private final long openMillis;
+	/**
+	 * Максимальная пауза в миллисекундах.
+	 */
+	private final long maxOpenMillis;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long currentOpenMillis;
+	private long openUntil;
+	/**
+	 * Признак выполнения пробного запроса.
+	 */
+	private boolean probing;
+	private boolean cancelled;
+
+	public CircuitBreaker(int threshold, long openMillis, long maxOpenMillis) {
+		this.threshold = Math.max(1, threshold);
+		this.openMillis = Math.max(1, openMillis);
+		this.maxOpenMillis = Math.max(this.openMillis, maxOpenMillis);
+		this.currentOpenMillis = this.openMillis;
+	}
+
+	/**
+	 * Метод для получения разрешения на запрос. Пока выключатель разомкнут, метод ждет. После паузы разрешение получает один пробный запрос,
+	 * результат которого необходимо сообщить методами {@link #onSuccess()}, {@link #onFailure()} или {@link #release()}.
+	 * @return false, если ожидание прервано отменой
+	 * @throws InterruptedException если поток был прерван во время ожидания
+	 */
+	public synchronized boolean acquire() throws InterruptedException {
+		while (!cancelled) {
+			if (state == State.CLOSED) {
+				return true;
+			}
+			if (state == State.OPEN) {
+				long now = System.currentTimeMillis();
+				if (now < openUntil) {
+					wait(openUntil - now);
+					continue;
+				}
+				state = State.HALF_OPEN;
+				probing = false;
+				logger.info("Circuit breaker is half-open, sending probe request");
+			}
+			if (!probing) {
+				probing = true;
+				return true;
+			}
+			wait();
+		}
+		return false;
+	}
+
+	/**
+	 * Метод для сообщения об ответе сервера. Замыкает выключатель.
+	 */
+	public synchronized void onSuccess() {
+		if (state != State.CLOSED) {
+			logger.info("Circuit breaker is closed, workers are resumed");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		probing = false;
+		currentOpenMillis = openMillis;
+		notifyAll();
+	}
+
+	/**
+	 * Метод для сообщения об ошибке сервера или соединения.
+	 * @return true, если ошибка произошла при замкнутом выключателе и должна учитываться как попытка сжатия файла
+	 */
+	public synchronized boolean onFailure() {
+		if (state == State.HALF_OPEN) {
+			open(Math.min(maxOpenMillis, currentOpenMillis * 2));
+			return false;
+		}
+		if (state == State.OPEN) {
+			return false;
+		}
+		if (++failures >= threshold) {
+			open(currentOpenMillis);
+		}
+		return true;
+	}
+
+	/**
+	 * Метод для возврата разрешения без результата запроса, например при локальной ошибке.
+	 */
+	public synchronized void release() {
+		if (state == State.HALF_OPEN && probing) {
+			probing = false;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Метод для отмены ожидания всех потоков.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return true, если выключатель разомкнут и потоки приостановлены
+	 */
+	public synchronized boolean isOpen() {
+		return state != State.CLOSED;
+	}
+
+	private void open(long millis) {
+		currentOpenMillis = millis;
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + millis;
+		probing = false;
+		logger.warn("Circuit breaker is open after {} failures, workers are paused for {} ms", failures, millis);
+		notifyAll();
+	}
+}
@@ -0,0 +1,681 @@
+package com.trifonov.compression;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Координация нескольких узлов, которые сжимают одно дерево файлов, через общую директорию без внешних служб.
+ * Найденные файлы делятся на шарды по хэшу имени относительно корня дерева, поэтому узлы могут подключать общее дерево
+ * в разные директории. Узел берет шарды и ключи в аренду файлами аренды. Файл аренды создается атомарно
+ * через жесткую ссылку на заполненный временный файл, поэтому аренду получает только один узел. Узел продлевает свои аренды записью
+ * в созданный им файл и никогда не заменяет файл аренды, поэтому продление не может затереть аренду другого узла.
+ * Аренда узла, который перестал ее продлевать, после истечения срока переименовывается и берется другим узлом.
+ * Если при продлении файл аренды уже не созданный узлом файл, аренда потеряна: шард перестает обрабатываться, ключ выводится из пула.
+ * Сроки аренды сравниваются по часам узлов, поэтому часы узлов должны быть синхронизированы.
+ * Имена сжатых файлов шарда дописываются в журнал шарда, поэтому узел, который взял шард после остановки другого узла,
+ * пропускает уже сжатые файлы. Завершенный шард отмечается файлом и больше не выдается.
+ * @author Alexandr Trifonov
+ *
+ */
+public class ClusterCoordinator implements Closeable {
+	private static final Logger logger = LogManager.getLogger();
+	private final static String LEASE = ".lease";
+	private final static String DONE = ".done";
+	private final static String LOG = ".log";
+	private final static String SHARD = "shard-";
+	private final static String KEY = "key-";
+
+	private final Path dir;
+	/**
+	 * Корень дерева файлов либо null, если файлы заданы списком и имена используются без изменений.
+	 */
+	private final Path root;
+	private final String node;
+	private final int shards;
+	private final long leaseMillis;
+	/**
+	 * Аренды, которыми владеет узел, по именам.
+	 */
+	private final Map<String, HeldLease> leases = new HashMap<>();
+	/**
+	 * Ключи по именам их аренд.
+	 */
+	private final Map<String, String> keyLeases = new HashMap<>();
+	/**
+	 * Ключи, аренду которых забрал другой узел.
+	 */
+	private final Set<String> lostKeys = new HashSet<>();
+	/**
+	 * Взятые шарды: количество необработанных файлов и журнал сжатых файлов.
+	 */
+	private final Map<Integer, ShardState> active = new HashMap<>();
+	private final ScheduledExecutorService heartbeat;
+	/**
+	 * Признак остановки сжатия на узле. Шарды, взятые остановленным узлом, не отмечаются завершенными.
+	 */
+	private volatile boolean stopped;
+	private volatile IntConsumer shardListener;
+	private Consumer<String> keyListener;
+
+	/**
+	 * @param dir общая директория узлов
+	 * @param root корень дерева файлов на этом узле либо null, если файлы заданы списком
+	 * @param node имя узла, уникальное среди узлов
+	 * @param shards количество шардов
+	 * @param leaseMillis срок аренды в миллисекундах, аренда продлевается три раза за срок
+	 * @throws IOException если не удалось создать директорию
+	 */
+	public ClusterCoordinator(Path dir, Path root, String node, int shards, long leaseMillis) throws IOException {
+		if (shards <= 0) {
+			throw new IllegalArgumentException("Shard count must be positive, shards = " + shards);
+		}
+		this.dir = Files.createDirectories(dir);
+		this.root = root != null ? root.toAbsolutePath().normalize() : null;
+		this.node = node;
+		this.shards = shards;
+		this.leaseMillis = Math.max(1000, leaseMillis);
+		this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "cluster-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = this.leaseMillis / 3;
+		heartbeat.scheduleAtFixedRate(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return имя узла по умолчанию: имя хоста и номер процесса
+	 */
+	public static String defaultNode() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host = "localhost";
+		}
+		return host + "-" + ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * @param name имя файла
+	 * @return номер шарда файла, одинаковый на всех узлах
+	 */
+	public int shardOf(String name) {
+		return Math.floorMod(relativeName(name).hashCode(), shards);
+	}
+
+	/**
+	 * @param name имя файла
+	 * @return имя файла относительно корня дерева с разделителем /, одинаковое на всех узлах. Имя файла вне дерева не меняется
+	 */
+	public String relativeName(String name) {
+		if (root == null) {
+			return name;
+		}
+		Path file = Paths.get(name).toAbsolutePath().normalize();
+		if (!file.startsWith(root)) {
+			return name;
+		}
+		return root.relativize(file).toString().replace(File.separatorChar, '/');
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * @param shardListener получатель номеров шардов, аренду которых забрал другой узел
+	 */
+	public void setShardListener(IntConsumer shardListener) {
+		this.shardListener = shardListener;
+	}
+
+	/**
+	 * Метод для подписки на потерю аренды ключей. Подписчик сразу получает ключи, которые уже потеряны.
+	 * @param keyListener получатель ключей, аренду которых забрал другой узел
+	 */
+	public void setKeyListener(Consumer<String> keyListener) {
+		List<String> lost;
+		synchronized (this) {
+			this.keyListener = keyListener;
+			lost = new ArrayList<>(lostKeys);
+		}
+		lost.forEach(keyListener);
+	}
+
+	/**
+	 * Метод для аренды ключей. Ключи, арендованные другими узлами, пропускаются.
+	 * @param keys ключи в порядке из файла
+	 * @param limit максимальное количество ключей узла, 0 - без ограничения
+	 * @return арендованные ключи
+	 */
+	public List<String> claimKeys(List<String> keys, int limit) {
+		List<String> claimed = new ArrayList<>();
+		for (String key : keys) {
+			if (limit > 0 && claimed.size() >= limit) {
+				break;
+			}
+			String name = KEY + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+			synchronized (this) {
+				keyLeases.put(name, key);
+			}
+			if (tryLease(name)) {
+				claimed.add(key);
+			} else {
+				synchronized (this) {
+					keyLeases.remove(name);
+				}
+			}
+		}
+		logger.info("Claimed keys = {} of {}, node = {}", claimed.size(), keys.size(), node);
+		return claimed;
+	}
+
+	/**
+	 * Метод для аренды следующего незавершенного шарда. Поиск начинается с разных шардов на разных узлах.
+	 * @return номер шарда либо -1, если свободных шардов нет
+	 */
+	public int claimShard() {
+		int start = Math.floorMod(node.hashCode(), shards);
+		for (int i = 0; i < shards; i++) {
+			int shard = (start + i) % shards;
+			synchronized (this) {
+				if (active.containsKey(shard)) {
+					continue;
+				}
+			}
+			if (!Files.exists(dir.resolve(shardName(shard) + DONE)) && tryLease(shardName(shard))) {
+				logger.info("Claimed shard = {}, node = {}", shard, node);
+				return shard;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Метод для начала обработки арендованного шарда.
+	 * @param shard номер шарда
+	 * @param files количество файлов шарда, которые будут обработаны. Если файлов нет, шард сразу завершается
+	 */
+	public void start(int shard, int files) {
+		synchronized (this) {
+			active.put(shard, new ShardState(files));
+		}
+		if (files == 0) {
+			finish(shard);
+		}
+	}
+
+	/**
+	 * Метод для чтения журнала шарда.
+	 * @param shard номер шарда
+	 * @return имена файлов относительно корня дерева, уже сжатых другими узлами
+	 */
+	public Set<String> processedFiles(int shard) {
+		Path log = dir.resolve(shardName(shard) + LOG);
+		Set<String> names = new HashSet<>();
+		try {
+			if (Files.exists(log)) {
+				names.addAll(Files.readAllLines(log, StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			logger.error("Failed read shard log = {}", log, e);
+		}
+		return names;
+	}
+
+	/**
+	 * Метод для учета обработанного файла. Когда все файлы шарда обработаны, аренда освобождается. Шард отмечается завершенным,
+	 * только если все его файлы не требуют повторной обработки, иначе шард возьмет этот или другой узел.
+	 * @param name имя файла
+	 * @param done true, если файл не требует повторной обработки и записывается в журнал шарда
+	 */
+	public void processed(String name, boolean done) {
+		int shard = shardOf(name);
+		boolean finished;
+		synchronized (this) {
+			ShardState state = active.get(shard);
+			if (state == null) {
+				return;
+			}
+			if (done) {
+				try {
+					if (state.log == null) {
+						state.log = Files.newBufferedWriter(dir.resolve(shardName(shard) + LOG), StandardCharsets.UTF_8,
+								StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+					}
+					state.log.write(relativeName(name));
+					state.log.newLine();
+					// Запись сбрасывается сразу, иначе после остановки узла другой узел повторно сожмет уже сжатый файл.
+					state.log.flush();
+				} catch (IOException e) {
+					logger.error("Failed write shard log, shard = {}", shard, e);
+				}
+			} else {
+				state.incomplete = true;
+			}
+			finished = --state.remaining == 0;
+		}
+		if (finished) {
+			finish(shard);
+		}
+	}
+
+	/**
+	 * @param shard номер шарда
+	 * @return true, если узел обрабатывает шард
+	 */
+	public synchronized boolean isActive(int shard) {
+		return active.containsKey(shard);
+	}
+
+	/**
+	 * @return количество шардов, которые обрабатывает узел
+	 */
+	public synchronized int getActiveShards() {
+		return active.size();
+	}
+
+	/**
+	 * @return true, если все шарды завершены
+	 */
+	public boolean isDone() {
+		for (int shard = 0; shard < shards; shard++) {
+			if (!Files.exists(dir.resolve(shardName(shard) + DONE))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Метод для остановки сжатия на узле: ключи закончились или сжатие отменено. Незавершенные шарды освобождаются без отметки о завершении.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Метод для освобождения всех аренд узла.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		heartbeat.shutdownNow();
+		List<Integer> held;
+		synchronized (this) {
+			held = new ArrayList<>(active.keySet());
+		}
+		for (int shard : held) {
+			finish(shard);
+		}
+		List<String> names;
+		synchronized (this) {
+			names = new ArrayList<>(leases.keySet());
+		}
+		names.forEach(this::release);
+	}
+
+	private void finish(int shard) {
+		ShardState state;
+		synchronized (this) {
+			state = active.remove(shard);
+		}
+		if (state == null) {
+			return;
+		}
+		try {
+			if (state.log != null) {
+				state.log.close();
+			}
+			if (!stopped && !state.incomplete && state.remaining <= 0) {
+				Files.write(dir.resolve(shardName(shard) + DONE), node.getBytes(StandardCharsets.UTF_8));
+				logger.info("Shard is finished. shard = {}, node = {}", shard, node);
+			}
+		} catch (IOException e) {
+			logger.error("Failed finish shard = {}", shard, e);
+		}
+		release(shardName(shard));
+	}
+
+	/**
+	 * Метод для атомарного получения аренды. Просроченная аренда другого узла сначала переименовывается, чтобы ее забрал только один узел.
+	 * @param name имя аренды
+	 * @return true, если аренда получена
+	 */
+	private boolean tryLease(String name) {
+		Path lease = dir.resolve(name + LEASE);
+		try {
+			if (acquired(name, create(lease))) {
+				return true;
+			}
+			Lease current = read(lease);
+			try {
+				if (expiresAt(lease, current) > System.currentTimeMillis()) {
+					return false;
+				}
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			Path expired = dir.resolve(name + LEASE + "." + node + ".expired");
+			try {
+				Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			if (expiresAt(expired, read(expired)) > System.currentTimeMillis()) {
+				// Владелец продлил аренду между чтением и переименованием, файл аренды возвращается на место.
+				restore(expired, lease);
+				return false;
+			}
+			Files.deleteIfExists(expired);
+			logger.info("Lease of node = {} is expired, lease = {}", current != null ? current.node : null, name);
+			return acquired(name, create(lease));
+		} catch (IOException e) {
+			logger.error("Failed claim lease = {}", lease, e);
+		}
+		return false;
+	}
+
+	private boolean acquired(String name, HeldLease held) {
+		if (held == null) {
+			return false;
+		}
+		synchronized (this) {
+			leases.put(name, held);
+		}
+		return true;
+	}
+
+	/**
+	 * Метод для атомарного создания файла аренды с заполненным содержимым.
+	 * @return созданная аренда либо null, если аренда уже существует
+	 */
+	private HeldLease create(Path lease) throws IOException {
+		Path temp = write(lease);
+		try {
+			Files.createLink(lease, temp);
+			// Канал открывается по временному имени, поэтому он относится к созданному файлу, даже если аренду уже переименовали.
+			return new HeldLease(FileChannel.open(temp, StandardOpenOption.WRITE), fileKey(temp));
+		} catch (FileAlreadyExistsException e) {
+			return null;
+		} catch (UnsupportedOperationException e) {
+			// Файловая система без жестких ссылок: аренда создается атомарно, но может быть прочитана пустой до записи.
+			FileChannel channel;
+			try {
+				channel = FileChannel.open(lease, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			} catch (FileAlreadyExistsException exists) {
+				return null;
+			}
+			HeldLease held = new HeldLease(channel, fileKey(lease));
+			try {
+				held.write(content());
+			} catch (IOException write) {
+				held.close();
+				throw write;
+			}
+			return held;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Метод для возврата на место файла аренды, которую продлил владелец. Если за это время аренду создал другой узел,
+	 * файл не возвращается, и владелец узнает о потере аренды при продлении.
+	 */
+	private void restore(Path expired, Path lease) throws IOException {
+		try {
+			Files.createLink(lease, expired);
+		} catch (UnsupportedOperationException e) {
+			try {
+				Files.move(expired, lease);
+			} catch (FileAlreadyExistsException exists) {
+				logger.info("Lease is created by another node, lease = {}", lease);
+			}
+		} catch (FileAlreadyExistsException e) {
+			logger.info("Lease is created by another node, lease = {}", lease);
+		}
+		Files.deleteIfExists(expired);
+	}
+
+	/**
+	 * @return true, если файл аренды - файл, созданный узлом
+	 */
+	private boolean owns(Path lease, HeldLease held) throws IOException {
+		if (held.fileKey != null) {
+			try {
+				return held.fileKey.equals(fileKey(lease));
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+		}
+		// Файловая система без идентификаторов файлов: владелец определяется по содержимому.
+		Lease current = read(lease);
+		return current != null && node.equals(current.node);
+	}
+
+	/**
+	 * Метод для продления аренд узла. Новый срок записывается в файл, созданный узлом, а не в файл по имени аренды,
+	 * поэтому аренда, которую забрал другой узел, не затирается. Затем проверяется, что по имени аренды находится файл узла,
+	 * иначе аренда потеряна.
+	 */
+	private void renew() {
+		Map<String, HeldLease> held;
+		synchronized (this) {
+			held = new HashMap<>(leases);
+		}
+		for (Map.Entry<String, HeldLease> entry : held.entrySet()) {
+			Path lease = dir.resolve(entry.getKey() + LEASE);
+			try {
+				entry.getValue().write(content());
+				if (!owns(lease, entry.getValue())) {
+					lost(entry.getKey());
+				}
+			} catch (IOException e) {
+				logger.error("Failed renew lease = {}", lease, e);
+			}
+		}
+	}
+
+	/**
+	 * Метод для обработки аренды, которую забрал другой узел. Шард перестает обрабатываться без отметки о завершении,
+	 * подписчики удаляют файлы шарда из очереди и выводят ключ из пула.
+	 */
+	private void lost(String name) {
+		HeldLease held;
+		ShardState state = null;
+		int shard = -1;
+		String key;
+		Consumer<String> keys;
+		synchronized (this) {
+			held = leases.remove(name);
+			if (held == null) {
+				return;
+			}
+			if (name.startsWith(SHARD)) {
+				shard = Integer.parseInt(name.substring(SHARD.length()));
+				state = active.remove(shard);
+			}
+			key = keyLeases.remove(name);
+			if (key != null) {
+				lostKeys.add(key);
+			}
+			keys = keyListener;
+		}
+		held.close();
+		logger.error("Lease is taken by another node, lease = {}, node = {}", name, node);
+		if (state != null) {
+			state.close();
+			IntConsumer shards = shardListener;
+			if (shards != null) {
+				shards.accept(shard);
+			}
+		}
+		if (key != null && keys != null) {
+			keys.accept(key);
+		}
+	}
+
+	private void release(String name) {
+		Path lease = dir.resolve(name + LEASE);
+		HeldLease held;
+		synchronized (this) {
+			held = leases.remove(name);
+			keyLeases.remove(name);
+		}
+		if (held == null) {
+			return;
+		}
+		try {
+			if (owns(lease, held)) {
+				Files.deleteIfExists(lease);
+			}
+		} catch (IOException e) {
+			logger.error("Failed release lease = {}", lease, e);
+		} finally {
+			held.close();
+		}
+	}
+
+	private Path write(Path lease) throws IOException {
+		Path temp = lease.resolveSibling(lease.getFileName() + "." + node + ".tmp");
+		Files.write(temp, content());
+		return temp;
+	}
+
+	private byte[] content() {
+		return (node + "\n" + (System.currentTimeMillis() + leaseMillis)).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return срок аренды. Поврежденная аренда истекает по времени изменения файла
+	 * @throws NoSuchFileException если файла аренды нет
+	 */
+	private long expiresAt(Path lease, Lease current) throws IOException {
+		return current != null ? current.expiresAt : Files.getLastModifiedTime(lease).toMillis() + leaseMillis;
+	}
+
+	private static Object fileKey(Path file) throws IOException {
+		return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+	}
+
+	/**
+	 * @return аренда либо null, если файла аренды нет или он поврежден
+	 */
+	private static Lease read(Path lease) throws IOException {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(lease, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (lines.size() < 2) {
+			return null;
+		}
+		try {
+			return new Lease(lines.get(0), Long.parseLong(lines.get(1).trim()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String shardName(int shard) {
+		return SHARD + shard;
+	}
+
+	private static class Lease {
+		private final String node;
+		private final long expiresAt;
+
+		private Lease(String node, long expiresAt) {
+			this.node = node;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Аренда узла: открытый файл, созданный узлом, и его идентификатор в файловой системе.
+	 */
+	private static class HeldLease {
+		private final FileChannel channel;
+		private final Object fileKey;
+
+		private HeldLease(FileChannel channel, Object fileKey) {
+			this.channel = channel;
+			this.fileKey = fileKey;
+		}
+
+		private void write(byte[] content) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
+			}
+			if (channel.size() > content.length) {
+				channel.truncate(content.length);
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Failed close lease", e);
+			}
+		}
+	}
+
+	private static class ShardState {
+		private int remaining;
+		private boolean incomplete;
+		private BufferedWriter log;
+
+		private ShardState(int remaining) {
+			this.remaining = remaining;
+		}
+
+		private void close() {
+			try {
+				if (log != null) {
+					log.close();
+				}
+			} catch (IOException e) {
+				logger.error("Failed close shard log", e);
+			}
+		}
+	}
+}
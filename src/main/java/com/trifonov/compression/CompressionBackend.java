@@ -0,0 +1,28 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Способ сжатия одного файла. Сжатый файл передается в стадию записи, исходный файл при этом не меняется до атомарной замены.
+ * Реализации: {@link TinifyClient} для сжатия через TinyPNG API и {@link LocalBackend} для локального сжатия без сети и ключей.
+ * Способ сжатия для каждого файла выбирает {@link BackendRouter}.
+ * @author Alexandr Trifonov
+ *
+ */
+public interface CompressionBackend {
+	/**
+	 * @return имя способа сжатия для журнала работы и отчетов
+	 */
+	String getName();
+
+	/**
+	 * Метод для сжатия файла.
+	 * @param file файл для сжатия
+	 * @param upload файл с содержимым для сжатия, например результат локальной оптимизации
+	 * @param output стадия записи сжатых файлов
+	 * @return размер и хеш содержимого сжатого файла
+	 * @throws IOException если не удалось прочитать или записать файл
+	 */
+	CompressionResult compress(FileInfo file, Path upload, OutputStage output) throws IOException;
+}
@@ -0,0 +1,310 @@
+package com.trifonov.compression;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Постоянный индекс сжатых файлов. Для каждого файла хранятся хеш пути, размер, время изменения и хеш содержимого после сжатия.
+ * Файл, размер и время изменения которого совпадают с записью индекса, считается уже сжатым и пропускается при обходе директории.
+ * <p>
+ * Индекс хранится в двоичном файле из записей фиксированной длины, новые записи дописываются в конец файла.
+ * При открытии файл отображается в память и загружается в хеш-таблицу на примитивных массивах,
+ * при закрытии файл перезаписывается без устаревших записей, если их стало слишком много.
+ * @author Alexandr Trifonov
+ *
+ */
+public class CompressionIndex implements Closeable {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final static int MAGIC = 0x54504958;
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 8;
+	/**
+	 * Размер записи: хеш пути, размер, время изменения, хеш содержимого.
+	 */
+	private final static int RECORD_SIZE = 32;
+	/**
+	 * Количество записей, после которого буфер дописываемых записей сбрасывается в файл.
+	 */
+	private final static int FLUSH_RECORDS = 256;
+
+	private final Path file;
+	/**
+	 * Проверять хеш содержимого файла при совпадении размера и времени изменения.
+	 */
+	private final boolean verify;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Хеш-таблица с открытой адресацией. Нулевой хеш пути означает пустую ячейку.
+	 */
+	private long[] pathHashes;
+	private long[] sizes;
+	private long[] modified;
+	private long[] contentHashes;
+	private int count;
+	/**
+	 * Количество записей в файле, включая устаревшие.
+	 */
+	private long fileRecords;
+	private DataOutputStream appender;
+	private int unflushed;
+	/**
+	 * Количество файлов, найденных в индексе при обходе.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	private CompressionIndex(Path file, boolean verify) {
+		this.file = file;
+		this.verify = verify;
+		allocate(1024);
+	}
+
+	/**
+	 * Метод для открытия индекса. Если файл индекса отсутствует, создается пустой индекс.
+	 * @param file файл индекса
+	 * @param verify проверять хеш содержимого сжатых файлов
+	 * @return индекс
+	 * @throws IOException если не удалось прочитать или создать файл
+	 */
+	public static CompressionIndex open(Path file, boolean verify) throws IOException {
+		CompressionIndex index = new CompressionIndex(file, verify);
+		if (Files.exists(file)) {
+			index.load();
+		}
+		index.openAppender();
+		logger.info("Compression index = {}, entries = {}", file, index.count);
+		return index;
+	}
+
+	/**
+	 * Метод для проверки, что файл уже сжат.
+	 * @param path файл
+	 * @param attrs атрибуты файла, полученные при обходе
+	 * @return true, если файл есть в индексе с теми же размером и временем изменения
+	 */
+	public boolean isCompressed(Path path, BasicFileAttributes attrs) {
+		long pathHash = pathHash(path);
+		long contentHash;
+		lock.readLock().lock();
+		try {
+			int slot = find(pathHash);
+			if (pathHashes[slot] == 0 || sizes[slot] != attrs.size() || modified[slot] != attrs.lastModifiedTime().toMillis()) {
+				return false;
+			}
+			contentHash = contentHashes[slot];
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			if (verify && ContentHash.of(path) != contentHash) {
+				return false;
+			}
+		} catch (IOException e) {
+			logger.info("Failed verify compressed file = {}", path, e);
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Метод для записи сжатого файла в индекс.
+	 * @param path файл
+	 * @param size размер файла после сжатия
+	 * @param lastModified время изменения файла после сжатия в миллисекундах
+	 * @param contentHash хеш содержимого файла после сжатия
+	 */
+	public void record(Path path, long size, long lastModified, long contentHash) {
+		long pathHash = pathHash(path);
+		lock.writeLock().lock();
+		try {
+			put(pathHash, size, lastModified, contentHash);
+			if (appender != null) {
+				writeRecord(appender, pathHash, size, lastModified, contentHash);
+				fileRecords++;
+				if (++unflushed >= FLUSH_RECORDS) {
+					appender.flush();
+					unflushed = 0;
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Failed write compression index = {}", file, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Метод для записи в индекс файла, только что записанного на диск.
+	 * @param path файл
+	 * @param contentHash хеш содержимого файла
+	 * @throws IOException если не удалось прочитать атрибуты файла
+	 */
+	public void record(Path path, long contentHash) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		record(path, attrs.size(), attrs.lastModifiedTime().toMillis(), contentHash);
+	}
+
+	/**
+	 * @return количество файлов, которые были найдены в индексе и пропущены
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Метод для закрытия индекса. Если устаревших записей больше, чем актуальных, файл перезаписывается.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (appender != null) {
+				appender.close();
+				appender = null;
+			}
+			if (fileRecords > 2L * count) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void load() throws IOException {
+		long length;
+		long records;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			length = channel.size();
+			if (length < HEADER_SIZE) {
+				return;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Invalid compression index file = " + file);
+			}
+			// Неполная последняя запись после аварийного завершения отбрасывается.
+			records = (length - HEADER_SIZE) / RECORD_SIZE;
+			allocate((int) Math.min(Integer.MAX_VALUE / 2, Math.max(1024, records * 2)));
+			for (long i = 0; i < records; i++) {
+				put(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+			}
+			fileRecords = records;
+		}
+		if (HEADER_SIZE + records * RECORD_SIZE != length) {
+			try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				truncate.truncate(HEADER_SIZE + records * RECORD_SIZE);
+			}
+		}
+	}
+
+	private void openAppender() throws IOException {
+		boolean empty = !Files.exists(file) || Files.size(file) < HEADER_SIZE;
+		appender = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+				StandardOpenOption.CREATE, empty ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND, StandardOpenOption.WRITE), 64 * 1024));
+		if (empty) {
+			appender.writeInt(MAGIC);
+			appender.writeInt(VERSION);
+			appender.flush();
+		}
+	}
+
+	private void compact() throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (int i = 0; i < pathHashes.length; i++) {
+				if (pathHashes[i] != 0) {
+					writeRecord(out, pathHashes[i], sizes[i], modified[i], contentHashes[i]);
+				}
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		fileRecords = count;
+	}
+
+	private void put(long pathHash, long size, long lastModified, long contentHash) {
+		if ((count + 1) * 2 > pathHashes.length) {
+			rehash();
+		}
+		int slot = find(pathHash);
+		if (pathHashes[slot] == 0) {
+			pathHashes[slot] = pathHash;
+			count++;
+		}
+		sizes[slot] = size;
+		modified[slot] = lastModified;
+		contentHashes[slot] = contentHash;
+	}
+
+	private int find(long pathHash) {
+		int mask = pathHashes.length - 1;
+		int slot = (int) (pathHash ^ (pathHash >>> 32)) & mask;
+		while (pathHashes[slot] != 0 && pathHashes[slot] != pathHash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash() {
+		long[] oldPathHashes = pathHashes;
+		long[] oldSizes = sizes;
+		long[] oldModified = modified;
+		long[] oldContentHashes = contentHashes;
+		allocate(oldPathHashes.length * 2);
+		for (int i = 0; i < oldPathHashes.length; i++) {
+			if (oldPathHashes[i] != 0) {
+				put(oldPathHashes[i], oldSizes[i], oldModified[i], oldContentHashes[i]);
+			}
+		}
+	}
+
+	private void allocate(int minCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(16, minCapacity - 1)) << 1;
+		pathHashes = new long[capacity];
+		sizes = new long[capacity];
+		modified = new long[capacity];
+		contentHashes = new long[capacity];
+		count = 0;
+	}
+
+	private static void writeRecord(DataOutputStream out, long pathHash, long size, long lastModified, long contentHash) throws IOException {
+		out.writeLong(pathHash);
+		out.writeLong(size);
+		out.writeLong(lastModified);
+		out.writeLong(contentHash);
+	}
+
+	/**
+	 * Хеш абсолютного пути файла. Нулевое значение зарезервировано для пустых ячеек таблицы.
+	 */
+	private static long pathHash(Path path) {
+		long hash = ContentHash.of(path.toAbsolutePath().normalize().toString());
+		return hash != 0 ? hash : 1;
+	}
+}
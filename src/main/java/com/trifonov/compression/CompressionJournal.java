@@ -0,0 +1,411 @@
+package com.trifonov.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Журнал сжатия для продолжения работы после аварийного завершения. В журнал дописываются найденные файлы, сжатые файлы,
+ * файлы с ошибками сжатия и чтения и изменения состояния ключей. Записи сбрасываются на диск с fsync пачками:
+ * после заданного количества записей или по истечении заданного времени, поэтому после аварии может потеряться только последняя пачка,
+ * и файлы из нее будут сжаты повторно.
+ * <p>
+ * Журнал хранится в двоичном файле из записей вида: тип, число, строка в UTF-8 с длиной.
+ * Неполная последняя запись после аварийного завершения отбрасывается при чтении.
+ * @author Alexandr Trifonov
+ *
+ */
+public class CompressionJournal implements Closeable {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final static int MAGIC = 0x54504A4C;
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 8;
+	/**
+	 * Размер записи без строки: тип, число, длина строки.
+	 */
+	private final static int RECORD_OVERHEAD = 13;
+	/**
+	 * Максимальная длина строки записи. Большая длина означает поврежденную запись.
+	 */
+	private final static int MAX_STRING_LENGTH = 1 << 16;
+
+	private final static byte SOURCE = 'S';
+	private final static byte PENDING = 'P';
+	private final static byte COMPRESSED = 'C';
+	private final static byte FAILED = 'F';
+	private final static byte FAILED_READ = 'R';
+	private final static byte KEY = 'K';
+	private final static byte DISCOVERED = 'D';
+
+	private final Path file;
+	private final int syncRecords;
+	private final long syncNanos;
+
+	private DataOutputStream out;
+	private FileChannel channel;
+	private int unsynced;
+	private long lastSyncNanos = System.nanoTime();
+
+	private CompressionJournal(Path file, int syncRecords, long syncMillis) {
+		this.file = file;
+		this.syncRecords = Math.max(1, syncRecords);
+		this.syncNanos = syncMillis * 1_000_000L;
+	}
+
+	/**
+	 * Метод для чтения журнала.
+	 * @param file файл журнала
+	 * @return состояние сжатия из журнала либо null, если журнал отсутствует
+	 * @throws IOException если не удалось прочитать журнал
+	 */
+	public static State replay(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		State state = new State();
+		long valid = HEADER_SIZE;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Invalid compression journal file = " + file);
+			}
+			byte[] buffer = new byte[256];
+			while (true) {
+				byte type;
+				long number;
+				String value;
+				try {
+					type = in.readByte();
+					number = in.readLong();
+					int length = in.readInt();
+					if (length < 0 || length > MAX_STRING_LENGTH) {
+						break;
+					}
+					if (length > buffer.length) {
+						buffer = new byte[Math.max(length, buffer.length * 2)];
+					}
+					in.readFully(buffer, 0, length);
+					value = new String(buffer, 0, length, StandardCharsets.UTF_8);
+					valid += RECORD_OVERHEAD + length;
+				} catch (EOFException e) {
+					break;
+				}
+				if (!state.apply(type, number, value)) {
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("Invalid compression journal file = " + file, e);
+		}
+		if (valid != Files.size(file)) {
+			// Неполная или поврежденная последняя запись после аварийного завершения отбрасывается.
+			try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				truncate.truncate(valid);
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Метод для создания нового журнала. Существующий журнал перезаписывается.
+	 * @param file файл журнала
+	 * @param source источник файлов для сжатия
+	 * @param syncRecords количество записей, после которого журнал сбрасывается на диск
+	 * @param syncMillis время в миллисекундах, после которого журнал сбрасывается на диск
+	 * @return журнал
+	 * @throws IOException если не удалось создать файл
+	 */
+	public static CompressionJournal create(Path file, Path source, int syncRecords, long syncMillis) throws IOException {
+		CompressionJournal journal = new CompressionJournal(file, syncRecords, syncMillis);
+		journal.rewrite(source, null);
+		return journal;
+	}
+
+	/**
+	 * Метод для продолжения журнала. Журнал перезаписывается только с актуальным состоянием, чтобы не расти от запуска к запуску.
+	 * @param file файл журнала
+	 * @param state состояние, прочитанное из журнала
+	 * @param syncRecords количество записей, после которого журнал сбрасывается на диск
+	 * @param syncMillis время в миллисекундах, после которого журнал сбрасывается на диск
+	 * @return журнал
+	 * @throws IOException если не удалось записать файл
+	 */
+	public static CompressionJournal resume(Path file, State state, int syncRecords, long syncMillis) throws IOException {
+		CompressionJournal journal = new CompressionJournal(file, syncRecords, syncMillis);
+		journal.rewrite(null, state);
+		return journal;
+	}
+
+	/**
+	 * Метод для записи файла, найденного для сжатия.
+	 * @param info файл
+	 */
+	public void pending(FileInfo info) {
+		write(PENDING, info.getSize(), info.getName());
+	}
+
+	/**
+	 * Метод для записи сжатого файла.
+	 * @param info файл
+	 */
+	public void compressed(FileInfo info) {
+		write(COMPRESSED, info.getSize(), info.getName());
+	}
+
+	/**
+	 * Метод для записи файла, который не удалось сжать. Такой файл не сжимается повторно при продолжении.
+	 * @param info файл
+	 */
+	public void failed(FileInfo info) {
+		write(FAILED, info.getSize(), info.getName());
+	}
+
+	/**
+	 * Метод для записи файла, который не удалось прочитать при обходе.
+	 * @param info файл
+	 */
+	public void failedRead(FileInfo info) {
+		write(FAILED_READ, info.getSize(), info.getName());
+	}
+
+	/**
+	 * Метод для записи состояния ключа.
+	 * @param key ключ
+	 * @param status состояние ключа
+	 */
+	public void key(String key, KeyStatus status) {
+		write(KEY, status.ordinal(), key);
+	}
+
+	/**
+	 * Метод для записи завершения обхода. После этой записи при продолжении обход не повторяется.
+	 */
+	public void discovered() {
+		write(DISCOVERED, 0, "");
+		sync();
+	}
+
+	/**
+	 * Метод для сброса записей на диск.
+	 */
+	public synchronized void sync() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.flush();
+			channel.force(false);
+		} catch (IOException e) {
+			logger.error("Failed sync compression journal = {}", file, e);
+		}
+		unsynced = 0;
+		lastSyncNanos = System.nanoTime();
+	}
+
+	/**
+	 * Метод для закрытия и удаления журнала после полного завершения сжатия.
+	 */
+	public void delete() {
+		close();
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.error("Failed delete compression journal = {}", file, e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (out == null) {
+			return;
+		}
+		sync();
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.error("Failed close compression journal = {}", file, e);
+		}
+		out = null;
+		channel = null;
+	}
+
+	private synchronized void write(byte type, long number, String value) {
+		if (out == null) {
+			return;
+		}
+		try {
+			writeRecord(out, type, number, value);
+			if (++unsynced >= syncRecords || System.nanoTime() - lastSyncNanos >= syncNanos) {
+				sync();
+			}
+		} catch (IOException e) {
+			logger.error("Failed write compression journal = {}", file, e);
+		}
+	}
+
+	/**
+	 * Метод для записи нового файла журнала через временный файл. После записи журнал открывается для дописывания.
+	 */
+	private void rewrite(Path source, State state) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+				DataOutputStream data = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			if (state == null) {
+				writeRecord(data, SOURCE, 0, source.toString());
+			} else {
+				writeRecord(data, SOURCE, 0, state.source);
+				for (FileInfo info : state.pending.values()) {
+					writeRecord(data, PENDING, info.getSize(), info.getName());
+				}
+				if (!state.discovered) {
+					// Без завершенного обхода сжатые файлы нужны, чтобы пропустить их при повторном обходе.
+					for (String name : state.compressed) {
+						writeRecord(data, COMPRESSED, 0, name);
+					}
+				}
+				for (FileInfo info : state.failed) {
+					writeRecord(data, FAILED, info.getSize(), info.getName());
+				}
+				for (FileInfo info : state.failedRead.values()) {
+					writeRecord(data, FAILED_READ, info.getSize(), info.getName());
+				}
+				for (Map.Entry<String, KeyStatus> key : state.keys.entrySet()) {
+					writeRecord(data, KEY, key.getValue().ordinal(), key.getKey());
+				}
+				if (state.discovered) {
+					writeRecord(data, DISCOVERED, 0, "");
+				}
+			}
+			data.flush();
+			stream.getChannel().force(false);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		FileOutputStream stream = new FileOutputStream(file.toFile(), true);
+		channel = stream.getChannel();
+		out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, long number, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeByte(type);
+		out.writeLong(number);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Состояние сжатия, восстановленное из журнала.
+	 */
+	public static class State {
+		private String source;
+		/**
+		 * Найденные файлы, которые еще не сжаты и не завершились ошибкой, в порядке обнаружения.
+		 */
+		private final Map<String, FileInfo> pending = new LinkedHashMap<>();
+		private final Set<String> compressed = new HashSet<>();
+		private final List<FileInfo> failed = new ArrayList<>();
+		private final Map<String, FileInfo> failedRead = new LinkedHashMap<>();
+		private final Map<String, KeyStatus> keys = new LinkedHashMap<>();
+		private boolean discovered;
+
+		/**
+		 * @return false, если запись повреждена
+		 */
+		private boolean apply(byte type, long number, String value) {
+			switch (type) {
+			case SOURCE:
+				source = value;
+				return true;
+			case PENDING:
+				if (!compressed.contains(value)) {
+					pending.put(value, new FileInfo(value, number));
+				}
+				return true;
+			case COMPRESSED:
+				pending.remove(value);
+				compressed.add(value);
+				return true;
+			case FAILED:
+				pending.remove(value);
+				compressed.add(value);
+				failed.add(new FileInfo(value, number));
+				return true;
+			case FAILED_READ:
+				failedRead.put(value, new FileInfo(value, number));
+				return true;
+			case KEY:
+				if (number < 0 || number >= KeyStatus.values().length) {
+					return false;
+				}
+				keys.put(value, KeyStatus.values()[(int) number]);
+				return true;
+			case DISCOVERED:
+				discovered = true;
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * @return источник файлов для сжатия, с которым был начат журнал
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		public Collection<FileInfo> getPending() {
+			return pending.values();
+		}
+
+		/**
+		 * @param name имя файла
+		 * @return true, если файл уже сжат или завершился ошибкой сжатия
+		 */
+		public boolean isDone(String name) {
+			return compressed.contains(name);
+		}
+
+		public List<FileInfo> getFailed() {
+			return failed;
+		}
+
+		public Collection<FileInfo> getFailedRead() {
+			return failedRead.values();
+		}
+
+		public Map<String, KeyStatus> getKeys() {
+			return keys;
+		}
+
+		/**
+		 * @return true, если обход источника был завершен
+		 */
+		public boolean isDiscovered() {
+			return discovered;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.trifonov.compression;
+
+/**
+ * Интерфейс для получения прогресса и результатов сжатия. Методы вызываются из служебных потоков {@link Compressor}
+ * и не должны надолго блокировать выполнение.
+ * @author Alexandr Trifonov
+ *
+ */
+public interface CompressionListener {
+	/**
+	 * Вызывается периодически во время сжатия и один раз после его завершения.
+	 * @param progress снимок прогресса
+	 */
+	void onProgress(CompressionProgress progress);
+
+	/**
+	 * Вызывается из рабочего потока, когда файл не удалось сжать из-за ошибки в запросе.
+	 * @param file файл
+	 */
+	default void onCompressionFailed(FileInfo file) {
+	}
+
+	/**
+	 * Вызывается, когда файл остался несжатым: закончились ключи, исчерпаны повторы или сжатие отменено.
+	 * @param file файл
+	 */
+	default void onUncompressed(FileInfo file) {
+	}
+
+	/**
+	 * Вызывается после обхода для каждого файла, который не удалось прочитать.
+	 * @param file файл
+	 */
+	default void onReadFailed(FileInfo file) {
+	}
+}
@@ -0,0 +1,259 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Метрики сжатия: пропускная способность по ключам и общая, гистограммы времени загрузки и скачивания, распределение степени сжатия,
+ * глубина очереди, количество повторов и ошибок, загрузка рабочих потоков.
+ * Запись метрик выполняется счетчиками {@link LongAdder} и гистограммами без блокировок, объекты создаются только при первом сжатии
+ * ключа. Снимок метрик доступен в виде краткой сводки для журнала, json-объекта и текстового формата Prometheus.
+ * В метках ключей остаются только последние символы ключа.
+ * @author Alexandr Trifonov
+ *
+ */
+public class CompressionMetrics {
+	private final static double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	/**
+	 * Количество последних символов ключа в метках.
+	 */
+	private final static int KEY_SUFFIX = 4;
+
+	private final ObjectMapper objMapper = new ObjectMapper();
+	private final long startNanos = System.nanoTime();
+	private final int workers;
+	/**
+	 * Глубина очереди файлов, запрашивается при снимке метрик.
+	 */
+	private final IntSupplier queueDepth;
+
+	private final Map<String, SourceMetrics> sources = new ConcurrentHashMap<>();
+	private final SourceMetrics total = new SourceMetrics();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+	/**
+	 * Время загрузки файла и скачивания результата в секундах, от 5 мс до 160 с.
+	 */
+	private final Histogram uploadSeconds = Histogram.exponential(0.005, 2, 16);
+	private final Histogram downloadSeconds = Histogram.exponential(0.005, 2, 16);
+	/**
+	 * Отношение размера сжатого файла к исходному.
+	 */
+	private final Histogram ratio = Histogram.linear(0.1, 0.1, 10);
+
+	public CompressionMetrics(int workers, IntSupplier queueDepth) {
+		this.workers = Math.max(1, workers);
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * Метод для учета сжатого файла.
+	 * @param source ключ TinyPNG либо имя способа сжатия
+	 * @param bytesIn размер файла до сжатия
+	 * @param bytesOut размер файла после сжатия
+	 */
+	public void compressed(String source, long bytesIn, long bytesOut) {
+		total.add(bytesIn, bytesOut);
+		sources.computeIfAbsent(source, key -> new SourceMetrics()).add(bytesIn, bytesOut);
+		if (bytesIn > 0) {
+			ratio.record((double) bytesOut / bytesIn);
+		}
+	}
+
+	public void upload(long nanos) {
+		uploadSeconds.record(nanos / NANOS_PER_SECOND);
+	}
+
+	public void download(long nanos) {
+		downloadSeconds.record(nanos / NANOS_PER_SECOND);
+	}
+
+	public void retry() {
+		retries.increment();
+	}
+
+	public void failure() {
+		failures.increment();
+	}
+
+	/**
+	 * Метод для учета времени, которое рабочий поток занимался файлом.
+	 * @param nanos время в наносекундах
+	 */
+	public void busy(long nanos) {
+		busyNanos.add(nanos);
+	}
+
+	/**
+	 * @return доля времени, которое рабочие потоки заняты файлами, от 0 до 1
+	 */
+	public double getUtilization() {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed > 0 ? Math.min(1, busyNanos.sum() / ((double) elapsed * workers)) : 0;
+	}
+
+	/**
+	 * @return краткая сводка для журнала
+	 */
+	public String summary() {
+		double seconds = elapsedSeconds();
+		return String.format(Locale.ROOT, "%.2f files/s, %.0f bytes/s, upload p50 %.3f s, p99 %.3f s, download p50 %.3f s, p99 %.3f s, "
+				+ "ratio p50 %.1f, queue %d, retries %d, failures %d, utilization %.0f%%",
+				total.files.sum() / seconds, total.bytesIn.sum() / seconds,
+				uploadSeconds.quantile(0.5), uploadSeconds.quantile(0.99), downloadSeconds.quantile(0.5), downloadSeconds.quantile(0.99),
+				ratio.quantile(0.5), queueDepth.getAsInt(), retries.sum(), failures.sum(), getUtilization() * 100);
+	}
+
+	/**
+	 * Метод для получения снимка метрик для записи в json.
+	 * @return снимок метрик
+	 */
+	public Map<String, Object> snapshot() {
+		double seconds = elapsedSeconds();
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("elapsedSeconds", seconds);
+		snapshot.put("total", total.snapshot(seconds));
+		Map<String, Object> bySource = new LinkedHashMap<>();
+		sources.forEach((source, metrics) -> bySource.put(label(source), metrics.snapshot(seconds)));
+		snapshot.put("sources", bySource);
+		snapshot.put("uploadSeconds", histogram(uploadSeconds));
+		snapshot.put("downloadSeconds", histogram(downloadSeconds));
+		snapshot.put("ratio", histogram(ratio));
+		snapshot.put("queueDepth", queueDepth.getAsInt());
+		snapshot.put("retries", retries.sum());
+		snapshot.put("failures", failures.sum());
+		snapshot.put("workers", workers);
+		snapshot.put("utilization", getUtilization());
+		return snapshot;
+	}
+
+	/**
+	 * Метод для атомарной записи снимка метрик в json-файл.
+	 * @param file файл метрик
+	 * @throws IOException если не удалось записать файл
+	 */
+	public void write(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			objMapper.writerWithDefaultPrettyPrinter().writeValue(out, snapshot());
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return метрики в текстовом формате Prometheus
+	 */
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder(4096);
+		counter(text, "tinypng_files_total", "Compressed files.", metrics -> metrics.files.sum());
+		counter(text, "tinypng_bytes_in_total", "Size of compressed files before compression in bytes.", metrics -> metrics.bytesIn.sum());
+		counter(text, "tinypng_bytes_out_total", "Size of compressed files after compression in bytes.", metrics -> metrics.bytesOut.sum());
+		prometheusHistogram(text, "tinypng_upload_seconds", "Upload request latency.", uploadSeconds);
+		prometheusHistogram(text, "tinypng_download_seconds", "Download and write latency.", downloadSeconds);
+		prometheusHistogram(text, "tinypng_compression_ratio", "Compressed to original size ratio.", ratio);
+		gauge(text, "tinypng_queue_depth", "Files waiting in the queue.", queueDepth.getAsInt());
+		text.append("# HELP tinypng_retries_total Files requeued after server or connection errors.\n# TYPE tinypng_retries_total counter\n")
+				.append("tinypng_retries_total ").append(retries.sum()).append('\n');
+		text.append("# HELP tinypng_failures_total Files that failed to compress.\n# TYPE tinypng_failures_total counter\n")
+				.append("tinypng_failures_total ").append(failures.sum()).append('\n');
+		gauge(text, "tinypng_worker_utilization", "Share of worker time spent on files.", getUtilization());
+		return text.toString();
+	}
+
+	private void counter(StringBuilder text, String name, String help, ToLongFunction<SourceMetrics> value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" counter\n");
+		text.append(name).append(' ').append(value.applyAsLong(total)).append('\n');
+		sources.forEach((source, metrics) -> text.append(name).append("{source=\"").append(escape(label(source))).append("\"} ")
+				.append(value.applyAsLong(metrics)).append('\n'));
+	}
+
+	private static void gauge(StringBuilder text, String name, String help, double value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" gauge\n");
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void prometheusHistogram(StringBuilder text, String name, String help, Histogram histogram) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" histogram\n");
+		double[] bounds = histogram.getBounds();
+		long[] counts = histogram.getCounts();
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			String bound = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+			text.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+		}
+		text.append(name).append("_sum ").append(histogram.getSum()).append('\n');
+		text.append(name).append("_count ").append(cumulative).append('\n');
+	}
+
+	private static Map<String, Object> histogram(Histogram histogram) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("bounds", histogram.getBounds());
+		result.put("counts", histogram.getCounts());
+		result.put("sum", histogram.getSum());
+		result.put("p50", histogram.quantile(0.5));
+		result.put("p90", histogram.quantile(0.9));
+		result.put("p99", histogram.quantile(0.99));
+		return result;
+	}
+
+	private double elapsedSeconds() {
+		return Math.max(1, System.nanoTime() - startNanos) / NANOS_PER_SECOND;
+	}
+
+	/**
+	 * Метод для получения метки источника без полного ключа, имена способов сжатия остаются без изменений.
+	 */
+	private static String label(String source) {
+		if (source.equals(LocalBackend.NAME) || source.length() <= KEY_SUFFIX) {
+			return source;
+		}
+		return "..." + source.substring(source.length() - KEY_SUFFIX);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Счетчики одного ключа либо способа сжатия.
+	 */
+	private static class SourceMetrics {
+		private final LongAdder files = new LongAdder();
+		private final LongAdder bytesIn = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+
+		private void add(long in, long out) {
+			files.increment();
+			bytesIn.add(in);
+			bytesOut.add(out);
+		}
+
+		private Map<String, Object> snapshot(double seconds) {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("files", files.sum());
+			result.put("bytesIn", bytesIn.sum());
+			result.put("bytesOut", bytesOut.sum());
+			result.put("filesPerSecond", files.sum() / seconds);
+			result.put("bytesPerSecond", bytesIn.sum() / seconds);
+			return result;
+		}
+	}
+}
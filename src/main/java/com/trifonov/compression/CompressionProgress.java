@@ -0,0 +1,76 @@
+package com.trifonov.compression;
+
+import lombok.Value;
+
+/**
+ * Снимок прогресса сжатия.
+ * @author Alexandr Trifonov
+ *
+ */
+@Value
+public class CompressionProgress {
+	/**
+	 * Количество файлов, поставленных в очередь на сжатие.
+	 */
+	private long filesTotal;
+	/**
+	 * Количество сжатых файлов.
+	 */
+	private long filesCompressed;
+	/**
+	 * Количество файлов, которые не удалось сжать.
+	 */
+	private long filesFailed;
+	/**
+	 * Количество файлов, пропущенных как уже сжатые.
+	 */
+	private long filesSkipped;
+	/**
+	 * Количество дубликатов, получивших содержимое сжатого файла без отдельной загрузки.
+	 */
+	private long filesDeduplicated;
+	/**
+	 * Количество файлов, сжатых локально без TinyPNG.
+	 */
+	private long filesLocal;
+	/**
+	 * Количество повторных постановок файлов в очередь после ошибок сервера или соединения.
+	 */
+	private long retries;
+	/**
+	 * Суммарный размер сжатых файлов до сжатия в байтах.
+	 */
+	private long bytesIn;
+	/**
+	 * Суммарный размер сжатых файлов после сжатия в байтах.
+	 */
+	private long bytesOut;
+	/**
+	 * Время с начала сжатия в миллисекундах.
+	 */
+	private long elapsedMillis;
+	/**
+	 * Признак завершения сжатия.
+	 */
+	private boolean finished;
+
+	/**
+	 * @return количество сжатых файлов в секунду
+	 */
+	public double getFilesPerSecond() {
+		return elapsedMillis > 0 ? filesCompressed * 1000.0 / elapsedMillis : 0;
+	}
+
+	/**
+	 * @return количество исходных байт, сжатых за секунду
+	 */
+	public double getBytesPerSecond() {
+		return elapsedMillis > 0 ? bytesIn * 1000.0 / elapsedMillis : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("files %d/%d, failed %d, skipped %d, deduplicated %d, local %d, retries %d, bytes in %d, bytes out %d, %.2f files/s, %.0f bytes/s%s",
+				filesCompressed, filesTotal, filesFailed, filesSkipped, filesDeduplicated, filesLocal, retries, bytesIn, bytesOut, getFilesPerSecond(), getBytesPerSecond(), finished ? ", finished" : "");
+	}
+}
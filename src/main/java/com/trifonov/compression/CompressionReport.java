@@ -0,0 +1,60 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+
+/**
+ * Подписчик, который записывает списки файлов в отчеты по мере их появления во время сжатия.
+ * Отчеты сбрасываются на диск при каждой публикации прогресса, поэтому во время сжатия в них видны уже известные результаты.
+ * @author Alexandr Trifonov
+ *
+ */
+public class CompressionReport implements CompressionListener, Closeable {
+	/**
+	 * Отчет с файлами, к которым не был получен доступ.
+	 */
+	private final ReportWriter<FileInfo> failedReadFiles;
+	/**
+	 * Отчет с несжатыми файлами.
+	 */
+	private final ReportWriter<FileInfo> uncompressedFiles;
+	/**
+	 * Отчет с файлами, которые не удалось сжать.
+	 */
+	private final ReportWriter<FileInfo> failedCompressedFiles;
+
+	public CompressionReport(ReportWriter<FileInfo> failedReadFiles, ReportWriter<FileInfo> uncompressedFiles,
+			ReportWriter<FileInfo> failedCompressedFiles) {
+		this.failedReadFiles = failedReadFiles;
+		this.uncompressedFiles = uncompressedFiles;
+		this.failedCompressedFiles = failedCompressedFiles;
+	}
+
+	@Override
+	public void onProgress(CompressionProgress progress) {
+		failedReadFiles.flush();
+		uncompressedFiles.flush();
+		failedCompressedFiles.flush();
+	}
+
+	@Override
+	public void onCompressionFailed(FileInfo file) {
+		failedCompressedFiles.write(file);
+	}
+
+	@Override
+	public void onUncompressed(FileInfo file) {
+		uncompressedFiles.write(file);
+	}
+
+	@Override
+	public void onReadFailed(FileInfo file) {
+		failedReadFiles.write(file);
+	}
+
+	@Override
+	public void close() {
+		failedReadFiles.close();
+		uncompressedFiles.close();
+		failedCompressedFiles.close();
+	}
+}
@@ -0,0 +1,20 @@
+package com.trifonov.compression;
+
+import lombok.Value;
+
+/**
+ * Результат сжатия одного файла.
+ * @author Alexandr Trifonov
+ *
+ */
+@Value
+public class CompressionResult {
+	/**
+	 * Размер сжатого файла в байтах.
+	 */
+	private long size;
+	/**
+	 * Хеш содержимого сжатого файла.
+	 */
+	private long contentHash;
+}
@@ -0,0 +1,329 @@
+package com.trifonov.compression;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import lombok.Data;
+
+/**
+ * Класс для хранения настроек сжатия. Значения по умолчанию могут быть переопределены в compression.properties.
+ * @author Alexandr Trifonov
+ *
+ */
+@Data
+public class CompressionSettings {
+	private static final Logger logger = LogManager.getLogger();
+	/**
+	 * Адрес TinyPNG API.
+	 */
+	private String endpoint = TinifyClient.API_ENDPOINT;
+	/**
+	 * Количество простаивающих соединений, которые хранит пул соединений одного ключа.
+	 */
+	private int maxIdleConnections = 5;
+	/**
+	 * Количество рабочих потоков сжатия. Не зависит от количества ключей.
+	 */
+	private int workerCount = 10;
+	/**
+	 * Способ выполнения запросов к TinyPNG.
+	 */
+	private ExecutionEngine engine = ExecutionEngine.THREADS;
+	/**
+	 * Максимальное количество файлов, одновременно сжимаемых асинхронно либо в виртуальных потоках.
+	 */
+	private int asyncWindow = 256;
+	/**
+	 * Количество потоков асинхронного HTTP-клиента.
+	 */
+	private int asyncThreads = 4;
+	/**
+	 * Максимальное количество одновременных запросов одного ключа в режиме виртуальных потоков.
+	 */
+	private int virtualKeyConcurrency = 32;
+	/**
+	 * Лимит сжатий одного ключа.
+	 */
+	private int keyLimit = 500;
+	/**
+	 * Остаток сжатий, при котором ключ больше не выдается.
+	 */
+	private int keyReserve = 0;
+	/**
+	 * Файл учета сжатий ключей между запусками, пустое значение отключает учет.
+	 */
+	private String keyLedgerFile = "key-ledger.json";
+	/**
+	 * Период публикации прогресса сжатия в секундах, не меньше 1.
+	 */
+	private int progressIntervalSeconds = 10;
+	/**
+	 * Потоковый режим: обход директории выполняется одновременно со сжатием.
+	 */
+	private boolean streaming = false;
+	/**
+	 * Размер очереди файлов в потоковом режиме.
+	 */
+	private int queueCapacity = 10_000;
+	/**
+	 * Режим наблюдения: после обхода директории новые и измененные файлы сжимаются до остановки приложения.
+	 */
+	private boolean watch = false;
+	/**
+	 * Время в миллисекундах, в течение которого файл не должен меняться, чтобы в режиме наблюдения он считался записанным.
+	 */
+	private int watchDebounceMillis = 2000;
+	/**
+	 * Общая директория узлов для совместного сжатия одного дерева файлов, пустая строка - сжатие одним узлом.
+	 */
+	private String clusterDir = "";
+	/**
+	 * Имя узла, пустая строка - имя хоста и номер процесса.
+	 */
+	private String clusterNode = "";
+	/**
+	 * Количество шардов, на которые делятся найденные файлы.
+	 */
+	private int clusterShards = 64;
+	/**
+	 * Срок аренды шардов и ключей в миллисекундах, после которого аренда остановленного узла переходит к другим узлам.
+	 */
+	private int clusterLeaseMillis = 30_000;
+	/**
+	 * Максимальное количество ключей, которые берет один узел, 0 - все свободные ключи.
+	 */
+	private int clusterNodeKeys = 10;
+	/**
+	 * Дополнительные варианты сжатых файлов, которые создаются из одной загрузки файла, см. {@link OutputVariant}.
+	 */
+	private List<OutputVariant> variants = Collections.emptyList();
+	/**
+	 * Сжимать изображения внутри ZIP и JAR архивов.
+	 */
+	private boolean archives = false;
+	/**
+	 * Максимальное количество записей архива, которые одновременно сжимаются или ожидают записи в новый архив.
+	 */
+	private int archiveWindow = 8;
+	/**
+	 * Максимальный размер изображения в архиве в байтах, изображения больше копируются без сжатия.
+	 */
+	private int archiveEntryMaxBytes = 16 * 1024 * 1024;
+	/**
+	 * Количество потоков обхода директории, 0 - по количеству процессоров, 1 - последовательный обход.
+	 */
+	private int discoveryParallelism = 0;
+	/**
+	 * Проверять сигнатуру файлов при обходе директории в дополнение к расширению.
+	 */
+	private boolean checkImageHeader = true;
+	/**
+	 * Файл индекса сжатых файлов. Пустое значение отключает индекс.
+	 */
+	private String indexFile = "compression-index.bin";
+	/**
+	 * Проверять хеш содержимого файлов, найденных в индексе.
+	 */
+	private boolean indexVerify = false;
+	/**
+	 * Загружать одинаковые файлы один раз. Не используется в потоковом режиме.
+	 */
+	private boolean deduplicate = true;
+	/**
+	 * Файл журнала сжатия для продолжения после аварийного завершения. Пустое значение отключает журнал.
+	 */
+	private String journalFile = "compression-journal.bin";
+	/**
+	 * Продолжать сжатие по журналу, если журнал остался от прерванного запуска с тем же источником файлов.
+	 */
+	private boolean resume = true;
+	/**
+	 * Количество записей журнала, после которого журнал сбрасывается на диск.
+	 */
+	private int journalSyncRecords = 1000;
+	/**
+	 * Время в миллисекундах, после которого журнал сбрасывается на диск.
+	 */
+	private int journalSyncMillis = 1000;
+	/**
+	 * Директория для сжатых файлов с сохранением относительных путей. Пустое значение - запись на место исходных файлов.
+	 */
+	private String outputDir = "";
+	/**
+	 * Директория для резервных копий исходных файлов при записи на их место. Пустое значение отключает резервные копии.
+	 */
+	private String backupDir = "";
+	/**
+	 * Количество повторных постановок файла в очередь после ошибки сервера или соединения.
+	 */
+	private int retryAttempts = 3;
+	/**
+	 * Первая задержка ключа после ошибки в миллисекундах.
+	 */
+	private int retryBaseMillis = 500;
+	/**
+	 * Максимальная задержка ключа после ошибки в миллисекундах.
+	 */
+	private int retryMaxMillis = 60_000;
+	/**
+	 * Количество ошибок сервера или соединения подряд, после которого все потоки приостанавливаются.
+	 */
+	private int breakerThreshold = 5;
+	/**
+	 * Первая пауза всех потоков в миллисекундах.
+	 */
+	private int breakerOpenMillis = 10_000;
+	/**
+	 * Максимальная пауза всех потоков в миллисекундах.
+	 */
+	private int breakerMaxOpenMillis = 300_000;
+	/**
+	 * Оптимизировать изображения без потерь перед загрузкой: удалять метаданные и пережимать данные PNG.
+	 */
+	private boolean preoptimize = false;
+	/**
+	 * Количество потоков локальной оптимизации, 0 - по количеству процессоров.
+	 */
+	private int preoptimizeThreads = 0;
+	/**
+	 * Удалять цветовой профиль ICC при локальной оптимизации. Без профиля цвета могут отображаться иначе.
+	 */
+	private boolean stripIcc = false;
+	/**
+	 * Политика выбора способа сжатия файла.
+	 */
+	private BackendPolicy backendPolicy = BackendPolicy.TINYPNG;
+	/**
+	 * Размер файла в байтах, меньше которого файл сжимается локально по политике SIZE.
+	 */
+	private int backendSizeThreshold = 100 * 1024;
+	/**
+	 * Остаток сжатий ключей, при котором файлы начинают сжиматься локально по политике CREDIT.
+	 */
+	private int backendCreditReserve = 0;
+	/**
+	 * Сжимать файлы локально, если у ключей не осталось сжатий или TinyPNG недоступен.
+	 */
+	private boolean localFallback = false;
+	/**
+	 * Качество перекодирования JPEG при локальном сжатии от 0 до 100.
+	 */
+	private int localJpegQuality = 85;
+	/**
+	 * Выдавать файлы из полос больших и маленьких файлов по оценке времени сжатия вместо строгого порядка от больших к маленьким.
+	 */
+	private boolean scheduleLanes = true;
+	/**
+	 * Размер файла в байтах, начиная с которого файл попадает в полосу больших файлов.
+	 */
+	private int scheduleLaneThreshold = 1024 * 1024;
+	/**
+	 * Записывать сводку метрик в журнал вместе с прогрессом.
+	 */
+	private boolean metricsLog = true;
+	/**
+	 * Файл с метриками в формате json, пустое значение отключает запись.
+	 */
+	private String metricsFile = "metrics-tinypng.json";
+	/**
+	 * Адрес и порт HTTP-сервера с метриками в формате Prometheus, порт 0 отключает сервер.
+	 */
+	private String metricsHttpHost = "127.0.0.1";
+	private int metricsHttpPort = 0;
+
+	/**
+	 * Метод для получения настроек из properties. Отсутствующие значения остаются по умолчанию.
+	 * @param props Properties с настройками.
+	 * @return CompressionSettings
+	 */
+	public static CompressionSettings fromProperties(Properties props) {
+		CompressionSettings settings = new CompressionSettings();
+		settings.setEndpoint(props.getProperty("tinify.endpoint", settings.getEndpoint()));
+		settings.setMaxIdleConnections(intProperty(props, "tinify.max.idle.connections", settings.getMaxIdleConnections()));
+		settings.setWorkerCount(intProperty(props, "workers", settings.getWorkerCount()));
+		settings.setEngine(enumProperty(props, "engine", ExecutionEngine.class, settings.getEngine()));
+		settings.setAsyncWindow(intProperty(props, "async.window", settings.getAsyncWindow()));
+		settings.setAsyncThreads(intProperty(props, "async.threads", settings.getAsyncThreads()));
+		settings.setVirtualKeyConcurrency(intProperty(props, "virtual.key.concurrency", settings.getVirtualKeyConcurrency()));
+		settings.setKeyLimit(intProperty(props, "key.limit", settings.getKeyLimit()));
+		settings.setKeyReserve(intProperty(props, "key.reserve", settings.getKeyReserve()));
+		settings.setKeyLedgerFile(props.getProperty("key.ledger.file", settings.getKeyLedgerFile()).trim());
+		settings.setProgressIntervalSeconds(intProperty(props, "progress.interval.seconds", settings.getProgressIntervalSeconds()));
+		settings.setStreaming(booleanProperty(props, "streaming", settings.isStreaming()));
+		settings.setQueueCapacity(intProperty(props, "queue.capacity", settings.getQueueCapacity()));
+		settings.setWatch(booleanProperty(props, "watch", settings.isWatch()));
+		settings.setWatchDebounceMillis(intProperty(props, "watch.debounce.millis", settings.getWatchDebounceMillis()));
+		settings.setClusterDir(props.getProperty("cluster.dir", settings.getClusterDir()).trim());
+		settings.setClusterNode(props.getProperty("cluster.node", settings.getClusterNode()).trim());
+		settings.setClusterShards(intProperty(props, "cluster.shards", settings.getClusterShards()));
+		settings.setClusterLeaseMillis(intProperty(props, "cluster.lease.millis", settings.getClusterLeaseMillis()));
+		settings.setClusterNodeKeys(intProperty(props, "cluster.node.keys", settings.getClusterNodeKeys()));
+		settings.setVariants(OutputVariant.parse(props.getProperty("variants")));
+		settings.setArchives(booleanProperty(props, "archives", settings.isArchives()));
+		settings.setArchiveWindow(intProperty(props, "archive.window", settings.getArchiveWindow()));
+		settings.setArchiveEntryMaxBytes(intProperty(props, "archive.entry.max.bytes", settings.getArchiveEntryMaxBytes()));
+		settings.setDiscoveryParallelism(intProperty(props, "discovery.parallelism", settings.getDiscoveryParallelism()));
+		settings.setCheckImageHeader(booleanProperty(props, "discovery.check.header", settings.isCheckImageHeader()));
+		settings.setIndexFile(props.getProperty("index.file", settings.getIndexFile()).trim());
+		settings.setIndexVerify(booleanProperty(props, "index.verify", settings.isIndexVerify()));
+		settings.setDeduplicate(booleanProperty(props, "dedup", settings.isDeduplicate()));
+		settings.setJournalFile(props.getProperty("journal.file", settings.getJournalFile()).trim());
+		settings.setResume(booleanProperty(props, "resume", settings.isResume()));
+		settings.setJournalSyncRecords(intProperty(props, "journal.sync.records", settings.getJournalSyncRecords()));
+		settings.setJournalSyncMillis(intProperty(props, "journal.sync.millis", settings.getJournalSyncMillis()));
+		settings.setOutputDir(props.getProperty("output.dir", settings.getOutputDir()).trim());
+		settings.setBackupDir(props.getProperty("backup.dir", settings.getBackupDir()).trim());
+		settings.setRetryAttempts(intProperty(props, "retry.attempts", settings.getRetryAttempts()));
+		settings.setRetryBaseMillis(intProperty(props, "retry.base.millis", settings.getRetryBaseMillis()));
+		settings.setRetryMaxMillis(intProperty(props, "retry.max.millis", settings.getRetryMaxMillis()));
+		settings.setBreakerThreshold(intProperty(props, "breaker.threshold", settings.getBreakerThreshold()));
+		settings.setBreakerOpenMillis(intProperty(props, "breaker.open.millis", settings.getBreakerOpenMillis()));
+		settings.setBreakerMaxOpenMillis(intProperty(props, "breaker.max.open.millis", settings.getBreakerMaxOpenMillis()));
+		settings.setPreoptimize(booleanProperty(props, "preoptimize", settings.isPreoptimize()));
+		settings.setPreoptimizeThreads(intProperty(props, "preoptimize.threads", settings.getPreoptimizeThreads()));
+		settings.setStripIcc(booleanProperty(props, "preoptimize.strip.icc", settings.isStripIcc()));
+		settings.setBackendPolicy(enumProperty(props, "backend.policy", BackendPolicy.class, settings.getBackendPolicy()));
+		settings.setBackendSizeThreshold(intProperty(props, "backend.size.threshold", settings.getBackendSizeThreshold()));
+		settings.setBackendCreditReserve(intProperty(props, "backend.credit.reserve", settings.getBackendCreditReserve()));
+		settings.setLocalFallback(booleanProperty(props, "backend.local.fallback", settings.isLocalFallback()));
+		settings.setLocalJpegQuality(intProperty(props, "local.jpeg.quality", settings.getLocalJpegQuality()));
+		settings.setScheduleLanes(booleanProperty(props, "schedule.lanes", settings.isScheduleLanes()));
+		settings.setScheduleLaneThreshold(intProperty(props, "schedule.lane.threshold", settings.getScheduleLaneThreshold()));
+		settings.setMetricsLog(booleanProperty(props, "metrics.log", settings.isMetricsLog()));
+		settings.setMetricsFile(props.getProperty("metrics.file", settings.getMetricsFile()).trim());
+		settings.setMetricsHttpHost(props.getProperty("metrics.http.host", settings.getMetricsHttpHost()).trim());
+		settings.setMetricsHttpPort(intProperty(props, "metrics.http.port", settings.getMetricsHttpPort()));
+		return settings;
+	}
+	
+	private static int intProperty(Properties props, String name, int defaultValue) {
+		String value = props.getProperty(name);
+		return value != null && !value.trim().isEmpty() ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+	
+	/**
+	 * Метод для получения значения перечисления без учета регистра. Неизвестное значение заменяется значением по умолчанию с записью в журнал.
+	 */
+	private static <E extends Enum<E>> E enumProperty(Properties props, String name, Class<E> type, E defaultValue) {
+		String value = props.getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Enum.valueOf(type, value.trim().toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid property = {}, value = {}, default = {}", name, value.trim(), defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	private static boolean booleanProperty(Properties props, String name, boolean defaultValue) {
+		String value = props.getProperty(name);
+		return value != null && !value.trim().isEmpty() ? Boolean.parseBoolean(value.trim()) : defaultValue;
+	}
+}
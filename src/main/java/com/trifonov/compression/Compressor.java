@@ -1,20 +1,40 @@
 package com.trifonov.compression;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 
 
@@ -23,48 +43,156 @@ import org.apache.logging.log4j.Logger;
 
 
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.tinify.AccountException;
 import com.tinify.ClientException;
 import com.tinify.ConnectionException;
 import com.tinify.ServerException;
-import com.tinify.Source;
-import com.tinify.Tinify;
 
 /**
- * Класс для сжатия файлов. Непосредственно для сжатия используется библиотека Tinify.
+ * Класс для сжатия файлов. Непосредственно для сжатия используется TinyPNG API, каждый ключ работает через собственный {@link TinifyClient}.
+ * В зависимости от настроек часть файлов сжимается локально через {@link LocalBackend}, способ сжатия файла выбирает {@link BackendRouter}.
  * @author Alexandr Trifonov.
  *
  */
 public class Compressor {
 	/**
-	 * Количество потоков для сжатия файлов.
+	 * Количество попыток сжатия изображения из архива после ошибок сервера, соединения или ключа.
 	 */
-	private final static int THREAD_COUNT = 10;
+	private final static int ARCHIVE_ENTRY_ATTEMPTS = 3;
 	private final Logger logger = LogManager.getLogger();
+	/**
+	 * Настройки сжатия.
+	 */
+	private final CompressionSettings settings;
+	/**
+	 * Подписчики на прогресс сжатия.
+	 */
+	private final List<CompressionListener> listeners = new CopyOnWriteArrayList<>();
+	/**
+	 * Признак отмены сжатия.
+	 */
+	private volatile boolean cancelled;
+	/**
+	 * Наблюдатель за директорией в режиме наблюдения.
+	 */
+	private volatile DirectoryWatcher watcher;
+	/**
+	 * Координатор узлов при совместном сжатии одного дерева файлов несколькими узлами.
+	 */
+	private volatile ClusterCoordinator cluster;
+	/**
+	 * Признак того, что в пуле ключей не осталось сжатий.
+	 */
+	private volatile boolean keysFinished;
 	
 	/**
 	 * Количество сжатых файлов.
 	 */
 	private AtomicInteger countCompressed;
 	/**
-	 * Очередь с файлами для сжатия.
+	 * Количество файлов, которые не удалось сжать.
+	 */
+	private AtomicInteger countFailed;
+	/**
+	 * Суммарный размер сжатых файлов до сжатия.
+	 */
+	private AtomicLong bytesIn;
+	/**
+	 * Суммарный размер сжатых файлов после сжатия.
+	 */
+	private AtomicLong bytesOut;
+	/**
+	 * Количество файлов, поставленных в очередь на сжатие.
+	 */
+	private AtomicLong filesTotal;
+	/**
+	 * Время начала сжатия.
+	 */
+	private long startNanos;
+	/**
+	 * Индекс сжатых файлов, отсутствует если отключен настройками.
+	 */
+	private CompressionIndex index;
+	/**
+	 * Группировка одинаковых файлов, отсутствует если отключена настройками или включен потоковый режим.
+	 */
+	private Deduplicator deduplicator;
+	/**
+	 * Количество дубликатов, получивших содержимое сжатого файла без отдельной загрузки.
+	 */
+	private AtomicInteger countDeduplicated;
+	/**
+	 * Количество повторных постановок файлов в очередь после ошибок сервера или соединения.
+	 */
+	private AtomicLong countRetries;
+	/**
+	 * Количество файлов, сжатых локально.
+	 */
+	private AtomicInteger countLocal;
+	/**
+	 * Количество попыток сжатия файлов, завершившихся ошибкой сервера или соединения.
+	 */
+	private Map<FileInfo, Integer> fileAttempts;
+	/**
+	 * Выключатель, приостанавливающий все потоки при недоступности TinyPNG.
+	 */
+	private CircuitBreaker breaker;
+	/**
+	 * Локальная оптимизация перед загрузкой, отсутствует если отключена настройками.
+	 */
+	private LosslessOptimizer optimizer;
+	/**
+	 * Выбор способа сжатия файла и локальное сжатие.
+	 */
+	private BackendRouter router;
+	private LocalBackend localBackend;
+	/**
+	 * Пул потоков для локальной оптимизации и локального сжатия, отсутствует если оба отключены настройками.
+	 */
+	private ExecutorService cpuPool;
+	/**
+	 * Стадия записи сжатых файлов.
+	 */
+	private OutputStage output;
+	/**
+	 * Стадия записи вариантов сжатых файлов, отсутствует, если варианты не заданы.
+	 */
+	private VariantStage variants;
+	/**
+	 * Потоки для скачивания вариантов.
+	 */
+	private ExecutorService variantPool;
+	/**
+	 * Количество записанных вариантов.
+	 */
+	private AtomicInteger countVariants;
+	/**
+	 * Сжатие изображений внутри архивов, отсутствует, если отключено настройками.
+	 */
+	private ArchiveRewriter archiveRewriter;
+	/**
+	 * Потоки для сжатия архивов и изображений внутри архивов.
+	 */
+	private ExecutorService archivePool;
+	/**
+	 * Журнал сжатия, отсутствует если отключен настройками.
 	 */
-	private Queue<FileInfo> files;
+	private CompressionJournal journal;
 	/**
-	 * Очередь с файлами, которые не удалось сжать.
+	 * Признак завершения обхода источника файлов.
 	 */
-	private Queue<FileInfo> failedCompressedFiles;
+	private volatile boolean discovered;
 	/**
-	 * Очередь с несжатыми файлами.
+	 * Очередь с файлами для сжатия.
 	 */
-	private Queue<FileInfo> uncompressedFiles;
+	private FileQueue files;
 	/**
-	 * Список с файлами к которым не был получен доступ.
+	 * Каталог найденных файлов с состояниями: несжатые файлы, файлы, которые не удалось сжать, и файлы, к которым не был получен доступ.
 	 */
-	private List<FileInfo> failedReadFilesList;
+	private FileCatalog catalog;
 	/**
 	 * Очередь с битыми ключами.
 	 */
@@ -77,151 +205,1614 @@ public class Compressor {
 	 * Очередь с неиспользованными до лимита ключами.
 	 */
 	private Queue<String> incompleteKeys;		
+	/**
+	 * Остатки сжатий ключей после сжатия.
+	 */
+	private Map<String, Integer> keyCredits;
+	/**
+	 * Учет сжатий ключей между запусками, отсутствует если отключен настройками.
+	 */
+	private KeyLedger ledger;
+	/**
+	 * Метрики сжатия.
+	 */
+	private CompressionMetrics metrics;
+	
+	public Compressor() {
+		this(new CompressionSettings());
+	}
+	
+	public Compressor(CompressionSettings settings) {
+		this.settings = settings;
+	}
 	
 	/**
 	 * Метод для сжатия файлов. В качестве входного параметра принимает абсолютный пути директории с файлами для первоначального процесса сжатия. Если после предыдущего запуска приложения остались несжатые файлы в 
 	 * виде json-объектов, то метод также принимает в качестве входного параметра абсолютное имя файла с json-объектами.
-	 * Сжатие файлов происходит в несколько потоков. Каждый поток использует один ключ для сжатия нескольких файлов. Один ключ позволяет сжать 500 файлов.
-	 * Перед началом сжатия происходит сортировка файлов по размеру и сжатие начинается с файлов с максимальным размером.
+	 * Сжатие файлов происходит в несколько потоков, количество которых задается настройками. Перед сжатием каждого файла поток берет в аренду одно сжатие
+	 * из пула ключей, поэтому один ключ может использоваться несколькими потоками. Один ключ позволяет сжать 500 файлов.
+	 * Файлы выдаются потокам из полос больших и маленьких файлов так, чтобы оценочное время сжатия полос уменьшалось равномерно,
+	 * оценка строится по наблюдаемому времени сжатия байта. Если полосы отключены настройками, сжатие идет от больших файлов к маленьким.
+	 * В потоковом режиме обход директории выполняется одновременно со сжатием через ограниченную очередь, и порядок файлов
+	 * соблюдается только в пределах очереди.
+	 * Ход сжатия записывается в журнал. Если журнал остался от прерванного запуска с тем же источником, сжатие продолжается с места остановки:
+	 * после завершенного обхода файлы берутся из журнала, иначе обход повторяется без уже сжатых файлов.
+	 * Метод блокируется до завершения всех потоков. Во время сжатия подписчики периодически получают прогресс, сжатие может быть отменено методом {@link #cancel()}.
 	 * @param sourcePath Директория с файлами для сжатия или файл с json-объектами файлов для сжатия. 
 	 * @param keysPath Абсолютное имя файла с ключами.
 	 */
 	public void compress(Path sourcePath, Path keysPath) {		
-		List<FileInfo> initFilesList = new LinkedList<>();
-		failedReadFilesList = new LinkedList<>();
-		
+		failedKeys = new ConcurrentLinkedQueue<>();
+		wasteKeys = new ConcurrentLinkedQueue<>();
+		incompleteKeys = new ConcurrentLinkedQueue<>();		
+		keyCredits = Collections.emptyMap();
+		breaker = new CircuitBreaker(settings.getBreakerThreshold(), settings.getBreakerOpenMillis(), settings.getBreakerMaxOpenMillis());
+		if (cancelled) {
+			breaker.cancel();
+		}
+		index = openIndex();
+		output = new OutputStage(Files.isDirectory(sourcePath) ? sourcePath : null,
+				settings.getOutputDir().isEmpty() ? null : Paths.get(settings.getOutputDir()),
+				settings.getBackupDir().isEmpty() ? null : Paths.get(settings.getBackupDir()));
+		cluster = openCluster(sourcePath);
+		boolean watching = cluster == null && isWatchable(sourcePath);
+		// При наблюдении файл получает прежний номер при каждом изменении, иначе каталог рос бы все время работы.
+		catalog = new FileCatalog(watching);
+		if (cluster != null) {
+			// Узел, который взял шард после другого узла, пропускает сжатые файлы по журналу шарда.
+			journal = null;
+			logger.info("Compression journal is not used in cluster mode");
+		}
+		if (watching) {
+			// При запуске наблюдения директория всегда обходится заново, уже сжатые файлы пропускаются по индексу.
+			journal = null;
+			logger.info("Compression journal is not used in watch mode");
+		}
+		CompressionJournal.State resumed = watching || cluster != null ? null : openJournal(sourcePath);
+		if (resumed != null) {
+			resumed.getFailed().forEach(this::failedCompressed);
+			if (resumed.isDiscovered()) {
+				resumed.getFailedRead().forEach(this::readFailed);
+			}
+		}
+		int capacity = settings.isStreaming() || watching ? settings.getQueueCapacity() : Integer.MAX_VALUE;
+		files = settings.isScheduleLanes() ? new SizeLaneQueue(catalog, capacity, settings.getScheduleLaneThreshold())
+				: new PriorityWindowQueue(catalog, capacity);
+		filesTotal = new AtomicLong(0);
+		metrics = new CompressionMetrics(settings.getEngine() != ExecutionEngine.THREADS ? settings.getAsyncWindow() : settings.getWorkerCount(), files::size);
+		IdRing[] shards = cluster != null ? new IdRing[cluster.getShards()] : null;
+		FileSink sink = cluster != null ? file -> {
+			IdRing shard = shards[cluster.shardOf(file.getName())];
+			int id = catalog.add(file.getName(), file.getSize());
+			synchronized (shard) {
+				shard.add(id);
+			}
+			return true;
+		} : file -> {
+			try {
+				int id = catalog.add(file.getName(), file.getSize());
+				if (id == FileCatalog.NONE) {
+					// Файл уже ожидает сжатия.
+					return true;
+				}
+				if (files.put(id)) {
+					filesTotal.incrementAndGet();
+					return true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		};
 		
-		fillFilesList(sourcePath, initFilesList, failedReadFilesList);
-		initFilesList = initFilesList.stream().sorted(Comparator.comparing(FileInfo::getSize).reversed()).collect(Collectors.toList());
-		files = new ConcurrentLinkedQueue<>(initFilesList);
-		initFilesList = null;
+		countDeduplicated = new AtomicInteger(0);
+		deduplicator = null;
+		discovered = false;
+		Thread discovery = null;
+		watcher = watching ? openWatcher(sourcePath, sink) : null;
+		if (cluster != null) {
+			if (settings.isDeduplicate() || settings.isWatch()) {
+				logger.info("Deduplication and watch mode are not available in cluster mode");
+			}
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new IdRing();
+			}
+			cluster.setShardListener(shard -> logger.info("Shard is lost. shard = {}, dropped files = {}", shard, dropShard(shard)));
+			discover(sourcePath, sink, null);
+			discovery = new Thread(() -> feedShards(shards), "shard-feeder");
+		} else if (settings.isStreaming() || watching) {
+			if (settings.isDeduplicate()) {
+				logger.info("Deduplication is not available in streaming mode");
+			}
+			discovery = new Thread(() -> {
+				discover(sourcePath, sink, resumed);
+				if (watcher != null && !cancelled) {
+					watcher.watch();
+				}
+				files.close();
+				logFilesTotal();
+			}, "file-discovery");
+			discovery.start();
+		} else if (settings.isDeduplicate()) {
+			deduplicator = new Deduplicator();
+			discover(sourcePath, deduplicator::add, resumed);
+			List<FileInfo> unreadable = new ArrayList<>();
+			deduplicator.flush(sink, unreadable);
+			unreadable.forEach(this::readFailed);
+			files.close();
+			logFilesTotal();
+		} else {
+			discover(sourcePath, sink, resumed);
+			files.close();
+			logFilesTotal();
+		}
 		
 		List<String> keys = getKeys(keysPath);
+		if (resumed != null) {
+			skipRetiredKeys(keys, resumed);
+		}
+		if (cluster != null) {
+			keys = cluster.claimKeys(keys, settings.getClusterNodeKeys());
+			discovery.start();
+		}
+		ledger = openLedger();
 		countCompressed = new AtomicInteger(0);
-		failedCompressedFiles = new ConcurrentLinkedQueue<>();
-		uncompressedFiles = new ConcurrentLinkedQueue<>();		
-		failedKeys = new ConcurrentLinkedQueue<>();
-		wasteKeys = new ConcurrentLinkedQueue<>();
-		incompleteKeys = new ConcurrentLinkedQueue<>();		
+		countFailed = new AtomicInteger(0);
+		bytesIn = new AtomicLong(0);
+		bytesOut = new AtomicLong(0);
+		countRetries = new AtomicLong(0);
+		countLocal = new AtomicInteger(0);
+		fileAttempts = new ConcurrentHashMap<>();
+		keysFinished = false;
+		startNanos = System.nanoTime();
 		
-		ExecutorService pool = Executors.newFixedThreadPool(THREAD_COUNT);
+		ScheduledExecutorService progressTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "compression-progress");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Таймер также сбрасывает журнал и журнал ключей, поэтому не отключается при нулевом периоде.
+		long interval = Math.max(1, settings.getProgressIntervalSeconds());
+		progressTimer.scheduleAtFixedRate(() -> {
+			publishProgress(false);
+			if (journal != null) {
+				journal.sync();
+			}
+			if (ledger != null) {
+				ledger.save();
+			}
+			reportMetrics();
+		}, interval, interval, TimeUnit.SECONDS);
+		MetricsServer metricsServer = startMetricsServer();
 		
-		Iterator<String> keyIterator = keys.iterator();	
-		while(keyIterator.hasNext()) {
-			String key = keyIterator.next();
-			pool.submit(() -> {
-				Tinify.setKey(key);
-				boolean validKeyAndHasFile = true;
-				while(validKeyAndHasFile) {
-					if (!files.isEmpty()) {				
-						FileInfo file = files.poll();
-						try {
-							Source  source = Tinify.fromFile(file.getName());
-							source.toFile(file.getName());
-							countCompressed.incrementAndGet();
-							logger.info("Compressed file = {}, size = {}", file.getName(), file.getSize());				
-						} catch (AccountException e) {
-							wasteKeys.add(key);
-							uncompressedFiles.add(file);				
-							validKeyAndHasFile = false;
-							logger.error("AccountException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
-						} catch (ClientException e) {
-							failedCompressedFiles.add(file);
-							logger.error("ClientException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
-						} catch (ServerException e) {
-							uncompressedFiles.add(file);
-							logger.error("ServerException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
-						} catch (ConnectionException e) {
-							uncompressedFiles.add(file);
-							logger.error("ConnectionException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
-						} catch (java.lang.Exception e) {
-							uncompressedFiles.add(file);
-							logger.error("java.lang.Exception, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
-						}
-					} else {
-						incompleteKeys.add(key);
-						validKeyAndHasFile = false;
-						logger.info("Files are finished. key = {}", key);
-					}	
+		optimizer = settings.isPreoptimize() ? new LosslessOptimizer(settings.isStripIcc()) : null;
+		router = BackendRouter.of(settings);
+		localBackend = router.usesLocal() ? new LocalBackend(settings.getLocalJpegQuality(), settings.isStripIcc()) : null;
+		cpuPool = null;
+		if (optimizer != null || localBackend != null) {
+			int threads = settings.getPreoptimizeThreads() > 0 ? settings.getPreoptimizeThreads() : Runtime.getRuntime().availableProcessors();
+			cpuPool = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "local-compression");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		variants = openVariants();
+		archiveRewriter = openArchives();
+		
+		try (KeyPool keyPool = new KeyPool(keys, settings, ledger, metrics)) {
+			if (cluster != null) {
+				cluster.setKeyListener(key -> keyPool.retire(key, KeyStatus.LOST));
+			}
+			logger.info("Key credit = {}", keyPool.getRemaining());
+			if (settings.getEngine() == ExecutionEngine.ASYNC) {
+				compressAsync(keyPool);
+			} else if (settings.getEngine() == ExecutionEngine.VIRTUAL) {
+				compressVirtual(keyPool);
+			} else {
+				ExecutorService pool = Executors.newFixedThreadPool(settings.getWorkerCount());
+				CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+				List<Future<Void>> workers = new ArrayList<>();
+				for (int i = 0; i < settings.getWorkerCount(); i++) {
+					workers.add(completion.submit(() -> compressFiles(keyPool), null));
 				}
-			});		
+				pool.shutdown();
+				
+				awaitWorkers(completion, workers.size());
+			}
 			
+			failedKeys.addAll(keyPool.getKeys(KeyStatus.INVALID));
+			wasteKeys.addAll(keyPool.getKeys(KeyStatus.EXHAUSTED));
+			incompleteKeys.addAll(keyPool.getKeys(KeyStatus.ACTIVE));
+			// Аренду ключа забрал другой узел кластера, остаток ключа сохраняется в отчете.
+			incompleteKeys.addAll(keyPool.getKeys(KeyStatus.LOST));
+			keyCredits = keyPool.getCredits();
+		} finally {
+			progressTimer.shutdownNow();
+			if (cpuPool != null) {
+				cpuPool.shutdownNow();
+			}
+			if (variantPool != null) {
+				variantPool.shutdownNow();
+			}
+			if (archivePool != null) {
+				archivePool.shutdownNow();
+			}
+			if (ledger != null) {
+				ledger.save();
+			}
+			if (metricsServer != null) {
+				metricsServer.close();
+			}
 		}
 		
-		logger.info("Compression is finished. Compressions count = " + countCompressed);
-		
-		pool.shutdown();
-		while(!pool.isTerminated()) {}
+		if (watcher != null) {
+			watcher.close();
+		}
+		if (discovery != null) {
+			// Если ключи закончились раньше обхода, оставшиеся файлы забираются из очереди по мере обхода и попадают в список несжатых,
+			// поэтому очередь остается ограниченной до конца обхода.
+			try {
+				int id;
+				while ((id = files.take()) != FileCatalog.NONE) {
+					addWithDuplicates(this::uncompressed, catalog.get(id));
+				}
+				discovery.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.error("Waiting for file discovery is interrupted", e);
+			}
+		}
+		files.drainTo(id -> addWithDuplicates(this::uncompressed, catalog.get(id)));
+		if (cluster != null) {
+			cluster.close();
+		}
+		closeIndex();
+		closeJournal();
 		
-		if (!files.isEmpty()) {
-			uncompressedFiles.addAll(files);
+		logger.info("Compression is finished. Compressions count = {}, cancelled = {}", countCompressed, cancelled);
+		if (variants != null) {
+			logger.info("Written variants = {}", countVariants);
 		}
-				
+		publishProgress(true);
+		reportMetrics();
 	}
-
-	public List<FileInfo> getFailedReadFilesList() {
-		return failedReadFilesList;
+	
+	/**
+	 * Метод для отмены сжатия. Потоки завершают сжатие текущих файлов и не берут новые, оставшиеся файлы попадают в список несжатых.
+	 */
+	public void cancel() {
+		cancelled = true;
+		if (files != null) {
+			files.close();
+		}
+		if (breaker != null) {
+			breaker.cancel();
+		}
+		if (watcher != null) {
+			watcher.close();
+		}
+		if (cluster != null) {
+			cluster.stop();
+		}
+		logger.info("Compression is cancelled");
 	}
-
-	public AtomicInteger getCountCompressed() {
-		return countCompressed;
+	
+	public boolean isCancelled() {
+		return cancelled;
 	}
-
-	public Queue<FileInfo> getFiles() {
-		return files;
+	
+	/**
+	 * Метод для подписки на прогресс сжатия.
+	 * @param listener подписчик
+	 */
+	public void addListener(CompressionListener listener) {
+		listeners.add(listener);
 	}
-
-	public Queue<FileInfo> getFailedCompressedFiles() {
-		return failedCompressedFiles;
+	
+	public void removeListener(CompressionListener listener) {
+		listeners.remove(listener);
 	}
-
-	public Queue<FileInfo> getUncompressedFiles() {
-		return uncompressedFiles;
+	
+	/**
+	 * Метод для получения текущего прогресса сжатия.
+	 * @return снимок прогресса
+	 */
+	public CompressionProgress getProgress() {
+		return progress(false);
 	}
-
-	public Queue<String> getFailedKeys() {
-		return failedKeys;
+	
+	/**
+	 * @return метрики текущего либо последнего сжатия, отсутствуют до начала сжатия
+	 */
+	public CompressionMetrics getMetrics() {
+		return metrics;
 	}
-
-	public Queue<String> getWasteKeys() {
-		return wasteKeys;
+	
+	/**
+	 * Метод для ожидания завершения рабочих потоков без активного ожидания.
+	 * @param completion сервис с задачами рабочих потоков
+	 * @param count количество задач
+	 */
+	private void awaitWorkers(CompletionService<Void> completion, int count) {
+		for (int i = 0; i < count; i++) {
+			try {
+				completion.take().get();
+			} catch (InterruptedException e) {
+				cancel();
+				Thread.currentThread().interrupt();
+				logger.error("Waiting for workers is interrupted", e);
+				return;
+			} catch (ExecutionException e) {
+				logger.error("Worker failed", e.getCause());
+			} catch (CancellationException e) {
+				logger.error("Worker cancelled", e);
+			}
+		}
 	}
-
-	public Queue<String> getIncompleteKeys() {
-		return incompleteKeys;
+	
+	private CompressionProgress progress(boolean finished) {
+		if (countCompressed == null) {
+			return new CompressionProgress(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, finished);
+		}
+		long skipped = index != null ? index.getHits() : 0;
+		return new CompressionProgress(filesTotal.get(), countCompressed.get(), countFailed.get(), skipped, countDeduplicated.get(),
+				countLocal.get(), countRetries.get(), bytesIn.get(), bytesOut.get(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), finished);
 	}
-
+	
+	private void publishProgress(boolean finished) {
+		CompressionProgress progress = progress(finished);
+		notifyListeners(listener -> listener.onProgress(progress));
+	}
+	
+	private void notifyListeners(Consumer<CompressionListener> event) {
+		for (CompressionListener listener : listeners) {
+			try {
+				event.accept(listener);
+			} catch (Exception e) {
+				logger.error("Compression listener failed", e);
+			}
+		}
+	}
+	
 	/**
-	 * Метод для наполнения списка json-объектов файлов для сжатия и списка json-объектов файлов, к которым не удалось получить доступ. 
-	 * @param sourcePath Директория с файлами либо файл со списком json-объектов.
-	 * @param initFilesList Список json-объектов файлов для сжатия.
-	 * @param failedReadFilesList Список json-объектов файлов, к которым не удалось получить доступ. 
+	 * Метод рабочего потока. Поток забирает файлы из очереди и для каждого файла, который не сжимается локально, берет в аренду одно сжатие из пула ключей.
+	 * После ошибки сервера или соединения ключ приостанавливается, а файл возвращается в очередь ограниченное количество раз.
+	 * Пока TinyPNG недоступен, поток ждет на выключателе.
+	 * Поток завершается, когда очередь пуста, в пуле не осталось сжатий или сжатие отменено.
+	 * @param keyPool пул ключей
 	 */
-	private void fillFilesList(Path sourcePath, List<FileInfo> initFilesList, List<FileInfo> failedReadFilesList) {				
-		if (Files.isDirectory(sourcePath)) {
-			ImageFileVisitor visitor = new ImageFileVisitor(initFilesList, failedReadFilesList);
+	private void compressFiles(KeyPool keyPool) {
+		while (!cancelled) {
+			int id;
 			try {
-				Files.walkFileTree(sourcePath, visitor);				
-			} catch (IOException e) {
-				logger.error("Failed get list all files for compressing. IOException. ", e);
-			} catch (Exception e) {
-				logger.error("Failed get list all files for compressing. IOException. ", e);
-			}		
-			
-			if (initFilesList.isEmpty()) {
-				logger.info("File list for compressing is empty");
+				id = files.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
 			}
-		} else {
-			ObjectMapper objMapper = new ObjectMapper();
+			if (id == FileCatalog.NONE) {
+				break;
+			}
+			FileInfo file = catalog.get(id);
+			long start = System.nanoTime();
+			if (isArchive(file)) {
+				compressArchive(keyPool, file);
+				metrics.busy(System.nanoTime() - start);
+				continue;
+			}
+			if (router.isLocal(file, keyPool)) {
+				compressLocally(file);
+				metrics.busy(System.nanoTime() - start);
+				continue;
+			}
+			Path optimized = preoptimize(file);
 			try {
-				List<FileInfo> files = objMapper.readValue(sourcePath.toFile(), new TypeReference<List<FileInfo>>() {});
-				initFilesList.addAll(files);
-			} catch (JsonParseException e) {
-				logger.error("JsonParseException. Failed getting initFilesList", e);
-			} catch (JsonMappingException e) {
-				logger.error("JsonMappingException. Failed getting initFilesList", e);
-			} catch (IOException e) {
-				logger.error("IOException. Failed getting initFilesList", e);
+				if (!compressFile(keyPool, file, optimized)) {
+					return;
+				}
+			} finally {
+				deleteOptimized(optimized);
+				metrics.busy(System.nanoTime() - start);
+			}
+		}
+		logger.info("Files are finished. thread = {}", Thread.currentThread().getName());
+	}
+
+	/**
+	 * Метод асинхронного сжатия. Загрузки выполняются неблокирующим HTTP-клиентом на нескольких потоках, учет результатов выполняется
+	 * отдельным пулом потоков, чтобы запись файлов не задерживала потоки HTTP-клиента.
+	 * @param keyPool пул ключей
+	 */
+	private void compressAsync(KeyPool keyPool) {
+		ExecutorService completionPool = Executors.newFixedThreadPool(settings.getAsyncThreads(), runnable -> {
+			Thread thread = new Thread(runnable, "async-completion");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try (AsyncTinifyClient client = new AsyncTinifyClient(settings.getEndpoint(), settings.getAsyncThreads(), metrics)) {
+			dispatch(keyPool, (lease, file, done) -> {
+				long start = System.nanoTime();
+				CompletableFuture<Path> optimizedFuture = preoptimizeAsync(file);
+				optimizedFuture.thenCompose(optimized -> client.compress(lease, file, optimized != null ? optimized : Paths.get(file.getName()), output, variants))
+						.handleAsync((temp, error) -> {
+							Path optimized = optimizedFuture.getNow(null);
+							try {
+								if (error != null) {
+									throw unwrap(error);
+								}
+								CompressionResult result = output.commit(Paths.get(file.getName()), temp);
+								compressed(keyPool, lease, file, optimized, result, start);
+							} catch (java.lang.Exception e) {
+								compressionFailed(keyPool, lease, file, e);
+							} finally {
+								deleteOptimized(optimized);
+								done.run();
+							}
+							return null;
+						}, completionPool);
+			});
+		} finally {
+			completionPool.shutdown();
+		}
+	}
+	
+	/**
+	 * Метод сжатия в виртуальных потоках. Каждый файл сжимается в своем виртуальном потоке тем же блокирующим клиентом Tinify,
+	 * что и в пуле рабочих потоков, поэтому ожидание ответа сервера не занимает поток платформы.
+	 * Количество одновременных запросов одного ключа ограничено семафором ключа.
+	 * @param keyPool пул ключей
+	 */
+	private void compressVirtual(KeyPool keyPool) {
+		Map<String, Semaphore> keyPermits = new ConcurrentHashMap<>();
+		ThreadFactory threads = Thread.ofVirtual().name("compression-", 1).factory();
+		dispatch(keyPool, (lease, file, done) -> {
+			Semaphore permits = keyPermits.computeIfAbsent(lease.getKey(), key -> new Semaphore(settings.getVirtualKeyConcurrency()));
+			threads.newThread(() -> {
+				Path optimized = preoptimize(file);
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					keyPool.release(lease, false);
+					addWithDuplicates(this::uncompressed, file);
+					deleteOptimized(optimized);
+					done.run();
+					return;
+				}
+				long start = System.nanoTime();
+				try {
+					CompressionResult result;
+					try {
+						result = lease.getClient().compress(file, optimized != null ? optimized : Paths.get(file.getName()), output, variants);
+					} finally {
+						permits.release();
+					}
+					compressed(keyPool, lease, file, optimized, result, start);
+				} catch (java.lang.Exception e) {
+					compressionFailed(keyPool, lease, file, e);
+				} finally {
+					deleteOptimized(optimized);
+					done.run();
+				}
+			}).start();
+		});
+	}
+	
+	/**
+	 * Метод для выдачи файлов асинхронному сжатию либо виртуальным потокам. Один поток забирает файлы из очереди и берет аренду ключа,
+	 * а сжатие запускается без ожидания результата. Количество файлов в обработке ограничено окном, поэтому при заполненном окне
+	 * поток ждет завершения сжатия и не берет новые файлы.
+	 * Метод завершается, когда очередь пуста и все файлы обработаны, в пуле не осталось сжатий или сжатие отменено.
+	 * @param keyPool пул ключей
+	 * @param upload запуск сжатия файла по аренде
+	 */
+	private void dispatch(KeyPool keyPool, Upload upload) {
+		int windowSize = settings.getAsyncWindow();
+		Semaphore window = new Semaphore(windowSize);
+		try {
+			while (!cancelled) {
+				int id = files.take();
+				if (id == FileCatalog.NONE) {
+					// Файлы в обработке могут вернуться в очередь после ошибки, поэтому очередь проверяется после их завершения.
+					window.acquire(windowSize);
+					window.release(windowSize);
+					if (files.isEmpty()) {
+						break;
+					}
+					continue;
+				}
+				FileInfo file = catalog.get(id);
+				window.acquire();
+				long start = System.nanoTime();
+				Runnable done = () -> {
+					metrics.busy(System.nanoTime() - start);
+					window.release();
+				};
+				if (isArchive(file)) {
+					archivePool.execute(() -> {
+						try {
+							compressArchive(keyPool, file);
+						} finally {
+							done.run();
+						}
+					});
+					continue;
+				}
+				if (router.isLocal(file, keyPool)) {
+					compressLocallyAsync(file).whenComplete((result, error) -> done.run());
+					continue;
+				}
+				KeyLease lease = acquire(keyPool, file);
+				if (lease == null) {
+					window.release();
+					if (keysFinished || cancelled) {
+						break;
+					}
+					continue;
+				}
+				upload.start(lease, file, done);
+			}
+			window.acquire(windowSize);
+			window.release(windowSize);
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			logger.error("Compression dispatch is interrupted", e);
+		}
+		logger.info("Files are finished. engine = {}", settings.getEngine());
+	}
+	
+	/**
+	 * Запуск сжатия файла по аренде без ожидания результата.
+	 */
+	private interface Upload {
+		/**
+		 * @param lease аренда ключа
+		 * @param file файл
+		 * @param done действие, которое необходимо выполнить после учета результата
+		 */
+		void start(KeyLease lease, FileInfo file, Runnable done);
+	}
+	
+	/**
+	 * Метод для сжатия одного файла с арендой ключа.
+	 * @param keyPool пул ключей
+	 * @param file файл
+	 * @param optimized результат локальной оптимизации, который загружается вместо исходного файла, может отсутствовать
+	 * @return false, если поток должен завершиться
+	 */
+	private boolean compressFile(KeyPool keyPool, FileInfo file, Path optimized) {
+		KeyLease lease = acquire(keyPool, file);
+		if (lease == null) {
+			return !keysFinished && !cancelled;
+		}
+		long start = System.nanoTime();
+		try {
+			CompressionResult result = lease.getClient().compress(file, optimized != null ? optimized : Paths.get(file.getName()), output, variants);
+			compressed(keyPool, lease, file, optimized, result, start);
+		} catch (java.lang.Exception e) {
+			compressionFailed(keyPool, lease, file, e);
+		}
+		return true;
+	}
+	
+	/**
+	 * Метод для аренды сжатия перед загрузкой файла в TinyPNG. Если аренда невозможна, файл сжимается локально либо попадает в список несжатых.
+	 * Метод ждет свободный ключ и доступность TinyPNG.
+	 * @param keyPool пул ключей
+	 * @param file файл
+	 * @return аренда либо null, если файл уже обработан без TinyPNG. Закончившиеся ключи отмечаются флагом {@link #keysFinished}
+	 */
+	private KeyLease acquire(KeyPool keyPool, FileInfo file) {
+		KeyLease lease;
+		try {
+			lease = keyPool.lease();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			lease = null;
+		}
+		if (lease == null) {
+			if (router.isFallback(file) && !cancelled) {
+				compressLocally(file);
+				return null;
+			}
+			keysFinished = true;
+			addWithDuplicates(this::uncompressed, file);
+			logger.info("Keys are finished. file = {}", file.getName());
+			return null;
+		}
+		if (breaker.isOpen() && router.isFallback(file) && !cancelled) {
+			keyPool.release(lease, false);
+			compressLocally(file);
+			return null;
+		}
+		boolean permitted;
+		try {
+			permitted = !cancelled && breaker.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			permitted = false;
+		}
+		if (!permitted) {
+			keyPool.release(lease, false);
+			addWithDuplicates(this::uncompressed, file);
+			return null;
+		}
+		return lease;
+	}
+	
+	/**
+	 * Метод для учета файла, успешно сжатого TinyPNG.
+	 * @param keyPool пул ключей
+	 * @param lease аренда, по которой выполнено сжатие
+	 * @param file файл
+	 * @param optimized результат локальной оптимизации, может отсутствовать
+	 * @param result результат сжатия
+	 * @param start время начала загрузки в наносекундах
+	 * @throws IOException ошибка замены результата локальной оптимизацией
+	 */
+	private void compressed(KeyPool keyPool, KeyLease lease, FileInfo file, Path optimized, CompressionResult result, long start) throws IOException {
+		if (optimized != null && result.getSize() > Files.size(optimized)) {
+			result = useOptimized(file, optimized);
+		}
+		files.completed(file.getId(), System.nanoTime() - start);
+		keyPool.release(lease, true);
+		breaker.onSuccess();
+		logger.info("Compressed file = {}, size = {}, compressed size = {}, key = {}", file.getName(), file.getSize(), result.getSize(), lease.getKey());
+		completed(file, result, lease.getKey());
+	}
+	
+	/**
+	 * Метод для обработки ошибки сжатия TinyPNG: ключ выводится из пула либо приостанавливается, а файл возвращается в очередь
+	 * или попадает в отчет.
+	 * @param keyPool пул ключей
+	 * @param lease аренда, по которой выполнялось сжатие
+	 * @param file файл
+	 * @param error ошибка сжатия
+	 */
+	private void compressionFailed(KeyPool keyPool, KeyLease lease, FileInfo file, java.lang.Exception error) {
+		String key = lease.getKey();
+		try {
+			throw error;
+		} catch (CredentialsException e) {
+			keyPool.retire(lease, KeyStatus.INVALID);
+			breaker.onSuccess();
+			journalKey(key, KeyStatus.INVALID);
+			files.requeue(file.getId());
+			logger.error("CredentialsException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		} catch (AccountException e) {
+			keyPool.retire(lease, KeyStatus.EXHAUSTED);
+			breaker.onSuccess();
+			journalKey(key, KeyStatus.EXHAUSTED);
+			files.requeue(file.getId());
+			logger.error("AccountException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		} catch (ClientException e) {
+			keyPool.release(lease, false);
+			breaker.onSuccess();
+			addWithDuplicates(this::failedCompressed, file);
+			journalFailed(file);
+			countFailed.incrementAndGet();
+			metrics.failure();
+			logger.error("ClientException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		} catch (UploadException e) {
+			// Файл не удалось прочитать или он изменился во время загрузки: сервер и ключ исправны, поэтому ключ не приостанавливается,
+			// а выключатель ошибку не учитывает. Файл попадает в список недоступных, при наблюдении он будет найден после следующего изменения.
+			keyPool.release(lease, false);
+			breaker.release();
+			fileAttempts.remove(file);
+			addWithDuplicates(this::readFailed, file);
+			if (cluster != null) {
+				cluster.processed(file.getName(), false);
+			}
+			logger.error("UploadException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		} catch (ServerException e) {
+			keyPool.backoff(lease);
+			retryLater(file, breaker.onFailure());
+			logger.error("ServerException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		} catch (ConnectionException e) {
+			keyPool.backoff(lease);
+			retryLater(file, breaker.onFailure());
+			logger.error("ConnectionException, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		} catch (java.lang.Exception e) {
+			keyPool.release(lease, false);
+			breaker.release();
+			addWithDuplicates(this::uncompressed, file);
+			countFailed.incrementAndGet();
+			metrics.failure();
+			logger.error("java.lang.Exception, message = {}, key = {}, file = {}, size = {}", e.getMessage(), key, file.getName(), file.getSize(), e);
+		}
+	}
+	
+	/**
+	 * Метод для сжатия изображений внутри архива. Каждое изображение сжимается с отдельной арендой ключа, новый архив заменяет исходный.
+	 * Если часть изображений не удалось сжать из-за ключей или отмены, архив попадает в список несжатых и сжимается повторно при следующем запуске.
+	 * @param keyPool пул ключей
+	 * @param file архив
+	 */
+	private void compressArchive(KeyPool keyPool, FileInfo file) {
+		long start = System.nanoTime();
+		Path path = Paths.get(file.getName());
+		AtomicBoolean incomplete = new AtomicBoolean();
+		try {
+			ArchiveRewriter.Result rewritten = archiveRewriter.rewrite(path, output, (entry, data) -> compressEntry(keyPool, entry, data, incomplete));
+			files.completed(file.getId(), System.nanoTime() - start);
+			if (rewritten.isSigned()) {
+				addWithDuplicates(this::uncompressed, file);
+				logger.info("Archive is signed and is not compressed. file = {}", file.getName());
+				return;
+			}
+			if (incomplete.get()) {
+				addWithDuplicates(this::uncompressed, file);
+				logger.info("Archive is compressed partially. file = {}, images = {}, compressed = {}", file.getName(), rewritten.getImages(), rewritten.getCompressed());
+				return;
+			}
+			CompressionResult result = rewritten.getOutput();
+			if (result == null) {
+				// Архив без уменьшившихся изображений записывается в отдельную директорию без изменений.
+				if (!output.isInPlace()) {
+					output.copy(path, path);
+				}
+				result = new CompressionResult(file.getSize(), ContentHash.of(path));
+			}
+			logger.info("Compressed archive = {}, entries = {}, images = {}, compressed = {}, size = {}, compressed size = {}", file.getName(),
+					rewritten.getEntries(), rewritten.getImages(), rewritten.getCompressed(), file.getSize(), result.getSize());
+			completed(file, result, "archive");
+		} catch (IOException | RuntimeException e) {
+			addWithDuplicates(this::failedCompressed, file);
+			journalFailed(file);
+			countFailed.incrementAndGet();
+			metrics.failure();
+			logger.error("Failed compress archive = {}, message = {}", file.getName(), e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Метод для сжатия одного изображения из архива через TinyPNG. После ошибки сервера, соединения или ключа сжатие повторяется
+	 * с другой арендой ограниченное количество раз.
+	 * @param keyPool пул ключей
+	 * @param entry имя записи архива
+	 * @param data содержимое изображения
+	 * @param incomplete признак, который устанавливается, если изображение не удалось сжать из-за ключей, ошибок или отмены
+	 * @return сжатое изображение либо null, если изображение остается без изменений
+	 */
+	private byte[] compressEntry(KeyPool keyPool, String entry, byte[] data, AtomicBoolean incomplete) {
+		for (int attempt = 0; attempt < ARCHIVE_ENTRY_ATTEMPTS && !cancelled; attempt++) {
+			KeyLease lease;
+			boolean permitted;
+			try {
+				lease = keyPool.lease();
+				if (lease == null) {
+					keysFinished = true;
+					break;
+				}
+				permitted = breaker.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (!permitted) {
+				keyPool.release(lease, false);
+				break;
+			}
+			String key = lease.getKey();
+			try {
+				TinifyClient client = lease.getClient();
+				byte[] compressed = client.download(client.shrink(data));
+				keyPool.release(lease, true);
+				breaker.onSuccess();
+				return compressed;
+			} catch (CredentialsException e) {
+				keyPool.retire(lease, KeyStatus.INVALID);
+				breaker.onSuccess();
+				journalKey(key, KeyStatus.INVALID);
+				logger.error("CredentialsException, message = {}, key = {}, entry = {}", e.getMessage(), key, entry);
+			} catch (AccountException e) {
+				keyPool.retire(lease, KeyStatus.EXHAUSTED);
+				breaker.onSuccess();
+				journalKey(key, KeyStatus.EXHAUSTED);
+				logger.error("AccountException, message = {}, key = {}, entry = {}", e.getMessage(), key, entry);
+			} catch (ClientException e) {
+				keyPool.release(lease, false);
+				breaker.onSuccess();
+				logger.error("ClientException, message = {}, key = {}, entry = {}", e.getMessage(), key, entry);
+				return null;
+			} catch (ServerException | ConnectionException e) {
+				keyPool.backoff(lease);
+				breaker.onFailure();
+				logger.error("{}, message = {}, key = {}, entry = {}", e.getClass().getSimpleName(), e.getMessage(), key, entry);
+			} catch (RuntimeException e) {
+				keyPool.release(lease, false);
+				breaker.release();
+				logger.error("java.lang.Exception, message = {}, key = {}, entry = {}", e.getMessage(), key, entry, e);
+				return null;
+			}
+		}
+		incomplete.set(true);
+		return null;
+	}
+	
+	private boolean isArchive(FileInfo file) {
+		return archiveRewriter != null && ArchiveRewriter.isArchive(Paths.get(file.getName()));
+	}
+	
+	/**
+	 * Метод для учета сжатого файла: счетчики, индекс, журнал и копирование в дубликаты.
+	 * @param file сжатый файл
+	 * @param result результат сжатия
+	 * @param source ключ TinyPNG либо имя способа сжатия
+	 */
+	private void completed(FileInfo file, CompressionResult result, String source) {
+		fileAttempts.remove(file);
+		if (file.getId() != FileCatalog.NONE) {
+			catalog.setStatus(file.getId(), FileStatus.COMPRESSED);
+		}
+		countCompressed.incrementAndGet();
+		bytesIn.addAndGet(file.getSize());
+		bytesOut.addAndGet(result.getSize());
+		metrics.compressed(source, file.getSize(), result.getSize());
+		recordIndex(file, result);
+		if (journal != null) {
+			journal.compressed(file);
+		}
+		if (cluster != null) {
+			cluster.processed(file.getName(), true);
+		}
+		fanOut(file, result);
+	}
+	
+	/**
+	 * Метод для локального сжатия файла в пуле потоков по количеству процессоров. Ключ при этом не расходуется.
+	 * @param file файл
+	 */
+	private void compressLocally(FileInfo file) {
+		try {
+			compressLocallyAsync(file).get();
+		} catch (InterruptedException e) {
+			// Сжатие в пуле продолжается и учитывает файл само.
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.error("Failed compress file locally = {}", file.getName(), e.getCause());
+		}
+	}
+	
+	/**
+	 * Метод для локального сжатия файла в пуле потоков по количеству процессоров без ожидания результата.
+	 * Учет результата выполняется в потоке пула.
+	 * @param file файл
+	 * @return завершение сжатия и учета файла
+	 */
+	private CompletableFuture<Void> compressLocallyAsync(FileInfo file) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return localBackend.compress(file, Paths.get(file.getName()), output);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, cpuPool).handle((result, error) -> {
+			if (error == null) {
+				countLocal.incrementAndGet();
+				logger.info("Compressed file = {}, size = {}, compressed size = {}, backend = {}", file.getName(), file.getSize(), result.getSize(),
+						localBackend.getName());
+				completed(file, result, localBackend.getName());
+			} else {
+				fileAttempts.remove(file);
+				addWithDuplicates(this::uncompressed, file);
+				countFailed.incrementAndGet();
+				metrics.failure();
+				logger.error("Failed compress file locally = {}, size = {}", file.getName(), file.getSize(), unwrap(error));
+			}
+			return null;
+		});
+	}
+	
+	/**
+	 * Метод для локальной оптимизации файла перед загрузкой. Оптимизация выполняется в отдельном пуле потоков по количеству процессоров,
+	 * чтобы число одновременных операций процессора не зависело от числа потоков сжатия.
+	 * @param file файл
+	 * @return временный файл с результатом либо null, если оптимизация отключена, не уменьшила файл или завершилась ошибкой
+	 */
+	private Path preoptimize(FileInfo file) {
+		CompletableFuture<Path> optimized = preoptimizeAsync(file);
+		try {
+			return optimized.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			optimized.thenAccept(this::deleteOptimized);
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Метод для локальной оптимизации файла перед загрузкой без ожидания результата.
+	 * @param file файл
+	 * @return временный файл с результатом либо null, если оптимизация отключена, не уменьшила файл или завершилась ошибкой.
+	 * Результат не завершается с ошибкой
+	 */
+	private CompletableFuture<Path> preoptimizeAsync(FileInfo file) {
+		if (optimizer == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return optimizer.optimize(Paths.get(file.getName()));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, cpuPool).exceptionally(error -> {
+			logger.info("Failed optimize file = {}, error = {}", file.getName(), unwrap(error).toString());
+			return null;
+		});
+	}
+	
+	/**
+	 * Метод для получения исходной ошибки асинхронной операции.
+	 * @param error ошибка завершения {@link CompletableFuture}
+	 * @return исходная ошибка
+	 */
+	private static java.lang.Exception unwrap(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof UncheckedIOException) && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error instanceof java.lang.Exception ? (java.lang.Exception) error : new java.lang.Exception(error);
+	}
+	
+	/**
+	 * Метод для записи результата локальной оптимизации, если он меньше результата TinyPNG.
+	 * @param file файл
+	 * @param optimized результат локальной оптимизации
+	 * @return размер и хеш содержимого записанного файла
+	 * @throws IOException если не удалось записать файл
+	 */
+	private CompressionResult useOptimized(FileInfo file, Path optimized) throws IOException {
+		output.copy(optimized, Paths.get(file.getName()));
+		logger.info("Locally optimized file is smaller than compressed. file = {}", file.getName());
+		return new CompressionResult(Files.size(optimized), ContentHash.of(optimized));
+	}
+	
+	private void deleteOptimized(Path optimized) {
+		if (optimized != null) {
+			try {
+				Files.deleteIfExists(optimized);
+			} catch (IOException e) {
+				logger.debug("Failed delete optimized file = {}", optimized, e);
+			}
+		}
+	}
+
+	/**
+	 * @return файлы, к которым не был получен доступ. Список создается из каталога при каждом вызове
+	 */
+	public List<FileInfo> getFailedReadFilesList() {
+		return catalog.list(FileStatus.FAILED_READ);
+	}
+
+	public AtomicInteger getCountCompressed() {
+		return countCompressed;
+	}
+
+	public FileQueue getFiles() {
+		return files;
+	}
+
+	/**
+	 * @return файлы, которые не удалось сжать. Список создается из каталога при каждом вызове
+	 */
+	public List<FileInfo> getFailedCompressedFiles() {
+		return catalog.list(FileStatus.FAILED_COMPRESSED);
+	}
+
+	/**
+	 * @return несжатые файлы. Список создается из каталога при каждом вызове
+	 */
+	public List<FileInfo> getUncompressedFiles() {
+		return catalog.list(FileStatus.UNCOMPRESSED);
+	}
+
+	/**
+	 * @return каталог файлов текущего либо последнего сжатия
+	 */
+	public FileCatalog getCatalog() {
+		return catalog;
+	}
+
+	public Queue<String> getFailedKeys() {
+		return failedKeys;
+	}
+
+	public Queue<String> getWasteKeys() {
+		return wasteKeys;
+	}
+
+	public Queue<String> getIncompleteKeys() {
+		return incompleteKeys;
+	}
+
+	/**
+	 * @return остатки сжатий ключей после сжатия, -1 для битых ключей
+	 */
+	public Map<String, Integer> getKeyCredits() {
+		return keyCredits;
+	}
+
+	/**
+	 * Метод для обхода источника файлов с записью найденных файлов в журнал. При продолжении после завершенного обхода
+	 * файлы берутся из журнала, при продолжении после незавершенного обхода уже сжатые файлы пропускаются.
+	 * @param sourcePath Директория с файлами либо файл со списком json-объектов.
+	 * @param target Приемник файлов для сжатия.
+	 * @param resumed Состояние из журнала прерванного запуска, может отсутствовать.
+	 */
+	private void discover(Path sourcePath, FileSink target, CompressionJournal.State resumed) {
+		if (resumed != null && resumed.isDiscovered()) {
+			for (FileInfo file : resumed.getPending()) {
+				if (!isIndexed(file) && !target.accept(file)) {
+					return;
+				}
+			}
+			discovered = true;
+			return;
+		}
+		AtomicBoolean stopped = new AtomicBoolean();
+		FileSink journaled = file -> {
+			if (resumed != null && resumed.isDone(file.getName())) {
+				return true;
+			}
+			if (journal != null) {
+				journal.pending(file);
+			}
+			if (target.accept(file)) {
+				return true;
+			}
+			stopped.set(true);
+			return false;
+		};
+		List<FileInfo> failedRead = Collections.synchronizedList(new ArrayList<>());
+		fillFilesList(sourcePath, journaled, failedRead);
+		boolean complete = !stopped.get() && !cancelled;
+		synchronized (failedRead) {
+			for (FileInfo file : failedRead) {
+				readFailed(file);
+				if (complete && journal != null) {
+					journal.failedRead(file);
+				}
+			}
+		}
+		if (!complete) {
+			return;
+		}
+		if (journal != null) {
+			journal.discovered();
+		}
+		discovered = true;
+	}
+	
+	/**
+	 * Метод для передачи в приемник json-объектов файлов для сжатия и наполнения списка json-объектов файлов, к которым не удалось получить доступ. 
+	 * @param sourcePath Директория с файлами либо файл со списком json-объектов.
+	 * @param sink Приемник json-объектов файлов для сжатия. При параллельном обходе вызывается из нескольких потоков.
+	 * @param failedReadFilesList Список json-объектов файлов, к которым не удалось получить доступ. 
+	 */
+	private void fillFilesList(Path sourcePath, FileSink sink, List<FileInfo> failedReadFilesList) {				
+		if (Files.isDirectory(sourcePath)) {
+			int parallelism = settings.getDiscoveryParallelism() > 0 ? settings.getDiscoveryParallelism() : Runtime.getRuntime().availableProcessors();
+			try {
+				if (parallelism > 1) {
+					new ParallelImageWalker(sink, failedReadFilesList, settings.isCheckImageHeader(), index, settings.isArchives()).walk(sourcePath, parallelism);
+				} else {
+					ImageFileVisitor visitor = new ImageFileVisitor(sink, failedReadFilesList);
+					visitor.setCheckHeader(settings.isCheckImageHeader());
+					visitor.setIndex(index);
+					visitor.setArchives(settings.isArchives());
+					Files.walkFileTree(sourcePath, visitor);
+				}
+			} catch (IOException e) {
+				logger.error("Failed get list all files for compressing. IOException. ", e);
+			} catch (Exception e) {
+				logger.error("Failed get list all files for compressing. IOException. ", e);
+			}		
+		} else {
+			ObjectMapper objMapper = new ObjectMapper();
+			try (MappingIterator<FileInfo> iterator = objMapper.readerFor(FileInfo.class).readValues(sourcePath.toFile())) {
+				while (iterator.hasNext()) {
+					FileInfo file = iterator.next();
+					if (!isIndexed(file) && !sink.accept(file)) {
+						break;
+					}
+				}
+			} catch (JsonParseException e) {
+				logger.error("JsonParseException. Failed getting initFilesList", e);
+			} catch (JsonMappingException e) {
+				logger.error("JsonMappingException. Failed getting initFilesList", e);
+			} catch (IOException e) {
+				logger.error("IOException. Failed getting initFilesList", e);
+			} catch (RuntimeException e) {
+				logger.error("RuntimeException. Failed getting initFilesList", e);
+			}
+		}
+	}
+	
+	/**
+	 * Метод для проверки, что файл из списка json-объектов уже сжат.
+	 * @param file файл
+	 * @return true, если файл есть в индексе сжатых файлов
+	 */
+	private boolean isIndexed(FileInfo file) {
+		if (index == null) {
+			return false;
+		}
+		try {
+			Path path = Paths.get(file.getName());
+			return index.isCompressed(path, Files.readAttributes(path, BasicFileAttributes.class));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Метод для повторной постановки файла в очередь после ошибки сервера или соединения. Если попытки файла исчерпаны
+	 * или сжатие отменено, файл попадает в список несжатых.
+	 * @param file файл
+	 * @param charged true, если ошибка учитывается как попытка файла. Ошибки во время паузы выключателя не учитываются.
+	 */
+	private void retryLater(FileInfo file, boolean charged) {
+		int attempts = charged ? fileAttempts.merge(file, 1, Integer::sum) : fileAttempts.getOrDefault(file, 0);
+		if (cancelled) {
+			fileAttempts.remove(file);
+			addWithDuplicates(this::uncompressed, file);
+		} else if (attempts <= settings.getRetryAttempts()) {
+			countRetries.incrementAndGet();
+			metrics.retry();
+			files.requeue(file.getId());
+			logger.info("Retry file = {}, attempts = {}", file.getName(), attempts);
+		} else {
+			fileAttempts.remove(file);
+			addWithDuplicates(this::uncompressed, file);
+			countFailed.incrementAndGet();
+			metrics.failure();
+		}
+	}
+	
+	/**
+	 * Метод для копирования сжатого файла в его дубликаты.
+	 * @param file сжатый файл
+	 * @param result результат сжатия
+	 */
+	private void fanOut(FileInfo file, CompressionResult result) {
+		if (deduplicator == null) {
+			return;
+		}
+		List<FileInfo> failed = new ArrayList<>();
+		for (FileInfo duplicate : deduplicator.fanOut(file, output, failed)) {
+			countDeduplicated.incrementAndGet();
+			recordIndex(duplicate, result);
+			if (journal != null) {
+				journal.compressed(duplicate);
+			}
+			logger.info("Copied compressed file = {} to duplicate = {}", file.getName(), duplicate.getName());
+		}
+		failed.forEach(this::uncompressed);
+	}
+	
+	/**
+	 * Метод для добавления файла в результат вместе с его дубликатами.
+	 * @param target результат
+	 * @param file файл
+	 */
+	private void addWithDuplicates(Consumer<FileInfo> target, FileInfo file) {
+		target.accept(file);
+		if (deduplicator != null) {
+			deduplicator.getDuplicates(file).forEach(target);
+		}
+	}
+	
+	/**
+	 * Метод для записи состояния файла в каталог. Файлы не из каталога, например дубликаты, добавляются в каталог.
+	 * @param file файл
+	 * @param status состояние
+	 */
+	private void mark(FileInfo file, FileStatus status) {
+		if (file.getId() != FileCatalog.NONE) {
+			catalog.setStatus(file.getId(), status);
+		} else {
+			catalog.add(file, status);
+		}
+	}
+	
+	private void uncompressed(FileInfo file) {
+		mark(file, FileStatus.UNCOMPRESSED);
+		if (cluster != null) {
+			cluster.processed(file.getName(), false);
+		}
+		notifyListeners(listener -> listener.onUncompressed(file));
+	}
+	
+	private void failedCompressed(FileInfo file) {
+		mark(file, FileStatus.FAILED_COMPRESSED);
+		if (cluster != null) {
+			cluster.processed(file.getName(), true);
+		}
+		notifyListeners(listener -> listener.onCompressionFailed(file));
+	}
+	
+	private void readFailed(FileInfo file) {
+		mark(file, FileStatus.FAILED_READ);
+		notifyListeners(listener -> listener.onReadFailed(file));
+	}
+	
+	/**
+	 * Метод для исключения ключей, которые были признаны битыми или израсходованными в прерванном запуске.
+	 * @param keys ключи
+	 * @param resumed состояние из журнала
+	 */
+	private void skipRetiredKeys(List<String> keys, CompressionJournal.State resumed) {
+		keys.removeIf(key -> {
+			KeyStatus status = resumed.getKeys().get(key);
+			if (status == KeyStatus.INVALID) {
+				failedKeys.add(key);
+				return true;
+			}
+			if (status == KeyStatus.EXHAUSTED) {
+				wasteKeys.add(key);
+				return true;
+			}
+			return false;
+		});
+	}
+	
+	private void journalKey(String key, KeyStatus status) {
+		if (journal != null) {
+			journal.key(key, status);
+		}
+	}
+	
+	/**
+	 * Метод для записи в журнал файла, который не удалось сжать, вместе с его дубликатами.
+	 * @param file файл
+	 */
+	private void journalFailed(FileInfo file) {
+		if (journal != null) {
+			journal.failed(file);
+			if (deduplicator != null) {
+				for (FileInfo duplicate : deduplicator.getDuplicates(file)) {
+					journal.failed(duplicate);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Метод для проверки, что источник можно сжимать в режиме наблюдения. Наблюдение возможно только за директорией
+	 * и только с индексом сжатых файлов, иначе файлы, записанные самим сжатием, сжимались бы повторно.
+	 * @param sourcePath источник файлов
+	 * @return true, если режим наблюдения включен и возможен
+	 */
+	private boolean isWatchable(Path sourcePath) {
+		if (!settings.isWatch()) {
+			return false;
+		}
+		if (!Files.isDirectory(sourcePath)) {
+			logger.error("Watch mode requires a source directory, source = {}", sourcePath);
+			return false;
+		}
+		if (index == null) {
+			logger.error("Watch mode requires the compression index, index.file is empty");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Метод для создания стадии записи вариантов. Варианты скачиваются потоками, которых не больше, чем одновременных скачиваний,
+	 * либо виртуальными потоками.
+	 * @return стадия записи вариантов либо null, если варианты не заданы
+	 */
+	private VariantStage openVariants() {
+		countVariants = new AtomicInteger(0);
+		variantPool = null;
+		if (settings.getVariants().isEmpty()) {
+			return null;
+		}
+		if (output.isInPlace() && index == null) {
+			logger.info("Variants are written next to source files and will be compressed again by the next run without the compression index");
+		}
+		variantPool = settings.getEngine() == ExecutionEngine.VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor()
+				: Executors.newCachedThreadPool(runnable -> {
+					Thread thread = new Thread(runnable, "output-variant");
+					thread.setDaemon(true);
+					return thread;
+				});
+		logger.info("Variants = {}", settings.getVariants().size());
+		return new VariantStage(settings.getVariants(), output, variantPool, this::variantWritten);
+	}
+	
+	/**
+	 * Метод для учета записанного варианта. Вариант записывается в индекс, чтобы следующий запуск не сжимал его как новый файл.
+	 * @param path файл варианта
+	 * @param result размер и хеш содержимого варианта
+	 */
+	private void variantWritten(Path path, CompressionResult result) {
+		countVariants.incrementAndGet();
+		if (index != null) {
+			try {
+				index.record(path, result.getContentHash());
+			} catch (IOException e) {
+				logger.error("Failed record variant = {} to index. IOException. ", path, e);
+			}
+		}
+	}
+	
+	/**
+	 * Метод для создания сжатия изображений внутри архивов. Архивы и их изображения обрабатываются потоками без ограничения количества,
+	 * количество одновременных изображений ограничено окном архива и пулом ключей. Изображения архива ждут аренду в пуле ключей,
+	 * поэтому и при сжатии в виртуальных потоках они обрабатываются потоками платформы, чтобы ожидание не занимало потоки-носители.
+	 * @return сжатие архивов либо null, если отключено настройками
+	 */
+	private ArchiveRewriter openArchives() {
+		archivePool = null;
+		if (!settings.isArchives()) {
+			return null;
+		}
+		archivePool = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "archive-compression");
+			thread.setDaemon(true);
+			return thread;
+		});
+		return new ArchiveRewriter(archivePool, settings.getArchiveWindow(), settings.getArchiveEntryMaxBytes());
+	}
+	
+	/**
+	 * @param sourcePath источник файлов. Шарды директории считаются по именам относительно нее, шарды списка файлов - по именам из списка
+	 * @return координатор узлов либо null, если сжатие не совместное
+	 */
+	private ClusterCoordinator openCluster(Path sourcePath) {
+		if (settings.getClusterDir().isEmpty()) {
+			return null;
+		}
+		String node = settings.getClusterNode().isEmpty() ? ClusterCoordinator.defaultNode() : settings.getClusterNode();
+		try {
+			ClusterCoordinator coordinator = new ClusterCoordinator(Paths.get(settings.getClusterDir()),
+					Files.isDirectory(sourcePath) ? sourcePath : null, node, settings.getClusterShards(), settings.getClusterLeaseMillis());
+			logger.info("Cluster mode. directory = {}, node = {}, shards = {}", settings.getClusterDir(), node, coordinator.getShards());
+			return coordinator;
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("Failed open cluster directory = {}, compression is not shared. ", settings.getClusterDir(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Метод для передачи в очередь файлов шардов, арендованных узлом. Следующий шард берется, когда очередь почти пуста,
+	 * поэтому быстрые узлы берут больше шардов. Если свободных шардов нет, метод ждет завершения шардов других узлов
+	 * либо истечения их аренды. Файлы из журнала шарда пропускаются.
+	 * @param shards номера файлов каталога по шардам
+	 */
+	private void feedShards(IdRing[] shards) {
+		int lowWater = Math.max(settings.getWorkerCount(), settings.getEngine() != ExecutionEngine.THREADS ? settings.getAsyncWindow() : 0) * 2;
+		long idleMillis = Math.max(100, settings.getClusterLeaseMillis() / 3);
+		try {
+			while (!cancelled && !keysFinished) {
+				if (files.size() >= lowWater) {
+					Thread.sleep(100);
+					continue;
+				}
+				int shard = cluster.claimShard();
+				if (shard < 0) {
+					if (cluster.isDone()) {
+						break;
+					}
+					Thread.sleep(files.isEmpty() ? idleMillis : 100);
+					continue;
+				}
+				Set<String> processed = cluster.processedFiles(shard);
+				IdRing bucket = shards[shard];
+				int[] ids = new int[bucket.size()];
+				int count = 0;
+				// Номера остаются в шарде, если шард придется взять повторно.
+				for (int i = 0; i < ids.length; i++) {
+					int id = bucket.poll();
+					bucket.add(id);
+					FileStatus status = catalog.getStatus(id);
+					if ((status == FileStatus.PENDING || status == FileStatus.UNCOMPRESSED) && !processed.contains(cluster.relativeName(catalog.getName(id)))) {
+						if (status == FileStatus.UNCOMPRESSED) {
+							catalog.setStatus(id, FileStatus.PENDING);
+						}
+						ids[count++] = id;
+					}
+				}
+				logger.info("Shard = {}, files = {}, skipped = {}", shard, count, ids.length - count);
+				cluster.start(shard, count);
+				for (int i = 0; i < count; i++) {
+					files.put(ids[i]);
+				}
+				filesTotal.addAndGet(count);
+				if (!cluster.isActive(shard)) {
+					// Аренду шарда забрали, пока его файлы передавались в очередь.
+					dropShard(shard);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Shard feeding is interrupted", e);
+		}
+		files.close();
+		logFilesTotal();
+	}
+	
+	/**
+	 * Метод для удаления из очереди файлов шарда, аренду которого забрал другой узел. Файлы остаются ожидающими сжатия,
+	 * поэтому узел может взять шард повторно.
+	 * @param shard номер шарда
+	 * @return количество удаленных файлов
+	 */
+	private int dropShard(int shard) {
+		List<Integer> queued = new ArrayList<>();
+		files.drainTo(queued::add);
+		int dropped = 0;
+		for (int id : queued) {
+			if (cluster.shardOf(catalog.getName(id)) == shard) {
+				dropped++;
+			} else {
+				files.requeue(id);
+			}
+		}
+		filesTotal.addAndGet(-dropped);
+		return dropped;
+	}
+	
+	/**
+	 * Метод для создания наблюдателя за директорией. Наблюдатель создается до обхода директории, чтобы не пропустить файлы,
+	 * которые появятся во время обхода.
+	 * @param sourcePath директория
+	 * @param sink приемник новых файлов
+	 * @return наблюдатель либо null, если директорию не удалось зарегистрировать
+	 */
+	private DirectoryWatcher openWatcher(Path sourcePath, FileSink sink) {
+		try {
+			return new DirectoryWatcher(sourcePath, sink, settings.isCheckImageHeader(), settings.isArchives(), index, settings.getWatchDebounceMillis());
+		} catch (IOException e) {
+			logger.error("Failed watch directory = {}. IOException. ", sourcePath, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Метод для открытия журнала. Если журнал остался от прерванного запуска с тем же источником файлов, он читается для продолжения сжатия.
+	 * @param sourcePath источник файлов для сжатия
+	 * @return состояние из журнала либо null, если сжатие начинается заново
+	 */
+	private CompressionJournal.State openJournal(Path sourcePath) {
+		journal = null;
+		if (settings.getJournalFile().isEmpty()) {
+			return null;
+		}
+		Path file = Paths.get(settings.getJournalFile());
+		Path source = sourcePath.toAbsolutePath().normalize();
+		CompressionJournal.State state = null;
+		if (settings.isResume()) {
+			try {
+				state = CompressionJournal.replay(file);
+			} catch (IOException e) {
+				logger.error("Failed read compression journal. IOException. ", e);
+			}
+			if (state != null && !source.toString().equals(state.getSource())) {
+				logger.info("Compression journal = {} belongs to other source = {}", file, state.getSource());
+				state = null;
+			}
+		}
+		try {
+			if (state != null) {
+				journal = CompressionJournal.resume(file, state, settings.getJournalSyncRecords(), settings.getJournalSyncMillis());
+				logger.info("Resume compression from journal = {}, pending files = {}, discovery finished = {}",
+						file, state.getPending().size(), state.isDiscovered());
+			} else {
+				journal = CompressionJournal.create(file, source, settings.getJournalSyncRecords(), settings.getJournalSyncMillis());
+			}
+		} catch (IOException e) {
+			logger.error("Failed open compression journal. IOException. ", e);
+			return null;
+		}
+		return state;
+	}
+	
+	/**
+	 * Метод для закрытия журнала. Журнал удаляется, если все найденные файлы обработаны, иначе остается для продолжения.
+	 */
+	private void closeJournal() {
+		if (journal == null) {
+			return;
+		}
+		if (discovered && !cancelled && catalog.count(FileStatus.UNCOMPRESSED) == 0) {
+			journal.delete();
+		} else {
+			journal.close();
+		}
+	}
+	
+	private void logFilesTotal() {
+		if (filesTotal.get() == 0) {
+			logger.info("File list for compressing is empty");
+		}
+	}
+	
+	/**
+	 * Метод для записи сжатого файла в индекс. Ошибка записи не влияет на результат сжатия.
+	 * При записи в отдельную директорию исходный файл не меняется, поэтому в индекс записывается хеш исходного файла.
+	 * @param file сжатый файл
+	 * @param result результат сжатия
+	 */
+	private void recordIndex(FileInfo file, CompressionResult result) {
+		if (index != null) {
+			try {
+				Path path = Paths.get(file.getName());
+				long contentHash = output.isInPlace() || !settings.isIndexVerify() ? result.getContentHash() : ContentHash.of(path);
+				index.record(path, contentHash);
+			} catch (IOException e) {
+				logger.error("Failed record compressed file = {} to index. IOException. ", file.getName(), e);
+			}
+		}
+	}
+	
+	private CompressionIndex openIndex() {
+		if (settings.getIndexFile().isEmpty()) {
+			return null;
+		}
+		try {
+			return CompressionIndex.open(Paths.get(settings.getIndexFile()), settings.isIndexVerify());
+		} catch (IOException e) {
+			logger.error("Failed open compression index. IOException. ", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Метод для записи сводки метрик в журнал и файл метрик. Ошибка записи не влияет на сжатие.
+	 */
+	private void reportMetrics() {
+		if (settings.isMetricsLog()) {
+			logger.info("Metrics: {}", metrics.summary());
+		}
+		if (!settings.getMetricsFile().isEmpty()) {
+			try {
+				metrics.write(Paths.get(settings.getMetricsFile()));
+			} catch (IOException e) {
+				logger.error("Failed write metrics file. IOException. ", e);
+			}
+		}
+	}
+	
+	private MetricsServer startMetricsServer() {
+		if (settings.getMetricsHttpPort() <= 0) {
+			return null;
+		}
+		try {
+			return MetricsServer.start(settings.getMetricsHttpHost(), settings.getMetricsHttpPort(), metrics);
+		} catch (IOException e) {
+			logger.error("Failed start metrics server. IOException. ", e);
+			return null;
+		}
+	}
+	
+	private KeyLedger openLedger() {
+		if (settings.getKeyLedgerFile().isEmpty()) {
+			return null;
+		}
+		try {
+			return KeyLedger.open(Paths.get(settings.getKeyLedgerFile()));
+		} catch (IOException e) {
+			logger.error("Failed open key ledger. IOException. ", e);
+			return null;
+		}
+	}
+	
+	private void closeIndex() {
+		if (index != null) {
+			logger.info("Skipped already compressed files = {}", index.getHits());
+			try {
+				index.close();
+			} catch (IOException e) {
+				logger.error("Failed close compression index. IOException. ", e);
 			}
 		}
 	}
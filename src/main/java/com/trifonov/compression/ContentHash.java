@@ -0,0 +1,110 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Быстрый некриптографический 64-битный хеш содержимого. Данные обрабатываются словами по 8 байт,
+ * поэтому хеш можно считать по частям, не держа все содержимое в памяти.
+ * @author Alexandr Trifonov
+ *
+ */
+public class ContentHash {
+	private final static long PRIME_1 = 0x9E3779B185EBCA87L;
+	private final static long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+	private final static long PRIME_3 = 0x165667B19E3779F9L;
+
+	private long hash = PRIME_3;
+	/**
+	 * Незавершенное слово и количество байт в нем.
+	 */
+	private long word;
+	private int wordBytes;
+	private long length;
+
+	/**
+	 * Метод для добавления данных в хеш.
+	 * @param data массив с данными
+	 * @param offset начало данных
+	 * @param count количество байт
+	 */
+	public void update(byte[] data, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			word |= (data[i] & 0xFFL) << (wordBytes << 3);
+			if (++wordBytes == 8) {
+				mix(word);
+				word = 0;
+				wordBytes = 0;
+			}
+		}
+		length += count;
+	}
+
+	public void update(byte[] data) {
+		update(data, 0, data.length);
+	}
+
+	/**
+	 * @return значение хеша для добавленных данных
+	 */
+	public long getValue() {
+		long h = hash;
+		if (wordBytes > 0) {
+			h ^= Long.rotateLeft(word * PRIME_2, 31) * PRIME_1;
+		}
+		h ^= length;
+		h ^= h >>> 33;
+		h *= PRIME_2;
+		h ^= h >>> 29;
+		h *= PRIME_3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private void mix(long value) {
+		hash ^= Long.rotateLeft(value * PRIME_2, 31) * PRIME_1;
+		hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_3;
+	}
+
+	/**
+	 * Метод для вычисления хеша массива байт.
+	 * @param data данные
+	 * @return хеш
+	 */
+	public static long of(byte[] data) {
+		ContentHash hash = new ContentHash();
+		hash.update(data);
+		return hash.getValue();
+	}
+
+	/**
+	 * Метод для вычисления хеша строки.
+	 * @param value строка
+	 * @return хеш
+	 */
+	public static long of(String value) {
+		return of(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Метод для вычисления хеша содержимого файла.
+	 * @param file файл
+	 * @return хеш
+	 * @throws IOException если не удалось прочитать файл
+	 */
+	public static long of(Path file) throws IOException {
+		ContentHash hash = new ContentHash();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				hash.update(buffer, 0, read);
+			}
+		}
+		return hash.getValue();
+	}
+}
@@ -0,0 +1,17 @@
+package com.trifonov.compression;
+
+import com.tinify.AccountException;
+
+/**
+ * Исключение для ключа, который TinyPNG отклонил как недействительный (HTTP 401).
+ * В отличие от исчерпанного ключа такой ключ попадает в отчет с битыми ключами.
+ * @author Alexandr Trifonov
+ *
+ */
+public class CredentialsException extends AccountException {
+	private static final long serialVersionUID = 1L;
+
+	public CredentialsException(String message, String type, int status) {
+		super(message, type, status);
+	}
+}
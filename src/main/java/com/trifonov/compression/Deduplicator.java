@@ -0,0 +1,195 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Класс для исключения повторной загрузки одинаковых файлов. Файлы группируются по размеру, файлы одного размера - по хешу содержимого
+ * с побайтовой проверкой совпадения. На сжатие отправляется один файл группы, после сжатия его результат копируется в результаты остальных файлов группы.
+ * Группировка возможна только после полного обхода директории, поэтому используется без потокового режима.
+ * @author Alexandr Trifonov
+ *
+ */
+public class Deduplicator {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Файлы, сгруппированные по размеру.
+	 */
+	private final Map<Long, List<FileInfo>> bySize = new HashMap<>();
+	/**
+	 * Дубликаты, сгруппированные по файлу, который отправляется на сжатие.
+	 */
+	private final Map<FileInfo, List<FileInfo>> duplicates = new ConcurrentHashMap<>();
+
+	/**
+	 * Метод для добавления найденного файла. Может использоваться как {@link FileSink}.
+	 * @param file файл
+	 * @return всегда true
+	 */
+	public synchronized boolean add(FileInfo file) {
+		bySize.computeIfAbsent(file.getSize(), size -> new ArrayList<>(1)).add(file);
+		return true;
+	}
+
+	/**
+	 * Метод для группировки добавленных файлов. Уникальные файлы и по одному файлу из каждой группы одинаковых файлов передаются в приемник.
+	 * @param sink приемник файлов для сжатия
+	 * @param failedReadFiles коллекция для файлов, которые не удалось прочитать при сравнении
+	 */
+	public synchronized void flush(FileSink sink, Collection<FileInfo> failedReadFiles) {
+		List<List<FileInfo>> sameSize = new ArrayList<>();
+		List<List<FileInfo>> groups = new ArrayList<>(bySize.values());
+		bySize.clear();
+		for (List<FileInfo> group : groups) {
+			if (group.size() == 1) {
+				if (!sink.accept(group.get(0))) {
+					return;
+				}
+			} else {
+				sameSize.add(group);
+			}
+		}
+		List<FileInfo> representatives = Collections.synchronizedList(new ArrayList<>());
+		sameSize.parallelStream().forEach(group -> representatives.addAll(groupByContent(group, failedReadFiles)));
+		int duplicatesCount = 0;
+		for (List<FileInfo> group : duplicates.values()) {
+			duplicatesCount += group.size();
+		}
+		logger.info("Duplicate files = {}, groups = {}", duplicatesCount, duplicates.size());
+		for (FileInfo representative : representatives) {
+			if (!sink.accept(representative)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Метод для получения дубликатов файла.
+	 * @param representative файл, отправленный на сжатие
+	 * @return дубликаты файла либо пустой список
+	 */
+	public List<FileInfo> getDuplicates(FileInfo representative) {
+		List<FileInfo> group = duplicates.get(representative);
+		return group != null ? group : Collections.emptyList();
+	}
+
+	/**
+	 * Метод для копирования сжатого файла во все его дубликаты. Каждый дубликат записывается через стадию записи.
+	 * @param representative сжатый файл
+	 * @param output стадия записи сжатых файлов
+	 * @param failed коллекция для дубликатов, которые не удалось заменить
+	 * @return дубликаты, которые были заменены
+	 */
+	public List<FileInfo> fanOut(FileInfo representative, OutputStage output, Collection<FileInfo> failed) {
+		List<FileInfo> group = duplicates.remove(representative);
+		if (group == null) {
+			return Collections.emptyList();
+		}
+		Path compressed = output.target(Paths.get(representative.getName()));
+		List<FileInfo> copied = new ArrayList<>(group.size());
+		for (FileInfo duplicate : group) {
+			try {
+				output.copy(compressed, Paths.get(duplicate.getName()));
+				copied.add(duplicate);
+			} catch (IOException e) {
+				failed.add(duplicate);
+				logger.error("Failed copy compressed file = {} to duplicate = {}", compressed, duplicate.getName(), e);
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Метод для группировки файлов одного размера по содержимому.
+	 * @param group файлы одного размера
+	 * @param failedReadFiles коллекция для файлов, которые не удалось прочитать
+	 * @return файлы для сжатия
+	 */
+	private List<FileInfo> groupByContent(List<FileInfo> group, Collection<FileInfo> failedReadFiles) {
+		Map<Long, List<List<FileInfo>>> byHash = new LinkedHashMap<>();
+		for (FileInfo file : group) {
+			long hash;
+			try {
+				hash = ContentHash.of(Paths.get(file.getName()));
+			} catch (IOException e) {
+				logger.info("failed read file = {}", file.getName());
+				failedReadFiles.add(file);
+				continue;
+			}
+			List<List<FileInfo>> candidates = byHash.computeIfAbsent(hash, h -> new ArrayList<>(1));
+			List<FileInfo> matched = null;
+			for (List<FileInfo> candidate : candidates) {
+				// Совпадение хеша подтверждается сравнением содержимого, чтобы коллизия не привела к подмене изображения.
+				if (sameContent(candidate.get(0), file)) {
+					matched = candidate;
+					break;
+				}
+			}
+			if (matched == null) {
+				matched = new ArrayList<>(2);
+				candidates.add(matched);
+			}
+			matched.add(file);
+		}
+		List<FileInfo> representatives = new ArrayList<>();
+		for (List<List<FileInfo>> candidates : byHash.values()) {
+			for (List<FileInfo> same : candidates) {
+				FileInfo representative = same.get(0);
+				representatives.add(representative);
+				if (same.size() > 1) {
+					duplicates.put(representative, new ArrayList<>(same.subList(1, same.size())));
+				}
+			}
+		}
+		return representatives;
+	}
+
+	private static boolean sameContent(FileInfo first, FileInfo second) {
+		byte[] bufferA = new byte[64 * 1024];
+		byte[] bufferB = new byte[bufferA.length];
+		try (InputStream a = Files.newInputStream(Paths.get(first.getName()));
+				InputStream b = Files.newInputStream(Paths.get(second.getName()))) {
+			while (true) {
+				int readA = readFully(a, bufferA);
+				int readB = readFully(b, bufferB);
+				if (readA != readB) {
+					return false;
+				}
+				for (int i = 0; i < readA; i++) {
+					if (bufferA[i] != bufferB[i]) {
+						return false;
+					}
+				}
+				if (readA < bufferA.length) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int length = 0;
+		int read;
+		while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+			length += read;
+		}
+		return length;
+	}
+}
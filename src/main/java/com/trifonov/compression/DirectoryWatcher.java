@@ -0,0 +1,253 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Класс для наблюдения за директорией с файлами для сжатия через {@link WatchService}. Директория регистрируется рекурсивно,
+ * новые поддиректории регистрируются по мере появления.
+ * Файл передается в приемник, когда его размер и время изменения не меняются в течение задержки после последнего события,
+ * поэтому файлы, которые еще записываются, не передаются. В приемник передаются только обычные файлы изображений,
+ * которых нет в индексе сжатых файлов, поэтому файлы, записанные самим сжатием, повторно не сжимаются.
+ * При переполнении очереди событий директория обходится заново, чтобы не пропустить файлы.
+ * @author Alexandr Trifonov
+ *
+ */
+public class DirectoryWatcher implements Closeable {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Приемник файлов для сжатия.
+	 */
+	private final FileSink sink;
+	/**
+	 * Проверять сигнатуру файла в дополнение к расширению.
+	 */
+	private final boolean checkHeader;
+	/**
+	 * Передавать в приемник ZIP и JAR архивы.
+	 */
+	private final boolean archives;
+	/**
+	 * Индекс сжатых файлов, файлы из которого пропускаются. Может отсутствовать.
+	 */
+	private final CompressionIndex index;
+	/**
+	 * Задержка в миллисекундах, в течение которой файл не должен меняться.
+	 */
+	private final long debounceMillis;
+	private final WatchService service;
+	/**
+	 * Зарегистрированные директории по ключам наблюдения.
+	 */
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	/**
+	 * Файлы, ожидающие окончания записи.
+	 */
+	private final Map<Path, Pending> pending = new HashMap<>();
+	private final Path root;
+
+	/**
+	 * @param root директория для наблюдения
+	 * @param sink приемник файлов для сжатия
+	 * @param checkHeader проверять сигнатуру файла в дополнение к расширению
+	 * @param archives передавать в приемник ZIP и JAR архивы
+	 * @param index индекс сжатых файлов, может отсутствовать
+	 * @param debounceMillis задержка в миллисекундах, в течение которой файл не должен меняться
+	 * @throws IOException если не удалось зарегистрировать директорию
+	 */
+	public DirectoryWatcher(Path root, FileSink sink, boolean checkHeader, boolean archives, CompressionIndex index, long debounceMillis) throws IOException {
+		this.root = root;
+		this.sink = sink;
+		this.checkHeader = checkHeader;
+		this.archives = archives;
+		this.index = index;
+		this.debounceMillis = Math.max(0, debounceMillis);
+		this.service = root.getFileSystem().newWatchService();
+		register(root, false);
+	}
+
+	/**
+	 * Метод для наблюдения за директорией. Блокируется до закрытия наблюдателя либо до отказа приемника принять файл.
+	 * Изменения, которые произошли после создания наблюдателя, учитываются, даже если метод вызван позже.
+	 */
+	public void watch() {
+		logger.info("Watching directory = {}, directories = {}", root, directories.size());
+		try {
+			while (true) {
+				WatchKey key;
+				if (pending.isEmpty()) {
+					key = service.take();
+				} else {
+					long wait = nextDeadline() - System.currentTimeMillis();
+					key = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : service.poll();
+				}
+				if (key != null) {
+					handle(key);
+				}
+				if (!flush()) {
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			logger.info("Watching is stopped. directory = {}", root);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.info("Watching is interrupted. directory = {}", root);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			logger.error("Failed close watch service", e);
+		}
+	}
+
+	private void handle(WatchKey key) {
+		Path dir = directories.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				logger.info("Watch events are lost, directory is scanned again. directory = {}", root);
+				register(root, true);
+				continue;
+			}
+			if (dir == null) {
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					// Файлы могли появиться в директории до ее регистрации.
+					register(path, true);
+				}
+			} else {
+				touch(path);
+			}
+		}
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+	}
+
+	/**
+	 * Метод для рекурсивной регистрации директории.
+	 * @param dir директория
+	 * @param scan true, если файлы директории необходимо проверить как измененные
+	 */
+	private void register(Path dir, boolean scan) {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			directories.put(key, dir);
+			for (Path child : stream) {
+				BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isDirectory()) {
+					register(child, scan);
+				} else if (scan && attrs.isRegularFile()) {
+					touch(child);
+				}
+			}
+		} catch (IOException e) {
+			logger.info("Failed register directory = {}, error = {}", dir, e.toString());
+		}
+	}
+
+	/**
+	 * Метод для отсрочки передачи файла после события.
+	 */
+	private void touch(Path path) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isRegularFile()) {
+				pending.put(path, new Pending(attrs, System.currentTimeMillis() + debounceMillis));
+			}
+		} catch (IOException e) {
+			pending.remove(path);
+		}
+	}
+
+	/**
+	 * Метод для передачи в приемник файлов, которые не менялись в течение задержки.
+	 * @return false, если приемник отказался принять файл
+	 */
+	private boolean flush() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, Pending>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Path, Pending> entry = iterator.next();
+			Pending state = entry.getValue();
+			if (state.deadline > now) {
+				continue;
+			}
+			Path path = entry.getKey();
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				iterator.remove();
+				continue;
+			}
+			if (attrs.size() != state.size || attrs.lastModifiedTime().toMillis() != state.lastModified) {
+				entry.setValue(new Pending(attrs, now + debounceMillis));
+				continue;
+			}
+			iterator.remove();
+			try {
+				if (!attrs.isRegularFile() || !(ImageFormat.isImage(path, checkHeader) || (archives && ArchiveRewriter.isArchive(path)))
+						|| (index != null && index.isCompressed(path, attrs))) {
+					continue;
+				}
+			} catch (IOException e) {
+				logger.info("Failed read file = {}, error = {}", path, e.toString());
+				continue;
+			}
+			logger.info("New file = {}, size = {}", path, attrs.size());
+			if (!sink.accept(new FileInfo(path.toString(), attrs.size()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long nextDeadline() {
+		long deadline = Long.MAX_VALUE;
+		for (Pending state : pending.values()) {
+			deadline = Math.min(deadline, state.deadline);
+		}
+		return deadline;
+	}
+
+	/**
+	 * Размер и время изменения файла при последнем событии.
+	 */
+	private static class Pending {
+		private final long size;
+		private final long lastModified;
+		private final long deadline;
+
+		private Pending(BasicFileAttributes attrs, long deadline) {
+			this.size = attrs.size();
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+			this.deadline = deadline;
+		}
+	}
+}
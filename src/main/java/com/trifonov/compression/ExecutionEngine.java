@@ -0,0 +1,21 @@
+package com.trifonov.compression;
+
+/**
+ * Способ выполнения запросов к TinyPNG в {@link Compressor}.
+ * @author Alexandr Trifonov
+ *
+ */
+public enum ExecutionEngine {
+	/**
+	 * Фиксированный пул рабочих потоков, каждый поток сжимает один файл за раз.
+	 */
+	THREADS,
+	/**
+	 * Асинхронные запросы через {@link AsyncTinifyClient} с ограниченным окном одновременных запросов.
+	 */
+	ASYNC,
+	/**
+	 * Отдельный виртуальный поток для каждого файла с ограничением одновременных запросов ключа.
+	 */
+	VIRTUAL
+}
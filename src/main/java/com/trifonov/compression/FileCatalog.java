@@ -0,0 +1,312 @@
+package com.trifonov.compression;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Компактный каталог найденных файлов. Файлу присваивается номер, по которому очереди и отчеты работают с файлом
+ * без хранения объектов {@link FileInfo}.
+ * Директория файла хранится один раз для всех файлов директории, имя файла в директории хранится в общем массиве байтов в UTF-8,
+ * размеры хранятся в массиве long, состояния в массиве byte. Объект {@link FileInfo} создается только на время обработки файла.
+ * Каталог только растет. Каталог с индексом имен, который используется в режиме наблюдения, хранит один номер на имя файла:
+ * повторно найденный файл получает прежний номер, поэтому каталог не растет от изменений уже известных файлов.
+ * @author Alexandr Trifonov
+ *
+ */
+public class FileCatalog {
+	/**
+	 * Номер отсутствующего файла.
+	 */
+	public final static int NONE = -1;
+	private final static int INITIAL_FILES = 1024;
+	private final static int INITIAL_NAMES = 64 * 1024;
+	private final static FileStatus[] STATUSES = FileStatus.values();
+
+	/**
+	 * Добавление и расширение массивов выполняются под блокировкой записи, чтение и смена состояния под блокировкой чтения.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Номера директорий по пути директории с разделителем в конце.
+	 */
+	private final Map<String, Integer> directoryIds = new HashMap<>();
+	private final List<String> directories = new ArrayList<>();
+	/**
+	 * Имена файлов в директориях в UTF-8 подряд.
+	 */
+	private byte[] names = new byte[INITIAL_NAMES];
+	private int namesLength;
+	/**
+	 * Начало имени файла в {@link #names}, имя заканчивается началом имени следующего файла.
+	 */
+	private int[] nameOffsets = new int[INITIAL_FILES];
+	private int[] directoryOf = new int[INITIAL_FILES];
+	private long[] sizes = new long[INITIAL_FILES];
+	private byte[] statuses = new byte[INITIAL_FILES];
+	private int count;
+	private final AtomicIntegerArray statusCounts = new AtomicIntegerArray(STATUSES.length);
+	/**
+	 * Индекс имен: первый номер файла с хэшем имени в корзине и следующий номер файла той же корзины. Отсутствует в каталоге без индекса.
+	 */
+	private int[] buckets;
+	private int[] next;
+
+	public FileCatalog() {
+		this(false);
+	}
+
+	/**
+	 * @param indexed true, если каталог хранит один номер на имя файла
+	 */
+	public FileCatalog(boolean indexed) {
+		if (indexed) {
+			buckets = new int[INITIAL_FILES * 2];
+			Arrays.fill(buckets, NONE);
+			next = new int[INITIAL_FILES];
+		}
+	}
+
+	/**
+	 * Метод для добавления файла, ожидающего сжатия. В каталоге с индексом имен файл, который уже есть в каталоге, получает прежний номер.
+	 * @param name абсолютное имя файла
+	 * @param size размер файла в байтах
+	 * @return номер файла либо {@link #NONE}, если файл с индексом имен уже ожидает сжатия или сжимается
+	 */
+	public int add(String name, long size) {
+		return add(name, size, FileStatus.PENDING);
+	}
+
+	/**
+	 * Метод для добавления файла с заданным состоянием. В каталоге с индексом имен файл, который уже есть в каталоге,
+	 * получает прежний номер и новое состояние.
+	 * @param file файл
+	 * @param status состояние файла
+	 * @return номер файла
+	 */
+	public int add(FileInfo file, FileStatus status) {
+		return add(file.getName(), file.getSize(), status);
+	}
+
+	private int add(String name, long size, FileStatus status) {
+		int split = name.lastIndexOf(File.separatorChar) + 1;
+		byte[] fileName = name.substring(split).getBytes(StandardCharsets.UTF_8);
+		String directory = name.substring(0, split);
+		lock.writeLock().lock();
+		try {
+			if (buckets != null) {
+				int id = find(name);
+				if (id != NONE) {
+					int previous = statuses[id];
+					if (status == FileStatus.PENDING && previous == FileStatus.PENDING.ordinal()) {
+						return NONE;
+					}
+					sizes[id] = size;
+					statuses[id] = (byte) status.ordinal();
+					statusCounts.decrementAndGet(previous);
+					statusCounts.incrementAndGet(status.ordinal());
+					return id;
+				}
+			}
+			if (count == nameOffsets.length) {
+				int capacity = count + (count >> 1);
+				nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+				directoryOf = Arrays.copyOf(directoryOf, capacity);
+				sizes = Arrays.copyOf(sizes, capacity);
+				statuses = Arrays.copyOf(statuses, capacity);
+				if (buckets != null) {
+					next = Arrays.copyOf(next, capacity);
+				}
+			}
+			if (names.length - namesLength < fileName.length) {
+				long capacity = Math.max(namesLength + (long) fileName.length, names.length + ((long) names.length >> 1));
+				if (capacity > Integer.MAX_VALUE - 8) {
+					throw new IllegalStateException("File catalog is full, files = " + count);
+				}
+				names = Arrays.copyOf(names, (int) capacity);
+			}
+			Integer directoryId = directoryIds.get(directory);
+			if (directoryId == null) {
+				directoryId = directories.size();
+				directories.add(directory);
+				directoryIds.put(directory, directoryId);
+			}
+			int id = count++;
+			System.arraycopy(fileName, 0, names, namesLength, fileName.length);
+			nameOffsets[id] = namesLength;
+			namesLength += fileName.length;
+			directoryOf[id] = directoryId;
+			sizes[id] = size;
+			statuses[id] = (byte) status.ordinal();
+			statusCounts.incrementAndGet(status.ordinal());
+			if (buckets != null) {
+				index(id, name.hashCode());
+			}
+			return id;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Метод для поиска файла в индексе имен. Вызывается под блокировкой.
+	 * @return номер файла либо {@link #NONE}
+	 */
+	private int find(String name) {
+		int id = buckets[Math.floorMod(name.hashCode(), buckets.length)];
+		while (id != NONE && !name(id).equals(name)) {
+			id = next[id];
+		}
+		return id;
+	}
+
+	/**
+	 * Метод для добавления номера файла в индекс имен. Когда файлов становится больше половины корзин, корзин становится вдвое больше.
+	 */
+	private void index(int id, int hash) {
+		if (count > buckets.length / 2) {
+			buckets = new int[buckets.length * 2];
+			Arrays.fill(buckets, NONE);
+			for (int file = 0; file < count; file++) {
+				if (file != id) {
+					link(file, name(file).hashCode());
+				}
+			}
+		}
+		link(id, hash);
+	}
+
+	private void link(int id, int hash) {
+		int bucket = Math.floorMod(hash, buckets.length);
+		next[id] = buckets[bucket];
+		buckets[bucket] = id;
+	}
+
+	/**
+	 * Метод для получения файла. Каждый вызов создает новый объект с номером файла.
+	 * @param id номер файла
+	 * @return файл
+	 */
+	public FileInfo get(int id) {
+		lock.readLock().lock();
+		try {
+			FileInfo file = new FileInfo(name(id), sizes[id]);
+			file.setId(id);
+			return file;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getName(int id) {
+		lock.readLock().lock();
+		try {
+			return name(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getSize(int id) {
+		lock.readLock().lock();
+		try {
+			return sizes[id];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public FileStatus getStatus(int id) {
+		lock.readLock().lock();
+		try {
+			return STATUSES[statuses[id]];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Метод для смены состояния файла. Состояние одного файла меняет только поток, который его обрабатывает.
+	 * @param id номер файла
+	 * @param status новое состояние
+	 */
+	public void setStatus(int id, FileStatus status) {
+		lock.readLock().lock();
+		try {
+			int previous = statuses[id];
+			statuses[id] = (byte) status.ordinal();
+			statusCounts.decrementAndGet(previous);
+			statusCounts.incrementAndGet(status.ordinal());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param status состояние
+	 * @return количество файлов с состоянием
+	 */
+	public int count(FileStatus status) {
+		return statusCounts.get(status.ordinal());
+	}
+
+	/**
+	 * Метод для получения списка файлов с состоянием. Список создается при каждом вызове.
+	 * @param status состояние
+	 * @return файлы в порядке добавления
+	 */
+	public List<FileInfo> list(FileStatus status) {
+		List<FileInfo> files = new ArrayList<>(count(status));
+		lock.readLock().lock();
+		try {
+			for (int id = 0; id < count; id++) {
+				if (statuses[id] == status.ordinal()) {
+					FileInfo file = new FileInfo(name(id), sizes[id]);
+					file.setId(id);
+					files.add(file);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return files;
+	}
+
+	/**
+	 * @return количество файлов в каталоге
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return количество различных директорий файлов
+	 */
+	public int getDirectoryCount() {
+		lock.readLock().lock();
+		try {
+			return directories.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private String name(int id) {
+		if (id < 0 || id >= count) {
+			throw new IndexOutOfBoundsException("File id = " + id + ", files = " + count);
+		}
+		int end = id + 1 < count ? nameOffsets[id + 1] : namesLength;
+		return directories.get(directoryOf[id]) + new String(names, nameOffsets[id], end - nameOffsets[id], StandardCharsets.UTF_8);
+	}
+}
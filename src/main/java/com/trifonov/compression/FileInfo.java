@@ -1,6 +1,10 @@
 package com.trifonov.compression;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
 /**
  * Класс для хранения информации о файле.
@@ -17,6 +21,13 @@ public class FileInfo {
 	 * Размер файла в байтах.
 	 */
 	private long size;
+	/**
+	 * Номер файла в {@link FileCatalog}, если файл получен из каталога.
+	 */
+	@JsonIgnore
+	@EqualsAndHashCode.Exclude
+	@ToString.Exclude
+	private int id = FileCatalog.NONE;
 	
 	public FileInfo() {
 		
@@ -0,0 +1,60 @@
+package com.trifonov.compression;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Очередь файлов для сжатия между обходом директории и рабочими потоками. Очередь хранит номера файлов в {@link FileCatalog}.
+ * @author Alexandr Trifonov
+ *
+ */
+public interface FileQueue {
+	/**
+	 * Добавляет файл в очередь. Если очередь заполнена, метод ждет освобождения места.
+	 * @param file номер файла для сжатия
+	 * @return false, если очередь закрыта и файл не был добавлен
+	 * @throws InterruptedException если поток был прерван во время ожидания
+	 */
+	boolean put(int file) throws InterruptedException;
+
+	/**
+	 * Возвращает файл в очередь без учета ограничения размера очереди. Используется рабочими потоками для повторного сжатия.
+	 * @param file номер файла для сжатия
+	 */
+	void requeue(int file);
+
+	/**
+	 * Забирает следующий файл. Если очередь пуста, метод ждет добавления файла либо закрытия очереди.
+	 * @return номер файла либо {@link FileCatalog#NONE}, если очередь закрыта и пуста
+	 * @throws InterruptedException если поток был прерван во время ожидания
+	 */
+	int take() throws InterruptedException;
+
+	/**
+	 * Сообщает очереди время сжатия файла, чтобы очередь могла учитывать его при выборе следующих файлов.
+	 * @param file номер сжатого файла
+	 * @param nanos время сжатия в наносекундах
+	 */
+	default void completed(int file, long nanos) {
+	}
+
+	/**
+	 * Закрывает очередь для добавления файлов. Файлы, которые уже находятся в очереди, остаются доступны.
+	 */
+	void close();
+
+	/**
+	 * Передает все файлы очереди получателю и очищает очередь.
+	 * @param consumer получатель номеров файлов
+	 */
+	void drainTo(IntConsumer consumer);
+
+	/**
+	 * @return количество файлов в очереди
+	 */
+	int size();
+
+	/**
+	 * @return true, если очередь пуста
+	 */
+	boolean isEmpty();
+}
@@ -2,6 +2,9 @@ package com.trifonov.compression;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -9,17 +12,19 @@ import java.time.Clock;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Collection;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 /**
- * Класс для записи отчетов в файлы.
+ * Класс для записи отчетов в файлы. Файл отчета создается при первой записи, поэтому пустые отчеты не создаются.
+ * Все отчеты одного экземпляра получают в имени время его создания.
  * @author Alexandr Trifonov.
  *
  */
@@ -28,18 +33,30 @@ public class FileReportCreator implements ReportCreator {
 	 * Имя папки с отчетами
 	 */
 	private final static String REPORT_DIR = "report-tinypng";
-	
+	/**
+	 * Размер буфера записи отчета.
+	 */
+	private final static int BUFFER_SIZE = 64 * 1024;
+
 	private static final Logger logger = LogManager.getLogger();
 	private final Clock clock = Clock.tickSeconds(ZoneId.systemDefault());
 	private final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH-mm-ss");
 	private final String lineSeparator = System.lineSeparator();
 	private final ObjectMapper objMapper = new ObjectMapper();
-	
+	/**
+	 * Сериализатор FileInfo без сброса генератора после каждого объекта.
+	 */
+	private final ObjectWriter fileInfoWriter = objMapper.writerFor(FileInfo.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
 	/**
 	 * Path с абсолютным путем для размещения создаваемых отчетов.
 	 */
 	private Path reportPath;
-	
+	/**
+	 * Время создания отчетов для имен файлов.
+	 */
+	private final String reportDate;
+
 	public FileReportCreator() {
 		Path currentPathAbs = Paths.get("").toAbsolutePath();
 		reportPath = currentPathAbs.resolve(Paths.get(REPORT_DIR));
@@ -54,63 +71,153 @@ public class FileReportCreator implements ReportCreator {
 				reportPath = currentPathAbs;
 			}
 		}
-		logger.info("Report dir = {}", reportPath); 		
-		
+		reportDate = LocalDateTime.now(clock).format(dateFormatter);
+		logger.info("Report dir = {}", reportPath);
+
 	}
-	
-	
-	
-	
-	@Override
-	public void createReportFileInfos(Collection<FileInfo> fileInfoCollection, String reportName) {
-		if (!fileInfoCollection.isEmpty()) {
-			String report =   fileInfoCollection.stream().map(FileInfo::getName).map(x -> x + lineSeparator).reduce("", String::concat).trim();
-			writeReport(reportName, report);
-		}	
 
+	@Override
+	public ReportWriter<FileInfo> createFileInfosWriter(String reportName) {
+		return new LineReportWriter<>(reportName, FileInfo::getName);
 	}
 
 	@Override
-	public void createReportStrings(Collection<String> stringCollection, String reportName) {
-		if (!stringCollection.isEmpty()) {		
-			String report =   stringCollection.stream().map(x -> x + lineSeparator).reduce("", String::concat).trim();
-			writeReport(reportName, report);
-		}
+	public ReportWriter<String> createStringsWriter(String reportName) {
+		return new LineReportWriter<>(reportName, Function.identity());
+	}
 
+	@Override
+	public ReportWriter<FileInfo> createFileInfoJsonWriter(String fileName) {
+		return new JsonReportWriter(fileName);
 	}
 
 	@Override
 	public void createReportNumber(int number, String reportName) {
-		String numberStr = Integer.toString(number);
-		writeReport(reportName, numberStr);
-
-	}
-	
-	private void writeReport(String fileName, String report) {		
-		LocalDateTime date = LocalDateTime.now(clock);
-		Path path = reportPath.resolve(Paths.get(String.format("%s-%s", date.format(dateFormatter), fileName)));
-		try (BufferedWriter writer = Files.newBufferedWriter(path)) {				
-			writer.write(report);		
+		try (BufferedWriter writer = Files.newBufferedWriter(reportFile(reportName))) {
+			writer.write(Integer.toString(number));
 		} catch (IOException e) {
-			logger.error("Writing IOException. ", e);		
+			logger.error("Writing IOException. ", e);
 		} catch (Exception e) {
-			logger.error("Writing exception. ", e);		
-		}		
+			logger.error("Writing exception. ", e);
+		}
 	}
-	
-	@Override
-	public void createFileInfoJson(Collection<FileInfo> files, String fileName) {
-		if (!files.isEmpty()) {
-			LocalDateTime date = LocalDateTime.now(clock);
-			Path path = reportPath.resolve(Paths.get(String.format("%s-%s", date.format(dateFormatter), fileName)));			
+
+	private Path reportFile(String fileName) {
+		return reportPath.resolve(Paths.get(String.format("%s-%s", reportDate, fileName)));
+	}
+
+	private Writer openWriter(String fileName) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(reportFile(fileName)), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	/**
+	 * Отчет с одной записью в строке. Строки разделяются переводом строки, в конце отчета перевода строки нет.
+	 */
+	private class LineReportWriter<T> implements ReportWriter<T> {
+		private final String fileName;
+		private final Function<T, String> format;
+		private Writer writer;
+		private boolean failed;
+
+		private LineReportWriter(String fileName, Function<T, String> format) {
+			this.fileName = fileName;
+			this.format = format;
+		}
+
+		@Override
+		public synchronized void write(T entry) {
+			if (failed) {
+				return;
+			}
 			try {
-				objMapper.writeValue(path.toFile(), files);
-			} catch (JsonGenerationException e) {
-				logger.error("JsonGenerationException", e);	
-			} catch (JsonMappingException e) {
-				logger.error("JsonMappingException", e);	
+				if (writer == null) {
+					writer = openWriter(fileName);
+				} else {
+					writer.write(lineSeparator);
+				}
+				writer.write(format.apply(entry));
 			} catch (IOException e) {
-				logger.error("JSON writing IOException", e);	
+				failed = true;
+				logger.error("Writing IOException. ", e);
+			}
+		}
+
+		@Override
+		public synchronized void flush() {
+			if (writer != null && !failed) {
+				try {
+					writer.flush();
+				} catch (IOException e) {
+					logger.error("Writing IOException. ", e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					logger.error("Writing IOException. ", e);
+				}
+				writer = null;
+			}
+		}
+	}
+
+	/**
+	 * Отчет с массивом json-объектов FileInfo, который записывается потоково через {@link JsonGenerator}.
+	 */
+	private class JsonReportWriter implements ReportWriter<FileInfo> {
+		private final String fileName;
+		private JsonGenerator generator;
+		private boolean failed;
+
+		private JsonReportWriter(String fileName) {
+			this.fileName = fileName;
+		}
+
+		@Override
+		public synchronized void write(FileInfo entry) {
+			if (failed) {
+				return;
+			}
+			try {
+				if (generator == null) {
+					generator = objMapper.getFactory().createGenerator(openWriter(fileName));
+					generator.writeStartArray();
+				}
+				fileInfoWriter.writeValue(generator, entry);
+			} catch (IOException e) {
+				failed = true;
+				logger.error("JSON writing IOException", e);
+			}
+		}
+
+		@Override
+		public synchronized void flush() {
+			if (generator != null && !failed) {
+				try {
+					generator.flush();
+				} catch (IOException e) {
+					logger.error("JSON writing IOException", e);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			if (generator != null) {
+				try {
+					if (!failed) {
+						generator.writeEndArray();
+					}
+					generator.close();
+				} catch (IOException e) {
+					logger.error("JSON writing IOException", e);
+				}
+				generator = null;
 			}
 		}
 	}
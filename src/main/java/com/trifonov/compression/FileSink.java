@@ -0,0 +1,16 @@
+package com.trifonov.compression;
+
+/**
+ * Приемник файлов, найденных при обходе директории.
+ * @author Alexandr Trifonov
+ *
+ */
+@FunctionalInterface
+public interface FileSink {
+	/**
+	 * Принимает найденный файл.
+	 * @param file файл для сжатия
+	 * @return false, если обход необходимо остановить
+	 */
+	boolean accept(FileInfo file);
+}
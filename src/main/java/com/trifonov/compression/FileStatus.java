@@ -0,0 +1,29 @@
+package com.trifonov.compression;
+
+/**
+ * Состояние файла в {@link FileCatalog}.
+ * @author Alexandr Trifonov
+ *
+ */
+public enum FileStatus {
+	/**
+	 * Файл найден и ожидает сжатия либо сжимается.
+	 */
+	PENDING,
+	/**
+	 * Файл сжат.
+	 */
+	COMPRESSED,
+	/**
+	 * Файл не удалось сжать из-за ошибки в запросе.
+	 */
+	FAILED_COMPRESSED,
+	/**
+	 * Файл остался несжатым.
+	 */
+	UNCOMPRESSED,
+	/**
+	 * К файлу не удалось получить доступ.
+	 */
+	FAILED_READ
+}
@@ -0,0 +1,119 @@
+package com.trifonov.compression;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Гистограмма с фиксированными границами корзин. Запись значения не использует блокировок и не создает объектов,
+ * поэтому гистограмму можно обновлять из рабочих потоков на каждом файле.
+ * @author Alexandr Trifonov
+ *
+ */
+public class Histogram {
+	/**
+	 * Верхние границы корзин по возрастанию. Последняя корзина содержит значения больше последней границы.
+	 */
+	private final double[] bounds;
+	private final AtomicLongArray counts;
+	private final DoubleAdder sum = new DoubleAdder();
+
+	public Histogram(double... bounds) {
+		this.bounds = bounds.clone();
+		Arrays.sort(this.bounds);
+		this.counts = new AtomicLongArray(this.bounds.length + 1);
+	}
+
+	/**
+	 * Метод для создания гистограммы с границами, растущими в геометрической прогрессии.
+	 * @param start первая граница
+	 * @param factor множитель следующей границы
+	 * @param count количество границ
+	 * @return гистограмма
+	 */
+	public static Histogram exponential(double start, double factor, int count) {
+		double[] bounds = new double[count];
+		double bound = start;
+		for (int i = 0; i < count; i++) {
+			bounds[i] = bound;
+			bound *= factor;
+		}
+		return new Histogram(bounds);
+	}
+
+	/**
+	 * Метод для создания гистограммы с корзинами одинаковой ширины.
+	 * @param start первая граница
+	 * @param width ширина корзины
+	 * @param count количество границ
+	 * @return гистограмма
+	 */
+	public static Histogram linear(double start, double width, int count) {
+		double[] bounds = new double[count];
+		for (int i = 0; i < count; i++) {
+			bounds[i] = start + width * i;
+		}
+		return new Histogram(bounds);
+	}
+
+	public void record(double value) {
+		int bucket = Arrays.binarySearch(bounds, value);
+		counts.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+		sum.add(value);
+	}
+
+	/**
+	 * @return копия верхних границ корзин
+	 */
+	public double[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * @return количество значений в каждой корзине, последний элемент содержит значения больше последней границы
+	 */
+	public long[] getCounts() {
+		long[] result = new long[counts.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = counts.get(i);
+		}
+		return result;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public double getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Метод для оценки квантиля по верхней границе корзины, в которую он попадает.
+	 * @param quantile квантиль от 0 до 1
+	 * @return оценка значения либо 0, если значений нет. Для значений больше последней границы возвращается бесконечность.
+	 */
+	public double quantile(double quantile) {
+		long[] snapshot = getCounts();
+		long total = 0;
+		for (long count : snapshot) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] > 0) {
+				return i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY;
+			}
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+}
@@ -0,0 +1,45 @@
+package com.trifonov.compression;
+
+/**
+ * Очередь номеров файлов в порядке поступления на кольцевом массиве. Класс не потокобезопасен.
+ * @author Alexandr Trifonov
+ *
+ */
+class IdRing {
+	private int[] ids = new int[16];
+	private int head;
+	private int size;
+
+	void add(int id) {
+		if (size == ids.length) {
+			int[] grown = new int[size << 1];
+			for (int i = 0; i < size; i++) {
+				grown[i] = ids[(head + i) & (ids.length - 1)];
+			}
+			ids = grown;
+			head = 0;
+		}
+		ids[(head + size++) & (ids.length - 1)] = id;
+	}
+
+	/**
+	 * @return первый номер либо {@link FileCatalog#NONE}, если очередь пуста
+	 */
+	int poll() {
+		if (size == 0) {
+			return FileCatalog.NONE;
+		}
+		int id = ids[head];
+		head = (head + 1) & (ids.length - 1);
+		size--;
+		return id;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+}
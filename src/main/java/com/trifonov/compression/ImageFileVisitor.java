@@ -3,7 +3,6 @@ package com.trifonov.compression;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
@@ -18,6 +17,7 @@ import lombok.RequiredArgsConstructor;
 
 /**
  * Класс для обхода директории с файлами для сжатия и получения списка доступных файлов и файлов, которые не удалось прочитать. 
+ * В приемник передаются только обычные файлы изображений, которых нет в индексе сжатых файлов. Размер берется из атрибутов, полученных при обходе.
  * @author Alexandr Trifonov
  *
  */
@@ -26,15 +26,27 @@ import lombok.RequiredArgsConstructor;
 public class ImageFileVisitor implements FileVisitor<Path> {
 	private static final Logger logger = LogManager.getLogger();
 	/**
-	 * Список доступных файлов для сжатия.
+	 * Приемник доступных файлов для сжатия.
 	 */
 	@NonNull
-	private List<FileInfo> list;
+	private FileSink sink;
 	/**
 	 * Список файлов, которые не удалось прочитать при проходе по директории.
 	 */
 	@NonNull
 	private List<FileInfo> failedList;
+	/**
+	 * Проверять сигнатуру файла в дополнение к расширению.
+	 */
+	private boolean checkHeader = true;
+	/**
+	 * Индекс сжатых файлов, файлы из которого пропускаются. Может отсутствовать.
+	 */
+	private CompressionIndex index;
+	/**
+	 * Передавать в приемник ZIP и JAR архивы для сжатия изображений внутри архивов.
+	 */
+	private boolean archives;
 	
 	@Override
 	public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
@@ -43,7 +55,21 @@ public class ImageFileVisitor implements FileVisitor<Path> {
 
 	@Override
 	public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-		list.add(new FileInfo(file.toString(), Files.size(file)));
+		if (!attrs.isRegularFile()) {
+			return FileVisitResult.CONTINUE;
+		}
+		boolean image;
+		try {
+			image = ImageFormat.isImage(file, checkHeader);
+		} catch (IOException e) {
+			return visitFileFailed(file, e);
+		}
+		if (!(image || (archives && ArchiveRewriter.isArchive(file))) || (index != null && index.isCompressed(file, attrs))) {
+			return FileVisitResult.CONTINUE;
+		}
+		if (!sink.accept(new FileInfo(file.toString(), attrs.size()))) {
+			return FileVisitResult.TERMINATE;
+		}
 		return FileVisitResult.CONTINUE;
 	}
 
@@ -0,0 +1,120 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Форматы изображений, которые поддерживает TinyPNG. Формат определяется по расширению файла и по сигнатуре в начале файла.
+ * @author Alexandr Trifonov
+ *
+ */
+public enum ImageFormat {
+	PNG("image/png", "png"),
+	JPEG("image/jpeg", "jpg", "jpeg"),
+	WEBP("image/webp", "webp");
+
+	/**
+	 * Количество байт, достаточное для проверки сигнатуры любого формата.
+	 */
+	public final static int HEADER_LENGTH = 12;
+	private final static byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+	private final String mediaType;
+	private final String[] extensions;
+
+	ImageFormat(String mediaType, String... extensions) {
+		this.mediaType = mediaType;
+		this.extensions = extensions;
+	}
+
+	public String getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * Метод для определения формата по имени файла.
+	 * @param fileName имя файла
+	 * @return формат либо null, если расширение не относится к изображениям
+	 */
+	public static ImageFormat fromName(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		if (dot < 0 || dot == fileName.length() - 1) {
+			return null;
+		}
+		String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+		for (ImageFormat format : values()) {
+			for (String formatExtension : format.extensions) {
+				if (formatExtension.equals(extension)) {
+					return format;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Метод для определения формата по сигнатуре.
+	 * @param header начало файла
+	 * @param length количество прочитанных байт
+	 * @return формат либо null, если сигнатура не распознана
+	 */
+	public static ImageFormat fromHeader(byte[] header, int length) {
+		if (length >= PNG_SIGNATURE.length && startsWith(header, PNG_SIGNATURE)) {
+			return PNG;
+		}
+		if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+			return JPEG;
+		}
+		if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+				&& header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+			return WEBP;
+		}
+		return null;
+	}
+
+	/**
+	 * Метод для определения формата файла по сигнатуре.
+	 * @param file файл
+	 * @return формат либо null, если сигнатура не распознана
+	 * @throws IOException если не удалось прочитать файл
+	 */
+	public static ImageFormat probe(Path file) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int length = 0;
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+				length += read;
+			}
+		}
+		return fromHeader(header, length);
+	}
+
+	/**
+	 * Метод для проверки, что файл является изображением поддерживаемого формата.
+	 * Сначала проверяется расширение, сигнатура читается только для файлов с подходящим расширением.
+	 * @param file файл
+	 * @param checkHeader true, если необходимо проверить сигнатуру
+	 * @return true, если файл является изображением
+	 * @throws IOException если не удалось прочитать файл
+	 */
+	public static boolean isImage(Path file, boolean checkHeader) throws IOException {
+		Path fileName = file.getFileName();
+		if (fileName == null || fromName(fileName.toString()) == null) {
+			return false;
+		}
+		return !checkHeader || probe(file) != null;
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,31 @@
+package com.trifonov.compression;
+
+/**
+ * Аренда одного сжатия ключа, выданная {@link KeyPool}. Аренда должна быть возвращена в пул через
+ * {@link KeyPool#release(KeyLease, boolean)} либо ключ должен быть выведен из пула через {@link KeyPool#retire(KeyLease, KeyStatus)}.
+ * @author Alexandr Trifonov
+ *
+ */
+public class KeyLease {
+	/**
+	 * Ключ, на который выдана аренда.
+	 */
+	private final String key;
+	/**
+	 * Клиент ключа.
+	 */
+	private final TinifyClient client;
+
+	KeyLease(String key, TinifyClient client) {
+		this.key = key;
+		this.client = client;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public TinifyClient getClient() {
+		return client;
+	}
+}
@@ -0,0 +1,124 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Постоянный учет израсходованных сжатий ключей между запусками. Для каждого ключа хранится последнее значение заголовка Compression-Count
+ * и месяц, в котором оно получено. TinyPNG обнуляет счетчик ключа каждый месяц, поэтому значения прошлых месяцев не учитываются.
+ * Учет хранится в json-файле, который перезаписывается атомарно.
+ * @author Alexandr Trifonov
+ *
+ */
+public class KeyLedger {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ObjectMapper objMapper = new ObjectMapper();
+	private final Path file;
+	private final Map<String, KeyCount> counts;
+	/**
+	 * Признак изменений, не записанных в файл.
+	 */
+	private boolean dirty;
+
+	private KeyLedger(Path file, Map<String, KeyCount> counts) {
+		this.file = file;
+		this.counts = counts;
+	}
+
+	/**
+	 * Метод для чтения учета из файла. Если файла нет, учет начинается заново.
+	 * @param file файл учета
+	 * @return учет ключей
+	 * @throws IOException если не удалось прочитать файл
+	 */
+	public static KeyLedger open(Path file) throws IOException {
+		Map<String, KeyCount> counts = new LinkedHashMap<>();
+		if (Files.exists(file)) {
+			counts.putAll(new ObjectMapper().readValue(file.toFile(), new TypeReference<LinkedHashMap<String, KeyCount>>() {
+			}));
+		}
+		return new KeyLedger(file, counts);
+	}
+
+	/**
+	 * Метод для получения количества сжатий ключа в текущем месяце.
+	 * @param key ключ
+	 * @return количество сжатий либо -1, если в текущем месяце ключ не использовался
+	 */
+	public synchronized int getCount(String key) {
+		KeyCount count = counts.get(key);
+		return count != null && currentMonth().equals(count.getMonth()) ? count.getCount() : -1;
+	}
+
+	/**
+	 * Метод для учета количества сжатий ключа из ответа сервера.
+	 * @param key ключ
+	 * @param count значение заголовка Compression-Count
+	 */
+	public synchronized void record(String key, int count) {
+		if (count < 0) {
+			return;
+		}
+		String month = currentMonth();
+		KeyCount current = counts.get(key);
+		if (current == null || !month.equals(current.getMonth()) || current.getCount() != count) {
+			counts.put(key, new KeyCount(month, count));
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Метод для записи учета в файл, если он изменился. Ошибка записи не влияет на сжатие.
+	 */
+	public synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				objMapper.writerWithDefaultPrettyPrinter().writeValue(out, counts);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (IOException e) {
+			logger.error("Failed write key ledger = {}. IOException. ", file, e);
+		}
+	}
+
+	private static String currentMonth() {
+		return YearMonth.now(ZoneOffset.UTC).toString();
+	}
+
+	/**
+	 * Количество сжатий ключа за месяц.
+	 */
+	@Data
+	@NoArgsConstructor
+	@AllArgsConstructor
+	public static class KeyCount {
+		/**
+		 * Месяц в формате yyyy-MM по UTC.
+		 */
+		private String month;
+		private int count;
+	}
+}
@@ -0,0 +1,287 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Пул ключей, который выдает сжатия в аренду рабочим потокам. Каждая аренда резервирует одно сжатие ключа,
+ * поэтому количество потоков не зависит от количества ключей: один ключ может одновременно обслуживать несколько потоков,
+ * пока у него остаются незарезервированные сжатия.
+ * Остаток ключа равен лимиту минус сжатия, уже учтенные сервером для этого ключа. Счетчик сервера читается после каждого запроса
+ * и сохраняется в {@link KeyLedger}, поэтому остаток известен еще до первого запроса следующего запуска.
+ * Ключ с остатком не больше резерва считается израсходованным и не выдается, чтобы не тратить запрос на ответ об исчерпании лимита.
+ * После ошибки сервера или соединения ключ не выдается до истечения задержки, которая растет с количеством ошибок ключа подряд.
+ * @author Alexandr Trifonov
+ *
+ */
+public class KeyPool implements Closeable {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Ключи в порядке из файла с ключами.
+	 */
+	private final Map<String, KeyState> keys = new LinkedHashMap<>();
+	/**
+	 * Состояния ключей для выдачи по кругу.
+	 */
+	private final List<KeyState> states = new ArrayList<>();
+	/**
+	 * Лимит сжатий одного ключа.
+	 */
+	private final int keyLimit;
+	/**
+	 * Остаток сжатий, при котором ключ больше не выдается.
+	 */
+	private final int keyReserve;
+	/**
+	 * Учет сжатий ключей между запусками, может отсутствовать.
+	 */
+	private final KeyLedger ledger;
+	/**
+	 * Политика задержек ключа после ошибок.
+	 */
+	private final RetryPolicy retryPolicy;
+	/**
+	 * Позиция, с которой начинается поиск следующего ключа для аренды.
+	 */
+	private int cursor;
+
+	public KeyPool(List<String> keyList, CompressionSettings settings) {
+		this(keyList, settings, null, null);
+	}
+
+	/**
+	 * @param keyList ключи
+	 * @param settings настройки сжатия
+	 * @param ledger учет сжатий ключей между запусками, может отсутствовать
+	 * @param metrics метрики сжатия, могут отсутствовать
+	 */
+	public KeyPool(List<String> keyList, CompressionSettings settings, KeyLedger ledger, CompressionMetrics metrics) {
+		this.keyLimit = settings.getKeyLimit();
+		this.keyReserve = Math.max(0, settings.getKeyReserve());
+		this.ledger = ledger;
+		this.retryPolicy = new RetryPolicy(settings.getRetryBaseMillis(), settings.getRetryMaxMillis());
+		for (String key : keyList) {
+			if (!keys.containsKey(key)) {
+				TinifyClient client = new TinifyClient(key, settings.getEndpoint(), settings.getMaxIdleConnections());
+				client.setMetrics(metrics);
+				KeyState state = new KeyState(key, client, keyLimit);
+				keys.put(key, state);
+				states.add(state);
+				int count = ledger != null ? ledger.getCount(key) : -1;
+				if (count >= 0) {
+					state.remaining = Math.max(0, keyLimit - count);
+				}
+				if (state.remaining <= keyReserve) {
+					state.status = KeyStatus.EXHAUSTED;
+					logger.info("Key is exhausted according to ledger. key = {}, compressions = {}", key, count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Метод для получения аренды одного сжатия. Если свободных сжатий нет, но есть незавершенные аренды или ключи с задержкой после ошибок,
+	 * метод ждет их возврата либо окончания задержки.
+	 * @return аренда либо null, если у пула не осталось сжатий
+	 * @throws InterruptedException если поток был прерван во время ожидания
+	 */
+	public synchronized KeyLease lease() throws InterruptedException {
+		while (true) {
+			boolean pending = false;
+			long now = System.currentTimeMillis();
+			long wakeAt = Long.MAX_VALUE;
+			for (int i = 0; i < states.size(); i++) {
+				KeyState state = states.get((cursor + i) % states.size());
+				if (state.status != KeyStatus.ACTIVE) {
+					continue;
+				}
+				if (state.remaining - state.reserved > keyReserve) {
+					if (state.backoffUntil > now) {
+						wakeAt = Math.min(wakeAt, state.backoffUntil);
+						continue;
+					}
+					cursor = (cursor + i + 1) % states.size();
+					state.reserved++;
+					return new KeyLease(state.key, state.client);
+				}
+				pending |= state.reserved > 0;
+			}
+			if (wakeAt != Long.MAX_VALUE) {
+				wait(Math.max(1, wakeAt - now));
+			} else if (pending) {
+				wait();
+			} else {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Метод для возврата аренды в пул.
+	 * @param lease аренда
+	 * @param consumed true, если сжатие было израсходовано
+	 */
+	public synchronized void release(KeyLease lease, boolean consumed) {
+		KeyState state = keys.get(lease.getKey());
+		state.reserved--;
+		if (consumed) {
+			state.remaining--;
+			state.failures = 0;
+		}
+		int count = recordCount(lease);
+		if (count >= 0) {
+			// Счетчик сервера может уже включать сжатия незавершенных аренд, поэтому они не вычитаются повторно.
+			state.remaining = Math.min(state.remaining, keyLimit - count + state.reserved);
+		}
+		if (state.status == KeyStatus.ACTIVE && state.remaining <= keyReserve) {
+			state.status = KeyStatus.EXHAUSTED;
+			logger.info("Key is exhausted. key = {}, remaining = {}", state.key, Math.max(0, state.remaining));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Метод для возврата аренды после ошибки сервера или соединения. Ключ не выдается до окончания задержки.
+	 * @param lease аренда
+	 */
+	public synchronized void backoff(KeyLease lease) {
+		KeyState state = keys.get(lease.getKey());
+		state.reserved--;
+		recordCount(lease);
+		long delay = retryPolicy.delay(state.failures++);
+		state.backoffUntil = System.currentTimeMillis() + delay;
+		logger.info("Key is paused after failure. key = {}, failures = {}, delay = {} ms", state.key, state.failures, delay);
+		notifyAll();
+	}
+
+	/**
+	 * Метод для вывода ключа из пула. Аренда при этом возвращается.
+	 * @param lease аренда ключа
+	 * @param status причина вывода ключа
+	 */
+	public synchronized void retire(KeyLease lease, KeyStatus status) {
+		KeyState state = keys.get(lease.getKey());
+		state.reserved--;
+		if (status == KeyStatus.EXHAUSTED) {
+			state.remaining = 0;
+			recordCount(lease);
+		}
+		if (state.status == KeyStatus.ACTIVE) {
+			state.status = status;
+			logger.info("Key is retired. key = {}, status = {}", state.key, status);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Метод для вывода ключа из пула без аренды. Уже выданные аренды ключа возвращаются как обычно.
+	 * @param key ключ
+	 * @param status причина вывода ключа
+	 */
+	public synchronized void retire(String key, KeyStatus status) {
+		KeyState state = keys.get(key);
+		if (state != null && state.status == KeyStatus.ACTIVE) {
+			state.status = status;
+			logger.info("Key is retired. key = {}, status = {}", state.key, status);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Метод для получения остатка сжатий всех действующих ключей без учета выданных аренд и резерва.
+	 * @return количество сжатий
+	 */
+	public synchronized long getRemaining() {
+		long remaining = 0;
+		for (KeyState state : states) {
+			if (state.status == KeyStatus.ACTIVE) {
+				remaining += Math.max(0, state.remaining - state.reserved - keyReserve);
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Метод для получения остатка сжатий каждого ключа. Для битых ключей остаток неизвестен и равен -1.
+	 * @return остатки сжатий в порядке ключей из файла
+	 */
+	public synchronized Map<String, Integer> getCredits() {
+		Map<String, Integer> credits = new LinkedHashMap<>();
+		for (KeyState state : states) {
+			credits.put(state.key, state.status == KeyStatus.INVALID ? -1 : Math.max(0, state.remaining));
+		}
+		return credits;
+	}
+
+	/**
+	 * Метод для получения ключей с заданным состоянием.
+	 * @param status состояние ключа
+	 * @return список ключей
+	 */
+	public synchronized List<String> getKeys(KeyStatus status) {
+		List<String> result = new ArrayList<>();
+		for (KeyState state : states) {
+			if (state.status == status) {
+				result.add(state.key);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Метод для учета счетчика сервера из последнего ответа ключа.
+	 * @return количество сжатий ключа либо -1, если ответа еще не было
+	 */
+	private int recordCount(KeyLease lease) {
+		int count = lease.getClient().getCompressionCount();
+		if (ledger != null) {
+			ledger.record(lease.getKey(), count);
+		}
+		return count;
+	}
+
+	@Override
+	public void close() {
+		for (KeyState state : states) {
+			state.client.close();
+		}
+	}
+
+	/**
+	 * Состояние одного ключа.
+	 */
+	private static class KeyState {
+		private final String key;
+		private final TinifyClient client;
+		/**
+		 * Количество оставшихся сжатий.
+		 */
+		private int remaining;
+		/**
+		 * Количество сжатий, выданных в аренду.
+		 */
+		private int reserved;
+		private KeyStatus status = KeyStatus.ACTIVE;
+		/**
+		 * Количество ошибок сервера или соединения подряд.
+		 */
+		private int failures;
+		/**
+		 * Время, до которого ключ не выдается после ошибки.
+		 */
+		private long backoffUntil;
+
+		private KeyState(String key, TinifyClient client, int remaining) {
+			this.key = key;
+			this.client = client;
+			this.remaining = remaining;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.trifonov.compression;
+
+/**
+ * Состояние ключа в {@link KeyPool}.
+ * @author Alexandr Trifonov
+ *
+ */
+public enum KeyStatus {
+	/**
+	 * Ключ может выдаваться в аренду.
+	 */
+	ACTIVE,
+	/**
+	 * Ключ израсходован до лимита.
+	 */
+	EXHAUSTED,
+	/**
+	 * Ключ отклонен сервером.
+	 */
+	INVALID,
+	/**
+	 * Аренду ключа забрал другой узел кластера.
+	 */
+	LOST
+}
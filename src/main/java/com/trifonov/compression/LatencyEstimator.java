@@ -0,0 +1,81 @@
+package com.trifonov.compression;
+
+/**
+ * Оценка времени сжатия файла по его размеру. Время сжатия считается линейно зависящим от размера: постоянная задержка запроса
+ * плюс время передачи каждого байта. Коэффициенты подбираются по наблюдаемым сжатиям экспоненциальным скользящим средним,
+ * поэтому оценка следует за изменением скорости сети и нагрузки сервера. До накопления наблюдений используются значения по умолчанию.
+ * Класс не синхронизирован.
+ * @author Alexandr Trifonov
+ *
+ */
+public class LatencyEstimator {
+	/**
+	 * Вес нового наблюдения.
+	 */
+	private final static double ALPHA = 0.05;
+	/**
+	 * Количество наблюдений, после которого используется подобранная зависимость.
+	 */
+	private final static int MIN_SAMPLES = 10;
+	private final static double DEFAULT_REQUEST_MILLIS = 500;
+	/**
+	 * Время передачи байта по умолчанию, соответствует скорости 1 МБ/с.
+	 */
+	private final static double DEFAULT_BYTE_MILLIS = 1.0 / 1000;
+
+	private double meanSize;
+	private double meanMillis;
+	private double varianceSize;
+	private double covariance;
+	private long samples;
+
+	/**
+	 * Метод для учета наблюдаемого сжатия.
+	 * @param size размер файла в байтах
+	 * @param millis время сжатия в миллисекундах
+	 */
+	public void record(long size, double millis) {
+		if (samples++ == 0) {
+			meanSize = size;
+			meanMillis = millis;
+			return;
+		}
+		double sizeDiff = size - meanSize;
+		double millisDiff = millis - meanMillis;
+		meanSize += ALPHA * sizeDiff;
+		meanMillis += ALPHA * millisDiff;
+		varianceSize = (1 - ALPHA) * (varianceSize + ALPHA * sizeDiff * sizeDiff);
+		covariance = (1 - ALPHA) * (covariance + ALPHA * sizeDiff * millisDiff);
+	}
+
+	/**
+	 * @return время передачи одного байта в миллисекундах
+	 */
+	public double getByteMillis() {
+		if (samples < MIN_SAMPLES) {
+			return DEFAULT_BYTE_MILLIS;
+		}
+		// Если все файлы одного размера, время нельзя разделить на задержку запроса и передачу, и оно целиком относится к запросу.
+		return varianceSize > 0 ? Math.max(0, covariance / varianceSize) : 0;
+	}
+
+	/**
+	 * @return постоянная задержка одного запроса в миллисекундах
+	 */
+	public double getRequestMillis() {
+		if (samples < MIN_SAMPLES) {
+			return DEFAULT_REQUEST_MILLIS;
+		}
+		return Math.max(0, meanMillis - getByteMillis() * meanSize);
+	}
+
+	/**
+	 * Метод для оценки времени сжатия группы файлов.
+	 * @param count количество файлов
+	 * @param bytes суммарный размер файлов в байтах
+	 * @return время сжатия одним потоком в миллисекундах
+	 */
+	public double estimate(int count, long bytes) {
+		return count * getRequestMillis() + bytes * getByteMillis();
+	}
+}
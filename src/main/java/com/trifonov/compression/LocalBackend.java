@@ -0,0 +1,133 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Локальное сжатие без сети и ключей. JPEG перекодируется с заданным качеством через {@link javax.imageio}, метаданные исходного файла
+ * при перекодировании сохраняются. Затем PNG и JPEG оптимизируются без потерь через {@link LosslessOptimizer}.
+ * Из вариантов выбирается наименьший, если ни один вариант не меньше исходного файла, результатом становится исходный файл.
+ * Сжатие выполняется процессором, поэтому его следует вызывать из пула потоков по количеству процессоров.
+ * @author Alexandr Trifonov
+ *
+ */
+public class LocalBackend implements CompressionBackend {
+	private static final Logger logger = LogManager.getLogger();
+
+	final static String NAME = "local";
+
+	/**
+	 * Качество перекодирования JPEG от 0 до 100.
+	 */
+	private final int jpegQuality;
+	private final LosslessOptimizer optimizer;
+
+	public LocalBackend(int jpegQuality, boolean stripIcc) {
+		this.jpegQuality = Math.max(0, Math.min(100, jpegQuality));
+		this.optimizer = new LosslessOptimizer(stripIcc);
+	}
+
+	/**
+	 * Метод для проверки, что формат файла поддерживается локальным сжатием. Формат определяется по расширению.
+	 * @param file файл
+	 * @return true для PNG и JPEG
+	 */
+	public static boolean supports(FileInfo file) {
+		ImageFormat format = ImageFormat.fromName(file.getName());
+		return format == ImageFormat.PNG || format == ImageFormat.JPEG;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public CompressionResult compress(FileInfo file, Path upload, OutputStage output) throws IOException {
+		Path source = Paths.get(file.getName());
+		ImageFormat format = ImageFormat.probe(upload);
+		if (format != ImageFormat.PNG && format != ImageFormat.JPEG) {
+			throw new IOException("Unsupported image format for local compression, file = " + file.getName());
+		}
+		Path reencoded = format == ImageFormat.JPEG ? reencodeJpeg(upload) : null;
+		Path optimized = null;
+		try {
+			Path best = upload;
+			if (reencoded != null && Files.size(reencoded) < Files.size(upload)) {
+				best = reencoded;
+			}
+			optimized = optimizer.optimize(best);
+			if (optimized != null) {
+				best = optimized;
+			}
+			if (best == upload && output.isInPlace() && upload.equals(source)) {
+				return new CompressionResult(Files.size(source), ContentHash.of(source));
+			}
+			output.copy(best, source);
+			return new CompressionResult(Files.size(best), ContentHash.of(best));
+		} finally {
+			deleteQuietly(reencoded);
+			deleteQuietly(optimized);
+		}
+	}
+
+	/**
+	 * Метод для перекодирования JPEG с заданным качеством. Метаданные исходного файла, в том числе EXIF с поворотом и профиль ICC,
+	 * переносятся в результат. Изображения, которые не удается декодировать, например в CMYK, не перекодируются.
+	 * @param source исходный файл
+	 * @return временный файл с результатом либо null, если перекодирование не удалось
+	 */
+	private Path reencodeJpeg(Path source) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!readers.hasNext() || !writers.hasNext()) {
+			return null;
+		}
+		ImageReader reader = readers.next();
+		ImageWriter writer = writers.next();
+		Path temp = Files.createTempFile("tinypng-", ".jpg");
+		try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile());
+				ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+			reader.setInput(in, true, false);
+			IIOImage image = reader.readAll(0, null);
+			image.setThumbnails(null);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(jpegQuality / 100f);
+			writer.setOutput(out);
+			writer.write(null, image, param);
+			return temp;
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Failed reencode file = {}, error = {}", source, e.toString());
+			deleteQuietly(temp);
+			return null;
+		} finally {
+			reader.dispose();
+			writer.dispose();
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		if (path != null) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				logger.debug("Failed delete temp file = {}", path, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package com.trifonov.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Локальная оптимизация изображений без потерь перед загрузкой на сервер. Из PNG удаляются текстовые чанки, EXIF и время изменения,
+ * данные IDAT пережимаются с максимальным уровнем deflate. Из JPEG удаляются сегменты с метаданными и комментарии,
+ * EXIF сохраняется, если в нем задан поворот изображения. Цветовой профиль ICC удаляется только если это разрешено настройками.
+ * Файл обрабатывается потоком через буферы фиксированного размера.
+ * @author Alexandr Trifonov
+ *
+ */
+public class LosslessOptimizer {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+	private final static byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private final static int IDAT = chunkType("IDAT");
+	private final static int IEND = chunkType("IEND");
+	private final static int ICCP = chunkType("iCCP");
+	/**
+	 * Чанки PNG, которые не влияют на отображение изображения.
+	 */
+	private final static int[] METADATA_CHUNKS = {chunkType("tEXt"), chunkType("zTXt"), chunkType("iTXt"), chunkType("eXIf"), chunkType("tIME")};
+
+	private final static int JPEG_SOS = 0xDA;
+	private final static int JPEG_EOI = 0xD9;
+	private final static int JPEG_APP0 = 0xE0;
+	private final static int JPEG_APP1 = 0xE1;
+	private final static int JPEG_APP2 = 0xE2;
+	private final static int JPEG_APP14 = 0xEE;
+	private final static int JPEG_APP15 = 0xEF;
+	private final static int JPEG_COM = 0xFE;
+	private final static byte[] ICC_PROFILE = "ICC_PROFILE\0".getBytes(StandardCharsets.US_ASCII);
+	private final static byte[] EXIF = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Удалять цветовой профиль ICC.
+	 */
+	private final boolean stripIcc;
+
+	public LosslessOptimizer(boolean stripIcc) {
+		this.stripIcc = stripIcc;
+	}
+
+	/**
+	 * Метод для оптимизации файла. Результат записывается во временный файл, исходный файл не меняется.
+	 * @param source исходный файл
+	 * @return временный файл с результатом либо null, если формат не поддерживается или файл не уменьшился
+	 * @throws IOException если не удалось прочитать файл или файл поврежден
+	 */
+	public Path optimize(Path source) throws IOException {
+		ImageFormat format = ImageFormat.probe(source);
+		if (format != ImageFormat.PNG && format != ImageFormat.JPEG) {
+			return null;
+		}
+		Path temp = Files.createTempFile("tinypng-", format == ImageFormat.PNG ? ".png" : ".jpg");
+		try {
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(source), BUFFER_SIZE);
+					OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE)) {
+				if (format == ImageFormat.PNG) {
+					optimizePng(in, out);
+				} else {
+					optimizeJpeg(in, out);
+				}
+			}
+			long size = Files.size(source);
+			long optimized = Files.size(temp);
+			if (optimized >= size) {
+				Files.delete(temp);
+				return null;
+			}
+			logger.debug("Optimized file = {}, size = {}, optimized size = {}", source, size, optimized);
+			return temp;
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Метод для оптимизации PNG. Чанки копируются без изменений, кроме чанков с метаданными, которые пропускаются,
+	 * и последовательности IDAT, которая распаковывается и сжимается заново в чанки ограниченного размера.
+	 * @param in исходное изображение
+	 * @param out результат
+	 * @throws IOException если не удалось прочитать изображение или оно повреждено
+	 */
+	void optimizePng(InputStream in, OutputStream out) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		DataOutputStream result = new DataOutputStream(out);
+		byte[] signature = new byte[PNG_SIGNATURE.length];
+		data.readFully(signature);
+		if (!startsWith(signature, PNG_SIGNATURE)) {
+			throw new IOException("Invalid PNG signature");
+		}
+		result.write(signature);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		IdatRecompressor idat = null;
+		boolean idatDone = false;
+		try {
+			while (true) {
+				int length = data.readInt();
+				int type = data.readInt();
+				if (length < 0) {
+					throw new IOException("Invalid PNG chunk length");
+				}
+				if (type == IDAT) {
+					if (idatDone) {
+						throw new IOException("PNG IDAT chunks are not consecutive");
+					}
+					if (idat == null) {
+						idat = new IdatRecompressor(result);
+					}
+					CRC32 crc = new CRC32();
+					updateInt(crc, type);
+					for (int remaining = length; remaining > 0; ) {
+						int read = Math.min(remaining, buffer.length);
+						data.readFully(buffer, 0, read);
+						crc.update(buffer, 0, read);
+						idat.write(buffer, read);
+						remaining -= read;
+					}
+					if ((int) crc.getValue() != data.readInt()) {
+						throw new IOException("Invalid PNG chunk CRC");
+					}
+					continue;
+				}
+				if (idat != null && !idatDone) {
+					idat.finish();
+					idatDone = true;
+				}
+				if (isMetadata(type)) {
+					skipFully(data, length + 4L);
+					continue;
+				}
+				result.writeInt(length);
+				result.writeInt(type);
+				for (long remaining = length + 4L; remaining > 0; ) {
+					int read = (int) Math.min(remaining, buffer.length);
+					data.readFully(buffer, 0, read);
+					result.write(buffer, 0, read);
+					remaining -= read;
+				}
+				if (type == IEND) {
+					break;
+				}
+			}
+		} finally {
+			if (idat != null) {
+				idat.end();
+			}
+		}
+		if (!idatDone) {
+			throw new IOException("PNG has no image data");
+		}
+		result.flush();
+	}
+
+	/**
+	 * Метод для оптимизации JPEG. Сегменты до начала сканирования копируются без изменений, кроме сегментов с метаданными,
+	 * данные изображения после начала сканирования копируются без изменений.
+	 * @param in исходное изображение
+	 * @param out результат
+	 * @throws IOException если не удалось прочитать изображение или оно повреждено
+	 */
+	void optimizeJpeg(InputStream in, OutputStream out) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readUnsignedByte() != 0xFF || data.readUnsignedByte() != 0xD8) {
+			throw new IOException("Invalid JPEG signature");
+		}
+		out.write(0xFF);
+		out.write(0xD8);
+		byte[] segment = new byte[0xFFFF];
+		while (true) {
+			if (data.readUnsignedByte() != 0xFF) {
+				throw new IOException("Invalid JPEG marker");
+			}
+			int marker = data.readUnsignedByte();
+			while (marker == 0xFF) {
+				marker = data.readUnsignedByte();
+			}
+			if (marker == JPEG_EOI || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+				out.write(0xFF);
+				out.write(marker);
+				if (marker == JPEG_EOI) {
+					break;
+				}
+				continue;
+			}
+			int length = data.readUnsignedShort();
+			if (length < 2) {
+				throw new IOException("Invalid JPEG segment length");
+			}
+			data.readFully(segment, 0, length - 2);
+			if (isMetadata(marker, segment, length - 2)) {
+				continue;
+			}
+			out.write(0xFF);
+			out.write(marker);
+			out.write(length >> 8);
+			out.write(length);
+			out.write(segment, 0, length - 2);
+			if (marker == JPEG_SOS) {
+				int read;
+				while ((read = data.read(segment)) > 0) {
+					out.write(segment, 0, read);
+				}
+				break;
+			}
+		}
+		out.flush();
+	}
+
+	private boolean isMetadata(int type) {
+		if (type == ICCP) {
+			return stripIcc;
+		}
+		for (int metadata : METADATA_CHUNKS) {
+			if (metadata == type) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isMetadata(int marker, byte[] segment, int length) {
+		if (marker == JPEG_COM) {
+			return true;
+		}
+		if (marker < JPEG_APP0 || marker > JPEG_APP15 || marker == JPEG_APP0 || marker == JPEG_APP14) {
+			return false;
+		}
+		if (marker == JPEG_APP1 && length >= EXIF.length && startsWith(segment, EXIF)) {
+			// Без EXIF изображение с поворотом будет показано повернутым, поэтому такой EXIF сохраняется.
+			return exifOrientation(segment, length) == 1;
+		}
+		if (marker == JPEG_APP2 && length >= ICC_PROFILE.length && startsWith(segment, ICC_PROFILE)) {
+			return stripIcc;
+		}
+		return true;
+	}
+
+	/**
+	 * Метод для получения поворота изображения из EXIF.
+	 * @return значение тега Orientation либо 1, если тег отсутствует
+	 */
+	static int exifOrientation(byte[] segment, int length) {
+		int tiff = EXIF.length;
+		if (length < tiff + 8) {
+			return 1;
+		}
+		boolean little = segment[tiff] == 'I' && segment[tiff + 1] == 'I';
+		if (!little && !(segment[tiff] == 'M' && segment[tiff + 1] == 'M')) {
+			return 1;
+		}
+		long ifd = tiff + readInt(segment, tiff + 4, little);
+		if (ifd < tiff || ifd + 2 > length) {
+			return 1;
+		}
+		int entries = readShort(segment, (int) ifd, little);
+		for (int i = 0; i < entries; i++) {
+			int entry = (int) ifd + 2 + i * 12;
+			if (entry + 12 > length) {
+				break;
+			}
+			if (readShort(segment, entry, little) == 0x0112) {
+				return readShort(segment, entry + 8, little);
+			}
+		}
+		return 1;
+	}
+
+	private static int readShort(byte[] data, int offset, boolean little) {
+		int a = data[offset] & 0xFF;
+		int b = data[offset + 1] & 0xFF;
+		return little ? a | b << 8 : a << 8 | b;
+	}
+
+	private static long readInt(byte[] data, int offset, boolean little) {
+		long a = readShort(data, offset, little);
+		long b = readShort(data, offset + 2, little);
+		return little ? a | b << 16 : a << 16 | b;
+	}
+
+	private static void skipFully(DataInputStream data, long count) throws IOException {
+		for (long remaining = count; remaining > 0; ) {
+			long skipped = data.skip(remaining);
+			if (skipped <= 0) {
+				if (data.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	private static void updateInt(CRC32 crc, int value) {
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int chunkType(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+		return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+	}
+
+	/**
+	 * Повторное сжатие потока zlib из чанков IDAT. Сжатые данные записываются чанками IDAT размером не больше буфера.
+	 */
+	private static class IdatRecompressor {
+		private final DataOutputStream out;
+		private final Inflater inflater = new Inflater();
+		private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		private final byte[] raw = new byte[BUFFER_SIZE];
+		private final byte[] compressed = new byte[BUFFER_SIZE];
+		private int compressedLength;
+
+		private IdatRecompressor(DataOutputStream out) {
+			this.out = out;
+		}
+
+		private void write(byte[] data, int length) throws IOException {
+			if (inflater.finished()) {
+				return;
+			}
+			inflater.setInput(data, 0, length);
+			try {
+				while (!inflater.finished()) {
+					int inflated = inflater.inflate(raw);
+					if (inflated == 0) {
+						if (inflater.needsDictionary()) {
+							throw new IOException("PNG image data requires a dictionary");
+						}
+						if (inflater.needsInput()) {
+							break;
+						}
+						continue;
+					}
+					deflater.setInput(raw, 0, inflated);
+					while (!deflater.needsInput()) {
+						deflate();
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Invalid PNG image data", e);
+			}
+		}
+
+		private void finish() throws IOException {
+			if (!inflater.finished()) {
+				throw new IOException("PNG image data is truncated");
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+			if (compressedLength > 0) {
+				emit();
+			}
+		}
+
+		private void deflate() throws IOException {
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			if (compressedLength == compressed.length) {
+				emit();
+			}
+		}
+
+		private void emit() throws IOException {
+			CRC32 crc = new CRC32();
+			updateInt(crc, IDAT);
+			crc.update(compressed, 0, compressedLength);
+			out.writeInt(compressedLength);
+			out.writeInt(IDAT);
+			out.write(compressed, 0, compressedLength);
+			out.writeInt((int) crc.getValue());
+			compressedLength = 0;
+		}
+
+		private void end() {
+			inflater.end();
+			deflater.end();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Локальный HTTP-сервер, который отдает метрики сжатия в текстовом формате Prometheus по адресу /metrics.
+ * @author Alexandr Trifonov
+ *
+ */
+public class MetricsServer implements Closeable {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final static String PATH = "/metrics";
+	private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private MetricsServer(HttpServer server, ExecutorService executor) {
+		this.server = server;
+		this.executor = executor;
+	}
+
+	/**
+	 * Метод для запуска сервера.
+	 * @param host адрес, на котором сервер принимает соединения
+	 * @param port порт
+	 * @param metrics метрики сжатия
+	 * @return сервер
+	 * @throws IOException если не удалось открыть порт
+	 */
+	public static MetricsServer start(String host, int port, CompressionMetrics metrics) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext(PATH, exchange -> {
+			try {
+				byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.debug("Failed send metrics", e);
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		logger.info("Metrics are available at http://{}:{}{}", host, server.getAddress().getPort(), PATH);
+		return new MetricsServer(server, executor);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
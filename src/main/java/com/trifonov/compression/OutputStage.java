@@ -0,0 +1,318 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Класс для записи сжатых файлов. Содержимое потоком записывается во временный файл в директории результата, сбрасывается на диск
+ * и атомарно переименовывается поверх результата, поэтому при аварийном завершении исходный файл не может оказаться записанным частично.
+ * Для чтения используется буфер потока фиксированного размера, поэтому расход памяти на файл не зависит от размера изображения.
+ * <p>
+ * Результат записывается на место исходного файла либо в отдельную директорию с сохранением относительного пути.
+ * При записи на место исходного файла оригинал может сохраняться в директорию резервных копий.
+ * @author Alexandr Trifonov
+ *
+ */
+public class OutputStage {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+	private final static ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	/**
+	 * Директория исходных файлов, относительно которой строятся пути в директориях результата и резервных копий. Может отсутствовать.
+	 */
+	private final Path sourceRoot;
+	/**
+	 * Директория результата, отсутствует при записи на место исходных файлов.
+	 */
+	private final Path outputRoot;
+	/**
+	 * Директория резервных копий исходных файлов, может отсутствовать.
+	 */
+	private final Path backupRoot;
+
+	public OutputStage(Path sourceRoot, Path outputRoot, Path backupRoot) {
+		this.sourceRoot = sourceRoot != null ? sourceRoot.toAbsolutePath().normalize() : null;
+		this.outputRoot = outputRoot != null ? outputRoot.toAbsolutePath().normalize() : null;
+		this.backupRoot = backupRoot != null && outputRoot == null ? backupRoot.toAbsolutePath().normalize() : null;
+		if (backupRoot != null && outputRoot != null) {
+			logger.info("Backup directory = {} is not used, compressed files are written to output directory = {}", backupRoot, outputRoot);
+		}
+	}
+
+	/**
+	 * Метод для записи сжатого файла из потока.
+	 * @param source исходный файл
+	 * @param body поток с содержимым сжатого файла
+	 * @return размер и хеш содержимого сжатого файла
+	 * @throws IOException если не удалось прочитать поток или записать файл
+	 */
+	public CompressionResult write(Path source, InputStream body) throws IOException {
+		return write(source, target(source), true, body);
+	}
+
+	/**
+	 * Метод для записи варианта сжатого файла из потока. Вариант записывается рядом с результатом, резервная копия не создается.
+	 * @param source исходный файл
+	 * @param variant вариант
+	 * @param body поток с содержимым варианта
+	 * @return размер и хеш содержимого варианта
+	 * @throws IOException если не удалось прочитать поток или записать файл
+	 */
+	public CompressionResult writeVariant(Path source, OutputVariant variant, InputStream body) throws IOException {
+		return write(source, variantTarget(source, variant), false, body);
+	}
+
+	private CompressionResult write(Path source, Path target, boolean backup, InputStream body) throws IOException {
+		Path temp = createTemp(target);
+		try {
+			ContentHash hash = new ContentHash();
+			long size = 0;
+			byte[] buffer = buffers.get();
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				int read;
+				while ((read = body.read(buffer)) > 0) {
+					hash.update(buffer, 0, read);
+					ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+					while (chunk.hasRemaining()) {
+						channel.write(chunk);
+					}
+					size += read;
+				}
+				channel.force(true);
+			}
+			replace(source, temp, target, backup);
+			return new CompressionResult(size, hash.getValue());
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Метод для создания временного файла в директории результата, в который сжатый файл записывается без участия стадии,
+	 * например асинхронным HTTP-клиентом. Временный файл затем передается в {@link #commit(Path, Path)} либо {@link #discard(Path)}.
+	 * @param source исходный файл
+	 * @return временный файл
+	 * @throws IOException если не удалось создать файл
+	 */
+	public Path tempFile(Path source) throws IOException {
+		return createTemp(target(source));
+	}
+
+	/**
+	 * Метод для замены результата записанным временным файлом. Файл сбрасывается на диск и атомарно переименовывается.
+	 * @param source исходный файл
+	 * @param temp временный файл из {@link #tempFile(Path)}
+	 * @return размер и хеш содержимого сжатого файла
+	 * @throws IOException если не удалось записать файл
+	 */
+	public CompressionResult commit(Path source, Path temp) throws IOException {
+		return commit(source, target(source), true, temp);
+	}
+
+	/**
+	 * Метод для создания временного файла варианта, который затем передается в {@link #commitVariant(Path, OutputVariant, Path)}.
+	 * @param source исходный файл
+	 * @param variant вариант
+	 * @return временный файл
+	 * @throws IOException если не удалось создать файл
+	 */
+	public Path variantTempFile(Path source, OutputVariant variant) throws IOException {
+		return createTemp(variantTarget(source, variant));
+	}
+
+	/**
+	 * Метод для записи варианта из временного файла.
+	 * @param source исходный файл
+	 * @param variant вариант
+	 * @param temp временный файл из {@link #variantTempFile(Path, OutputVariant)}
+	 * @return размер и хеш содержимого варианта
+	 * @throws IOException если не удалось записать файл
+	 */
+	public CompressionResult commitVariant(Path source, OutputVariant variant, Path temp) throws IOException {
+		return commit(source, variantTarget(source, variant), false, temp);
+	}
+
+	private CompressionResult commit(Path source, Path target, boolean backup, Path temp) throws IOException {
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			CompressionResult result = new CompressionResult(Files.size(temp), ContentHash.of(temp));
+			replace(source, temp, target, backup);
+			return result;
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Метод для удаления временного файла, который не будет передан в результат.
+	 * @param temp временный файл
+	 */
+	public void discard(Path temp) {
+		deleteQuietly(temp);
+	}
+
+	/**
+	 * Метод для записи копии уже сжатого файла в результат другого исходного файла.
+	 * @param compressed сжатый файл
+	 * @param source исходный файл, результат которого заменяется
+	 * @throws IOException если не удалось скопировать файл
+	 */
+	public void copy(Path compressed, Path source) throws IOException {
+		Path target = target(source);
+		Path temp = createTemp(target);
+		try {
+			Files.copy(compressed, temp, StandardCopyOption.REPLACE_EXISTING);
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			replace(source, temp, target, true);
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Метод для получения файла результата.
+	 * @param source исходный файл
+	 * @return файл результата
+	 */
+	public Path target(Path source) {
+		return outputRoot != null ? outputRoot.resolve(relative(source)) : source;
+	}
+
+	/**
+	 * Метод для получения файла варианта.
+	 * @param source исходный файл
+	 * @param variant вариант
+	 * @return файл варианта рядом с файлом результата
+	 */
+	public Path variantTarget(Path source, OutputVariant variant) {
+		Path target = target(source);
+		return target.resolveSibling(variant.fileName(target.getFileName().toString()));
+	}
+
+	/**
+	 * @return true, если результат записывается на место исходных файлов
+	 */
+	public boolean isInPlace() {
+		return outputRoot == null;
+	}
+
+	private Path createTemp(Path target) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		return Files.createTempFile(dir, "." + target.getFileName() + ".", ".tmp");
+	}
+
+	/**
+	 * Метод для замены результата временным файлом. При записи на место исходного файла оригинал предварительно сохраняется в резервную копию.
+	 * Временный файл создается с правами только для владельца, поэтому перед переименованием он получает права и владельца
+	 * заменяемого результата либо исходного файла.
+	 * @param source исходный файл
+	 * @param backup true, если оригинал сохраняется в резервную копию, false для вариантов
+	 */
+	private void replace(Path source, Path temp, Path target, boolean backup) throws IOException {
+		copyPermissions(Files.exists(target) ? target : source, temp);
+		if (backupRoot != null && backup && Files.exists(source)) {
+			backup(source);
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(target.toAbsolutePath().getParent());
+	}
+
+	/**
+	 * Метод для копирования прав и владельца файла. Файловые системы без атрибутов POSIX пропускаются, смена владельца
+	 * без достаточных прав игнорируется.
+	 */
+	private static void copyPermissions(Path from, Path to) throws IOException {
+		if (!Files.exists(from) || !Files.getFileStore(to).supportsFileAttributeView(PosixFileAttributeView.class)) {
+			return;
+		}
+		PosixFileAttributes attributes = Files.readAttributes(from, PosixFileAttributes.class);
+		PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+		view.setPermissions(attributes.permissions());
+		try {
+			view.setOwner(attributes.owner());
+			view.setGroup(attributes.group());
+		} catch (IOException e) {
+			logger.trace("Failed copy owner of file = {} to file = {}", from, to, e);
+		}
+	}
+
+	/**
+	 * Метод для сохранения оригинала в резервную копию. Если файловая система позволяет, создается жесткая ссылка, иначе файл копируется.
+	 */
+	private void backup(Path source) throws IOException {
+		Path backup = backupRoot.resolve(relative(source));
+		Files.createDirectories(backup.getParent());
+		try {
+			Files.deleteIfExists(backup);
+			Files.createLink(backup, source);
+		} catch (UnsupportedOperationException | FileAlreadyExistsException e) {
+			copyBackup(source, backup);
+		} catch (IOException e) {
+			logger.debug("Failed create link to file = {}, backup = {}", source, backup, e);
+			copyBackup(source, backup);
+		}
+	}
+
+	private void copyBackup(Path source, Path backup) throws IOException {
+		Path temp = createTemp(backup);
+		try {
+			Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+			Files.move(temp, backup, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Метод для получения относительного пути исходного файла. Файлы вне директории исходных файлов получают путь от корня файловой системы.
+	 */
+	private Path relative(Path source) {
+		Path absolute = source.toAbsolutePath().normalize();
+		if (sourceRoot != null && absolute.startsWith(sourceRoot) && !absolute.equals(sourceRoot)) {
+			return sourceRoot.relativize(absolute);
+		}
+		return absolute.getRoot() != null ? absolute.getRoot().relativize(absolute) : absolute;
+	}
+
+	/**
+	 * Метод для сброса на диск директории после переименования. Не на всех платформах директорию можно открыть, поэтому ошибка игнорируется.
+	 */
+	private static void syncDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			logger.trace("Failed sync directory = {}", dir, e);
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			logger.debug("Failed delete temp file = {}", path, e);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.trifonov.compression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Value;
+
+/**
+ * Дополнительный вариант сжатого файла: уменьшенная копия и (или) копия в другом формате. Вариант создается сервером TinyPNG
+ * из уже сжатого изображения, поэтому исходный файл загружается один раз для всех вариантов.
+ * Вариант записывается рядом с результатом под именем с суффиксом варианта, например photo-thumb.webp.
+ * <p>
+ * Варианты задаются строкой через точку с запятой: имя варианта и операции через пробел, например
+ * {@code thumb resize=fit/150x150; webp convert=webp; card resize=cover/320x240 convert=webp}.
+ * Способы уменьшения: scale, fit, cover, thumb, для scale задается только ширина либо только высота (150x либо x150).
+ * Форматы: webp, avif, png, jpeg.
+ * @author Alexandr Trifonov
+ *
+ */
+@Value
+public class OutputVariant {
+	private final static Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+	private final static Pattern RESIZE = Pattern.compile("(scale|fit|cover|thumb)/(\\d*)x(\\d*)");
+	private final static List<String> TYPES = List.of("webp", "avif", "png", "jpeg");
+
+	/**
+	 * Имя варианта, суффикс имени файла.
+	 */
+	private String name;
+	/**
+	 * Способ уменьшения, отсутствует, если размер не меняется.
+	 */
+	private String method;
+	/**
+	 * Ширина и высота, 0 - не задана.
+	 */
+	private int width;
+	private int height;
+	/**
+	 * Формат варианта, отсутствует, если формат не меняется.
+	 */
+	private String type;
+
+	/**
+	 * Метод для разбора строки вариантов.
+	 * @param spec строка вариантов, может отсутствовать
+	 * @return варианты
+	 * @throws IllegalArgumentException если строка вариантов задана неверно
+	 */
+	public static List<OutputVariant> parse(String spec) {
+		if (spec == null || spec.trim().isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<OutputVariant> variants = new ArrayList<>();
+		for (String part : spec.split(";")) {
+			String[] tokens = part.trim().split("\\s+");
+			if (tokens.length < 2 || !NAME.matcher(tokens[0]).matches()) {
+				throw new IllegalArgumentException("Invalid variant = " + part.trim());
+			}
+			String method = null;
+			int width = 0;
+			int height = 0;
+			String type = null;
+			for (int i = 1; i < tokens.length; i++) {
+				String token = tokens[i].toLowerCase(Locale.ROOT);
+				if (token.startsWith("resize=")) {
+					Matcher matcher = RESIZE.matcher(token.substring(7));
+					if (!matcher.matches()) {
+						throw new IllegalArgumentException("Invalid resize = " + tokens[i] + ", variant = " + tokens[0]);
+					}
+					method = matcher.group(1);
+					width = matcher.group(2).isEmpty() ? 0 : Integer.parseInt(matcher.group(2));
+					height = matcher.group(3).isEmpty() ? 0 : Integer.parseInt(matcher.group(3));
+					boolean single = (width == 0) != (height == 0);
+					if (method.equals("scale") ? !single : width == 0 || height == 0) {
+						throw new IllegalArgumentException("Invalid resize size = " + tokens[i] + ", variant = " + tokens[0]);
+					}
+				} else if (token.startsWith("convert=")) {
+					type = token.substring(8).equals("jpg") ? "jpeg" : token.substring(8);
+					if (!TYPES.contains(type)) {
+						throw new IllegalArgumentException("Invalid convert type = " + tokens[i] + ", variant = " + tokens[0]);
+					}
+				} else {
+					throw new IllegalArgumentException("Invalid variant operation = " + tokens[i] + ", variant = " + tokens[0]);
+				}
+			}
+			variants.add(new OutputVariant(tokens[0], method, width, height, type));
+		}
+		return Collections.unmodifiableList(variants);
+	}
+
+	/**
+	 * @return тело запроса TinyPNG API для получения варианта сжатого изображения
+	 */
+	public Map<String, Object> toRequest() {
+		Map<String, Object> request = new LinkedHashMap<>();
+		if (method != null) {
+			Map<String, Object> resize = new LinkedHashMap<>();
+			resize.put("method", method);
+			if (width > 0) {
+				resize.put("width", width);
+			}
+			if (height > 0) {
+				resize.put("height", height);
+			}
+			request.put("resize", resize);
+		}
+		if (type != null) {
+			request.put("convert", Collections.singletonMap("type", "image/" + type));
+		}
+		return request;
+	}
+
+	/**
+	 * @param fileName имя файла результата
+	 * @return имя файла варианта: имя результата с суффиксом варианта и расширением формата варианта
+	 */
+	public String fileName(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+		String extension = type != null ? (type.equals("jpeg") ? ".jpg" : "." + type) : (dot > 0 ? fileName.substring(dot) : "");
+		return base + "-" + name + extension;
+	}
+}
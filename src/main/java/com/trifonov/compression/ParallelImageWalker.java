@@ -0,0 +1,130 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Класс для параллельного обхода директории с файлами для сжатия. Каждая поддиректория обходится отдельной задачей ForkJoinPool,
+ * поэтому глубокие деревья и сетевые директории читаются всеми ядрами.
+ * Атрибуты каждого элемента читаются один раз, в приемник передаются только обычные файлы изображений, которых нет в индексе сжатых файлов.
+ * @author Alexandr Trifonov
+ *
+ */
+public class ParallelImageWalker {
+	private static final Logger logger = LogManager.getLogger();
+
+	/**
+	 * Приемник доступных файлов для сжатия. Вызывается одновременно из нескольких потоков.
+	 */
+	private final FileSink sink;
+	/**
+	 * Файлы и директории, которые не удалось прочитать. Коллекция должна поддерживать одновременное добавление.
+	 */
+	private final Collection<FileInfo> failedList;
+	/**
+	 * Проверять сигнатуру файла в дополнение к расширению.
+	 */
+	private final boolean checkHeader;
+	/**
+	 * Индекс сжатых файлов, файлы из которого пропускаются. Может отсутствовать.
+	 */
+	private final CompressionIndex index;
+	/**
+	 * Передавать в приемник ZIP и JAR архивы для сжатия изображений внутри архивов.
+	 */
+	private final boolean archives;
+	/**
+	 * Признак остановки обхода по запросу приемника.
+	 */
+	private final AtomicBoolean stopped = new AtomicBoolean();
+
+	public ParallelImageWalker(FileSink sink, Collection<FileInfo> failedList, boolean checkHeader, CompressionIndex index) {
+		this(sink, failedList, checkHeader, index, false);
+	}
+
+	public ParallelImageWalker(FileSink sink, Collection<FileInfo> failedList, boolean checkHeader, CompressionIndex index, boolean archives) {
+		this.sink = sink;
+		this.failedList = failedList;
+		this.checkHeader = checkHeader;
+		this.index = index;
+		this.archives = archives;
+	}
+
+	/**
+	 * Метод для обхода директории. Блокируется до завершения обхода.
+	 * @param root директория
+	 * @param parallelism количество потоков обхода
+	 */
+	public void walk(Path root, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new DirectoryTask(root));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Задача обхода одной директории. Для каждой поддиректории создается отдельная задача.
+	 */
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final transient Path dir;
+
+		private DirectoryTask(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					if (stopped.get()) {
+						break;
+					}
+					visit(entry, subtasks);
+				}
+			} catch (IOException | DirectoryIteratorException e) {
+				logger.info("failed visit directory = {}", dir);
+				failedList.add(new FileInfo(dir.toString(), 0));
+			}
+			for (DirectoryTask subtask : subtasks) {
+				subtask.join();
+			}
+		}
+
+		private void visit(Path entry, List<DirectoryTask> subtasks) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isDirectory()) {
+					DirectoryTask subtask = new DirectoryTask(entry);
+					subtask.fork();
+					subtasks.add(subtask);
+				} else if (attrs.isRegularFile() && (ImageFormat.isImage(entry, checkHeader) || (archives && ArchiveRewriter.isArchive(entry)))
+						&& (index == null || !index.isCompressed(entry, attrs))) {
+					if (!sink.accept(new FileInfo(entry.toString(), attrs.size()))) {
+						stopped.set(true);
+					}
+				}
+			} catch (IOException e) {
+				logger.info("failed visit file = {}", entry);
+				failedList.add(new FileInfo(entry.toString(), 0));
+			}
+		}
+	}
+}
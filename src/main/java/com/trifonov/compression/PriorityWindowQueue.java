@@ -0,0 +1,124 @@
+package com.trifonov.compression;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Ограниченная очередь файлов, которая выдает самый большой файл из находящихся в ней.
+ * При потоковом обходе директории порядок от больших файлов к маленьким соблюдается только в пределах окна очереди,
+ * без ограничения размера очередь выдает файлы в порядке убывания размера.
+ * @author Alexandr Trifonov
+ *
+ */
+public class PriorityWindowQueue implements FileQueue {
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final SizeHeap window = new SizeHeap();
+	private final FileCatalog catalog;
+	/**
+	 * Максимальное количество файлов в очереди.
+	 */
+	private final int capacity;
+	private boolean closed;
+
+	/**
+	 * @param catalog каталог файлов, из которого берутся размеры
+	 * @param capacity максимальное количество файлов в очереди
+	 */
+	public PriorityWindowQueue(FileCatalog catalog, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be positive, capacity = " + capacity);
+		}
+		this.catalog = catalog;
+		this.capacity = capacity;
+	}
+
+	@Override
+	public boolean put(int file) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!closed && window.size() >= capacity) {
+				notFull.await();
+			}
+			if (closed) {
+				return false;
+			}
+			window.add(file, catalog.getSize(file));
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void requeue(int file) {
+		lock.lock();
+		try {
+			window.add(file, catalog.getSize(file));
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!closed && window.isEmpty()) {
+				notEmpty.await();
+			}
+			int file = window.poll();
+			if (file != FileCatalog.NONE) {
+				notFull.signal();
+			}
+			return file;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void drainTo(IntConsumer consumer) {
+		lock.lock();
+		try {
+			int file;
+			while ((file = window.poll()) != FileCatalog.NONE) {
+				consumer.accept(file);
+			}
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return window.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+}
@@ -3,24 +3,32 @@ package com.trifonov.compression;
 import java.util.Collection;
 
 /**
- * Интерфейс для создания отчетов по результатам сжатия файлов.
+ * Интерфейс для создания отчетов по результатам сжатия файлов. Отчеты со списками записываются потоково через {@link ReportWriter},
+ * поэтому их можно заполнять во время сжатия.
  * @author Alexandr Trifonov
  *
  */
 public interface ReportCreator {
 	/**
-	 * Создает отчет для очереди из объектов типа FileInfo.
-	 * @param collection очередь объектов FileInfo
+	 * Создает писатель отчета с именами файлов, по одному имени в строке.
 	 * @param reportName имя для отчета
+	 * @return писатель отчета
 	 */
-	void createReportFileInfos(Collection<FileInfo> fileInfoCollection, String reportName);
+	ReportWriter<FileInfo> createFileInfosWriter(String reportName);
 	
 	/**
-	 * Создает отчет для очереди из объектов типа String.
-	 * @param collection очередь объектов String
+	 * Создает писатель отчета со строками, по одной строке в строке отчета.
 	 * @param reportName имя для отчета
+	 * @return писатель отчета
+	 */
+	ReportWriter<String> createStringsWriter(String reportName);
+	
+	/**
+	 * Создает писатель массива json-объектов FileInfo.
+	 * @param fileName имя для отчета
+	 * @return писатель отчета
 	 */
-	void createReportStrings(Collection<String> stringCollection, String reportName);
+	ReportWriter<FileInfo> createFileInfoJsonWriter(String fileName);
 	
 	/**
 	 * Создает отчет для числа.
@@ -29,10 +37,36 @@ public interface ReportCreator {
 	 */
 	void createReportNumber(int number, String reportName);
 	
+	/**
+	 * Создает отчет для очереди из объектов типа FileInfo.
+	 * @param fileInfoCollection очередь объектов FileInfo
+	 * @param reportName имя для отчета
+	 */
+	default void createReportFileInfos(Collection<FileInfo> fileInfoCollection, String reportName) {
+		try (ReportWriter<FileInfo> writer = createFileInfosWriter(reportName)) {
+			fileInfoCollection.forEach(writer::write);
+		}
+	}
+	
+	/**
+	 * Создает отчет для очереди из объектов типа String.
+	 * @param stringCollection очередь объектов String
+	 * @param reportName имя для отчета
+	 */
+	default void createReportStrings(Collection<String> stringCollection, String reportName) {
+		try (ReportWriter<String> writer = createStringsWriter(reportName)) {
+			stringCollection.forEach(writer::write);
+		}
+	}
+	
 	/**
 	 * Создает объекты json из полученной коллекции с элементами типа FileInfo.
 	 * @param files коллекция с элементами типа FileInfo
-	 * @param fileName
+	 * @param fileName имя для отчета
 	 */
-	void createFileInfoJson(Collection<FileInfo> files, String fileName);
+	default void createFileInfoJson(Collection<FileInfo> files, String fileName) {
+		try (ReportWriter<FileInfo> writer = createFileInfoJsonWriter(fileName)) {
+			files.forEach(writer::write);
+		}
+	}
 }
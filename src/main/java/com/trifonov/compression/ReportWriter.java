@@ -0,0 +1,60 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+
+/**
+ * Интерфейс для потоковой записи отчета. Записи добавляются по одной по мере появления, поэтому отчет не собирается в памяти.
+ * Реализации должны допускать вызов из нескольких потоков.
+ * @author Alexandr Trifonov
+ *
+ * @param <T> тип записи отчета
+ */
+public interface ReportWriter<T> extends Closeable {
+	/**
+	 * Добавляет запись в отчет.
+	 * @param entry запись
+	 */
+	void write(T entry);
+
+	/**
+	 * Сбрасывает записанные данные в файл отчета.
+	 */
+	void flush();
+
+	/**
+	 * Завершает отчет. Ошибки записи не выбрасываются, а записываются в лог.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * Создает писатель, который передает каждую запись во все указанные писатели.
+	 * @param writers писатели
+	 * @return общий писатель
+	 */
+	@SafeVarargs
+	static <T> ReportWriter<T> of(ReportWriter<T>... writers) {
+		return new ReportWriter<T>() {
+			@Override
+			public void write(T entry) {
+				for (ReportWriter<T> writer : writers) {
+					writer.write(entry);
+				}
+			}
+
+			@Override
+			public void flush() {
+				for (ReportWriter<T> writer : writers) {
+					writer.flush();
+				}
+			}
+
+			@Override
+			public void close() {
+				for (ReportWriter<T> writer : writers) {
+					writer.close();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,35 @@
+package com.trifonov.compression;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Политика задержек перед повтором после ошибки сервера или соединения. Задержка растет экспоненциально с номером попытки
+ * до заданного максимума, половина задержки выбирается случайно, чтобы потоки не повторяли запросы одновременно.
+ * @author Alexandr Trifonov
+ *
+ */
+public class RetryPolicy {
+	/**
+	 * Задержка первой попытки в миллисекундах.
+	 */
+	private final long baseMillis;
+	/**
+	 * Максимальная задержка в миллисекундах.
+	 */
+	private final long maxMillis;
+
+	public RetryPolicy(long baseMillis, long maxMillis) {
+		this.baseMillis = Math.max(1, baseMillis);
+		this.maxMillis = Math.max(this.baseMillis, maxMillis);
+	}
+
+	/**
+	 * Метод для получения задержки перед повтором.
+	 * @param attempt номер повтора, начиная с 0
+	 * @return задержка в миллисекундах
+	 */
+	public long delay(int attempt) {
+		long cap = Math.min(maxMillis, baseMillis << Math.min(Math.max(attempt, 0), 20));
+		return cap / 2 + ThreadLocalRandom.current().nextLong(cap - cap / 2 + 1);
+	}
+}
@@ -0,0 +1,72 @@
+package com.trifonov.compression;
+
+import java.util.Arrays;
+
+/**
+ * Куча номеров файлов, которая выдает номер самого большого файла. Номера и размеры хранятся в массивах примитивов.
+ * Класс не потокобезопасен.
+ * @author Alexandr Trifonov
+ *
+ */
+class SizeHeap {
+	private int[] ids = new int[16];
+	private long[] sizes = new long[16];
+	private int size;
+
+	void add(int id, long fileSize) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size << 1);
+			sizes = Arrays.copyOf(sizes, size << 1);
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (sizes[parent] >= fileSize) {
+				break;
+			}
+			ids[i] = ids[parent];
+			sizes[i] = sizes[parent];
+			i = parent;
+		}
+		ids[i] = id;
+		sizes[i] = fileSize;
+	}
+
+	/**
+	 * @return номер самого большого файла либо {@link FileCatalog#NONE}, если куча пуста
+	 */
+	int poll() {
+		if (size == 0) {
+			return FileCatalog.NONE;
+		}
+		int result = ids[0];
+		int last = --size;
+		int lastId = ids[last];
+		long lastSize = sizes[last];
+		int i = 0;
+		int half = last >>> 1;
+		while (i < half) {
+			int child = (i << 1) + 1;
+			if (child + 1 < last && sizes[child + 1] > sizes[child]) {
+				child++;
+			}
+			if (lastSize >= sizes[child]) {
+				break;
+			}
+			ids[i] = ids[child];
+			sizes[i] = sizes[child];
+			i = child;
+		}
+		ids[i] = lastId;
+		sizes[i] = lastSize;
+		return result;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+}
@@ -0,0 +1,180 @@
+package com.trifonov.compression;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Ограниченная очередь файлов с двумя полосами: большие файлы выдаются от больших к маленьким, маленькие в порядке поступления.
+ * При каждой выдаче выбирается полоса с большим оценочным временем оставшегося сжатия, поэтому полосы заканчиваются одновременно:
+ * большие файлы не занимают все потоки в начале, а маленькие файлы не остаются длинным хвостом в конце.
+ * Время оценивается по наблюдаемым сжатиям через {@link LatencyEstimator}, которому рабочие потоки сообщают время сжатия файлов.
+ * @author Alexandr Trifonov
+ *
+ */
+public class SizeLaneQueue implements FileQueue {
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final SizeHeap large = new SizeHeap();
+	private final IdRing small = new IdRing();
+	private final FileCatalog catalog;
+	private final LatencyEstimator estimator = new LatencyEstimator();
+	/**
+	 * Размер файла в байтах, начиная с которого файл попадает в полосу больших файлов.
+	 */
+	private final long laneThreshold;
+	/**
+	 * Суммарный размер файлов в полосах.
+	 */
+	private long largeBytes;
+	private long smallBytes;
+	/**
+	 * Максимальное количество файлов в очереди.
+	 */
+	private final int capacity;
+	private boolean closed;
+
+	/**
+	 * @param catalog каталог файлов, из которого берутся размеры
+	 * @param capacity максимальное количество файлов в очереди
+	 * @param laneThreshold размер файла в байтах, начиная с которого файл попадает в полосу больших файлов
+	 */
+	public SizeLaneQueue(FileCatalog catalog, int capacity, long laneThreshold) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be positive, capacity = " + capacity);
+		}
+		this.catalog = catalog;
+		this.capacity = capacity;
+		this.laneThreshold = laneThreshold;
+	}
+
+	@Override
+	public boolean put(int file) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!closed && size() >= capacity) {
+				notFull.await();
+			}
+			if (closed) {
+				return false;
+			}
+			add(file);
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void requeue(int file) {
+		lock.lock();
+		try {
+			add(file);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (!closed && isEmpty()) {
+				notEmpty.await();
+			}
+			int file = poll();
+			if (file != FileCatalog.NONE) {
+				notFull.signal();
+			}
+			return file;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void completed(int file, long nanos) {
+		lock.lock();
+		try {
+			estimator.record(catalog.getSize(file), nanos / 1_000_000.0);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void drainTo(IntConsumer consumer) {
+		lock.lock();
+		try {
+			int file;
+			while ((file = poll()) != FileCatalog.NONE) {
+				consumer.accept(file);
+			}
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return large.size() + small.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	private void add(int file) {
+		long size = catalog.getSize(file);
+		if (size >= laneThreshold) {
+			large.add(file, size);
+			largeBytes += size;
+		} else {
+			small.add(file);
+			smallBytes += size;
+		}
+	}
+
+	/**
+	 * Метод для выдачи файла из полосы с большим оценочным временем оставшегося сжатия.
+	 */
+	private int poll() {
+		boolean fromLarge;
+		if (large.isEmpty() || small.isEmpty()) {
+			fromLarge = !large.isEmpty();
+		} else {
+			fromLarge = estimator.estimate(large.size(), largeBytes) >= estimator.estimate(small.size(), smallBytes);
+		}
+		int file = fromLarge ? large.poll() : small.poll();
+		if (file != FileCatalog.NONE) {
+			if (fromLarge) {
+				largeBytes -= catalog.getSize(file);
+			} else {
+				smallBytes -= catalog.getSize(file);
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,311 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinify.ConnectionException;
+import com.tinify.ServerException;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Клиент TinyPNG API, привязанный к одному ключу. В отличие от статического фасада Tinify каждый экземпляр имеет
+ * собственный HTTP-клиент и пул соединений, поэтому потоки с разными ключами не мешают друг другу и запросы
+ * учитываются на тот ключ, с которым они были отправлены.
+ * Ошибки API преобразуются в исключения библиотеки Tinify, ключ, отклоненный сервером, приводит к {@link CredentialsException}.
+ * Клиент является способом сжатия {@link CompressionBackend}, аренду ключа для него выдает {@link KeyPool}.
+ * @author Alexandr Trifonov
+ *
+ */
+public class TinifyClient implements CompressionBackend, Closeable {
+	/**
+	 * Адрес TinyPNG API по умолчанию.
+	 */
+	public final static String API_ENDPOINT = "https://api.tinify.com";
+	private final static String NAME = "tinypng";
+	private final static MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+	private final static MediaType JSON = MediaType.parse("application/json");
+
+	private static final Logger logger = LogManager.getLogger();
+	private final static ObjectMapper objMapper = new ObjectMapper();
+
+	/**
+	 * Ключ, на который учитываются все запросы клиента.
+	 */
+	private final String key;
+	private final HttpUrl endpoint;
+	private final String credentials;
+	private final OkHttpClient client;
+	/**
+	 * Количество сжатий ключа по данным последнего ответа сервера, -1 если ответа еще не было.
+	 */
+	private volatile int compressionCount = -1;
+	/**
+	 * Метрики времени загрузки и скачивания, могут отсутствовать.
+	 */
+	private volatile CompressionMetrics metrics;
+
+	public TinifyClient(String key, String endpoint, int maxIdleConnections) {
+		this.key = key;
+		this.endpoint = HttpUrl.parse(endpoint);
+		if (this.endpoint == null) {
+			throw new IllegalArgumentException("Invalid TinyPNG endpoint = " + endpoint);
+		}
+		this.credentials = Credentials.basic("api", key);
+		this.client = new OkHttpClient.Builder()
+				.connectionPool(new ConnectionPool(maxIdleConnections, 5, TimeUnit.MINUTES))
+				.readTimeout(60, TimeUnit.SECONDS)
+				.writeTimeout(60, TimeUnit.SECONDS)
+				.build();
+	}
+
+	/**
+	 * Метод для сжатия файла. Исходный файл загружается на сервер с диска, сжатый файл потоком передается в стадию записи,
+	 * поэтому файл целиком не хранится в памяти.
+	 * @param file файл для сжатия
+	 * @param output стадия записи сжатых файлов
+	 * @return размер и хеш содержимого сжатого файла
+	 * @throws IOException если не удалось записать файл
+	 */
+	public CompressionResult compress(FileInfo file, OutputStage output) throws IOException {
+		return compress(file, Paths.get(file.getName()), output);
+	}
+
+	/**
+	 * Метод для сжатия файла, содержимое которого загружается из другого файла, например из результата локальной оптимизации.
+	 * @param file файл для сжатия
+	 * @param upload файл, который загружается на сервер
+	 * @param output стадия записи сжатых файлов
+	 * @return размер и хеш содержимого сжатого файла
+	 * @throws IOException если не удалось записать файл
+	 */
+	@Override
+	public CompressionResult compress(FileInfo file, Path upload, OutputStage output) throws IOException {
+		return compress(file, upload, output, null);
+	}
+
+	/**
+	 * Метод для сжатия файла с вариантами. Варианты запрашиваются по адресу сжатого изображения, поэтому файл загружается один раз.
+	 * @param file файл для сжатия
+	 * @param upload файл, который загружается на сервер
+	 * @param output стадия записи сжатых файлов
+	 * @param variants стадия записи вариантов, может отсутствовать
+	 * @return размер и хеш содержимого сжатого файла
+	 * @throws IOException если не удалось записать файл
+	 */
+	public CompressionResult compress(FileInfo file, Path upload, OutputStage output, VariantStage variants) throws IOException {
+		Path source = Paths.get(file.getName());
+		long start = System.nanoTime();
+		String location = shrink(upload, UploadBody.length(upload));
+		long uploaded = System.nanoTime();
+		Request request = new Request.Builder()
+				.url(location)
+				.get()
+				.build();
+		CompressionResult result;
+		try (Response response = execute(request); InputStream body = response.body().byteStream()) {
+			result = output.write(source, body);
+		}
+		CompressionMetrics current = metrics;
+		if (current != null) {
+			current.upload(uploaded - start);
+			current.download(System.nanoTime() - uploaded);
+		}
+		if (variants != null) {
+			variants.write(this, location, source);
+		}
+		return result;
+	}
+
+	/**
+	 * Метод для получения варианта сжатого изображения. Вариант потоком передается в стадию записи.
+	 * @param location адрес сжатого изображения на сервере
+	 * @param variant вариант
+	 * @param source исходный файл
+	 * @param output стадия записи сжатых файлов
+	 * @return размер и хеш содержимого варианта
+	 * @throws IOException если не удалось записать файл
+	 */
+	public CompressionResult variant(String location, OutputVariant variant, Path source, OutputStage output) throws IOException {
+		Request request = new Request.Builder()
+				.url(location)
+				.post(RequestBody.create(JSON, objMapper.writeValueAsBytes(variant.toRequest())))
+				.build();
+		try (Response response = execute(request); InputStream body = response.body().byteStream()) {
+			return output.writeVariant(source, variant, body);
+		}
+	}
+
+	/**
+	 * Метод для загрузки изображения на сервер. Файл читается с диска по мере отправки через прямые буферы из пула,
+	 * см. {@link UploadBody}.
+	 * @param file файл изображения
+	 * @param length размер файла, если файл изменился, загрузка завершается ошибкой
+	 * @return адрес сжатого изображения на сервере
+	 * @throws UploadException если файл не удалось прочитать или он изменился во время загрузки
+	 */
+	public String shrink(Path file, long length) throws UploadException {
+		try {
+			return shrink(UploadBody.of(file, length, OCTET_STREAM));
+		} catch (UncheckedIOException e) {
+			UploadException upload = UploadException.find(e);
+			if (upload == null) {
+				throw e;
+			}
+			throw upload;
+		}
+	}
+
+	/**
+	 * Метод для загрузки изображения на сервер.
+	 * @param data содержимое изображения
+	 * @return адрес сжатого изображения на сервере
+	 */
+	public String shrink(byte[] data) {
+		return shrink(RequestBody.create(OCTET_STREAM, data));
+	}
+
+	private String shrink(RequestBody body) {
+		Request request = new Request.Builder()
+				.url(endpoint.resolve("/shrink"))
+				.post(body)
+				.build();
+		try (Response response = execute(request)) {
+			String location = response.header("Location");
+			if (location == null) {
+				throw new ServerException("Location header is missing", "ParseError", response.code());
+			}
+			return endpoint.resolve(location).toString();
+		}
+	}
+
+	/**
+	 * Метод для скачивания сжатого изображения.
+	 * @param location адрес сжатого изображения на сервере
+	 * @return содержимое сжатого изображения
+	 */
+	public byte[] download(String location) {
+		Request request = new Request.Builder()
+				.url(location)
+				.get()
+				.build();
+		try (Response response = execute(request)) {
+			return response.body().bytes();
+		} catch (IOException e) {
+			throw new ConnectionException("Error while reading response: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setMetrics(CompressionMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public int getCompressionCount() {
+		return compressionCount;
+	}
+
+	@Override
+	public void close() {
+		client.dispatcher().executorService().shutdown();
+		client.connectionPool().evictAll();
+	}
+
+	/**
+	 * Метод для выполнения запроса с ключом клиента. Ответ с ошибкой преобразуется в исключение Tinify.
+	 * Клиент не повторяет запросы: после ошибки сервера или соединения файл повторяется по {@link RetryPolicy} пула ключей.
+	 * Ошибка чтения загружаемого файла передается как {@link UncheckedIOException} с {@link UploadException}, а не как ошибка соединения.
+	 * @param request запрос
+	 * @return успешный ответ, который необходимо закрыть
+	 */
+	private Response execute(Request request) {
+		Request authorized = request.newBuilder().header("Authorization", credentials).build();
+		Response response;
+		try {
+			response = client.newCall(authorized).execute();
+		} catch (IOException e) {
+			UploadException upload = UploadException.find(e);
+			if (upload != null) {
+				throw new UncheckedIOException(upload);
+			}
+			throw new ConnectionException("Error while connecting: " + e.getMessage(), e);
+		}
+		updateCompressionCount(response.header("Compression-Count"));
+		if (response.isSuccessful()) {
+			return response;
+		}
+		try (Response failed = response) {
+			byte[] body;
+			try {
+				body = failed.body().bytes();
+			} catch (IOException e) {
+				logger.debug("Failed read error response, status = {}", failed.code(), e);
+				body = new byte[0];
+			}
+			throw error(failed.code(), body);
+		}
+	}
+
+	/**
+	 * Метод для обновления количества сжатий ключа из заголовка Compression-Count ответа.
+	 * @param count значение заголовка, может отсутствовать
+	 */
+	void updateCompressionCount(String count) {
+		if (count != null) {
+			try {
+				compressionCount = Integer.parseInt(count.trim());
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid Compression-Count header = {}, key = {}", count, key);
+			}
+		}
+	}
+
+	/**
+	 * Метод для преобразования ответа с ошибкой в исключение Tinify.
+	 * @param status код ответа
+	 * @param body тело ответа
+	 * @return исключение
+	 */
+	static com.tinify.Exception error(int status, byte[] body) {
+		String type = "ParseError";
+		String message = "Error while parsing response, status = " + status;
+		try {
+			JsonNode node = objMapper.readTree(body);
+			if (node != null && node.hasNonNull("error")) {
+				type = node.get("error").asText();
+				message = node.hasNonNull("message") ? node.get("message").asText() : type;
+			}
+		} catch (IOException e) {
+			logger.debug("Failed parse error response, status = {}", status, e);
+		}
+		if (status == 401) {
+			return new CredentialsException(message, type, status);
+		}
+		return com.tinify.Exception.create(message, type, status);
+	}
+}
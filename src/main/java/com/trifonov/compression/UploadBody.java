@@ -0,0 +1,256 @@
+package com.trifonov.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Тела запросов загрузки файла в TinyPNG без чтения файла в массивы байт.
+ * Синхронный клиент читает файл из {@link FileChannel} в прямые буферы из общего пула и пишет их в соединение.
+ * Асинхронный клиент отображает файл в память и передает части отображения, поэтому содержимое файла не копируется в кучу.
+ * Длина тела читается перед каждой загрузкой и проверяется по открытому файлу. Ошибки чтения загружаемого файла
+ * передаются как {@link UploadException}, чтобы их можно было отличить от ошибок соединения.
+ * @author Alexandr Trifonov
+ *
+ */
+public class UploadBody {
+	private final static int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Количество прямых буферов, которые хранятся в пуле. Буферы сверх этого количества создаются и освобождаются сборщиком мусора.
+	 */
+	private final static int POOL_SIZE = 64;
+	private final static BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(POOL_SIZE);
+	/**
+	 * Файл, отображенный в память, нельзя заменить в Windows до освобождения отображения сборщиком мусора,
+	 * поэтому там асинхронный клиент читает файл стандартным способом.
+	 */
+	private final static boolean MAPPING = File.separatorChar == '/';
+
+	private UploadBody() {
+	}
+
+	/**
+	 * Метод для получения длины тела загрузки. Размер читается с диска, потому что файл мог измениться после обхода директории.
+	 * @param upload файл, который загружается на сервер
+	 * @return размер загружаемого файла
+	 * @throws UploadException если не удалось получить размер файла
+	 */
+	public static long length(Path upload) throws UploadException {
+		try {
+			return Files.size(upload);
+		} catch (IOException e) {
+			throw new UploadException("Failed read file size, file = " + upload, e);
+		}
+	}
+
+	/**
+	 * @param file загружаемый файл
+	 * @param length длина тела
+	 * @param contentType тип содержимого
+	 * @return тело запроса OkHttp, которое можно отправить повторно
+	 */
+	public static RequestBody of(Path file, long length, MediaType contentType) {
+		return new ChannelBody(file, length, contentType);
+	}
+
+	/**
+	 * @param file загружаемый файл
+	 * @param length длина тела
+	 * @return тело запроса {@link java.net.http.HttpClient}
+	 * @throws IOException если не удалось открыть файл
+	 */
+	public static HttpRequest.BodyPublisher publisher(Path file, long length) throws IOException {
+		if (length == 0) {
+			return HttpRequest.BodyPublishers.noBody();
+		}
+		if (!MAPPING || length > Integer.MAX_VALUE) {
+			return HttpRequest.BodyPublishers.ofFile(file);
+		}
+		return HttpRequest.BodyPublishers.fromPublisher(new MappedPublisher(file, length), length);
+	}
+
+	private static ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private static void release(ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * Метод для проверки, что файл не изменился после получения длины тела.
+	 */
+	private static void checkSize(Path file, FileChannel channel, long length) throws IOException {
+		long size = channel.size();
+		if (size != length) {
+			throw new UploadException("File size is changed, file = " + file + ", expected = " + length + ", actual = " + size);
+		}
+	}
+
+	private static FileChannel open(Path file) throws UploadException {
+		try {
+			return FileChannel.open(file, StandardOpenOption.READ);
+		} catch (IOException e) {
+			throw new UploadException("Failed open file = " + file, e);
+		}
+	}
+
+	/**
+	 * Тело запроса OkHttp, которое читается из файла по мере отправки.
+	 */
+	private static class ChannelBody extends RequestBody {
+		private final Path file;
+		private final long length;
+		private final MediaType contentType;
+
+		private ChannelBody(Path file, long length, MediaType contentType) {
+			this.file = file;
+			this.length = length;
+			this.contentType = contentType;
+		}
+
+		@Override
+		public MediaType contentType() {
+			return contentType;
+		}
+
+		@Override
+		public long contentLength() {
+			return length;
+		}
+
+		@Override
+		public void writeTo(BufferedSink sink) throws IOException {
+			try (FileChannel channel = open(file)) {
+				checkSize(file, channel, length);
+				ByteBuffer buffer = acquire();
+				try {
+					long position = 0;
+					while (position < length) {
+						buffer.clear();
+						int read;
+						try {
+							read = channel.read(buffer, position);
+						} catch (IOException e) {
+							throw new UploadException("Failed read file = " + file, e);
+						}
+						if (read < 0) {
+							throw new UploadException("Unexpected end of file = " + file);
+						}
+						buffer.flip();
+						while (buffer.hasRemaining()) {
+							sink.write(buffer);
+						}
+						position += read;
+					}
+				} finally {
+					release(buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Источник тела запроса из файла, отображенного в память. Подписчик получает части отображения по запросу.
+	 */
+	private static class MappedPublisher implements Flow.Publisher<ByteBuffer> {
+		private final Path file;
+		private final long length;
+
+		private MappedPublisher(Path file, long length) {
+			this.file = file;
+			this.length = length;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			MappedByteBuffer mapped;
+			try (FileChannel channel = open(file)) {
+				checkSize(file, channel, length);
+				try {
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				} catch (IOException e) {
+					throw new UploadException("Failed map file = " + file, e);
+				}
+			} catch (IOException | RuntimeException e) {
+				subscriber.onSubscribe(new MappedSubscription(subscriber, null));
+				subscriber.onError(e);
+				return;
+			}
+			subscriber.onSubscribe(new MappedSubscription(subscriber, mapped));
+		}
+	}
+
+	private static class MappedSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final MappedByteBuffer mapped;
+		private final AtomicLong demand = new AtomicLong();
+		/**
+		 * Количество вызовов передачи, ожидающих выполнения. Передача выполняется одним потоком.
+		 */
+		private final AtomicInteger work = new AtomicInteger();
+		private volatile boolean cancelled;
+		private int position;
+
+		private MappedSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, MappedByteBuffer mapped) {
+			this.subscriber = subscriber;
+			this.mapped = mapped;
+			this.cancelled = mapped == null;
+		}
+
+		@Override
+		public void request(long n) {
+			if (cancelled) {
+				return;
+			}
+			if (n <= 0) {
+				cancelled = true;
+				subscriber.onError(new IllegalArgumentException("Non-positive request = " + n));
+				return;
+			}
+			demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		private void drain() {
+			if (work.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				while (!cancelled && position < mapped.limit() && demand.get() > 0) {
+					int length = Math.min(BUFFER_SIZE, mapped.limit() - position);
+					ByteBuffer chunk = mapped.slice(position, length);
+					position += length;
+					demand.decrementAndGet();
+					subscriber.onNext(chunk);
+				}
+				if (!cancelled && position >= mapped.limit()) {
+					cancelled = true;
+					subscriber.onComplete();
+				}
+			} while (work.decrementAndGet() != 0);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+
+/**
+ * Исключение для ошибки чтения загружаемого файла на этом узле: файл недоступен либо изменился во время загрузки.
+ * Такая ошибка не является ошибкой сервера или соединения, поэтому ключ не приостанавливается и выключатель ее не учитывает.
+ * @author Alexandr Trifonov
+ *
+ */
+public class UploadException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public UploadException(String message) {
+		super(message);
+	}
+
+	public UploadException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	/**
+	 * @param error ошибка запроса
+	 * @return ошибка загружаемого файла из цепочки причин либо null
+	 */
+	public static UploadException find(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UploadException) {
+				return (UploadException) cause;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return null;
+	}
+}
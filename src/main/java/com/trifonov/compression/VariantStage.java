@@ -0,0 +1,103 @@
+package com.trifonov.compression;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Стадия записи вариантов сжатого файла. Варианты запрашиваются у сервера по адресу уже сжатого изображения, поэтому файл
+ * загружается один раз, и скачиваются одновременно. Ошибка варианта не влияет на результат сжатия файла: вариант пропускается
+ * с записью в журнал работы.
+ * Сервер TinyPNG учитывает каждое уменьшение и преобразование формата как отдельное сжатие, счетчик сжатий ключа
+ * обновляется из ответов до возврата аренды.
+ * @author Alexandr Trifonov
+ *
+ */
+public class VariantStage {
+	private static final Logger logger = LogManager.getLogger();
+
+	private final List<OutputVariant> variants;
+	private final OutputStage output;
+	/**
+	 * Потоки для скачивания вариантов синхронным клиентом.
+	 */
+	private final Executor executor;
+	/**
+	 * Получатель записанных вариантов: файл варианта и его размер и хеш.
+	 */
+	private final BiConsumer<Path, CompressionResult> written;
+
+	/**
+	 * @param variants варианты
+	 * @param output стадия записи сжатых файлов
+	 * @param executor потоки для скачивания вариантов синхронным клиентом
+	 * @param written получатель записанных вариантов
+	 */
+	public VariantStage(List<OutputVariant> variants, OutputStage output, Executor executor, BiConsumer<Path, CompressionResult> written) {
+		this.variants = variants;
+		this.output = output;
+		this.executor = executor;
+		this.written = written;
+	}
+
+	public List<OutputVariant> getVariants() {
+		return variants;
+	}
+
+	/**
+	 * Метод для записи всех вариантов файла синхронным клиентом. Метод ждет завершения всех вариантов.
+	 * @param client клиент ключа, которым сжат файл
+	 * @param location адрес сжатого изображения на сервере
+	 * @param source исходный файл
+	 */
+	public void write(TinifyClient client, String location, Path source) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[variants.size()];
+		for (int i = 0; i < futures.length; i++) {
+			OutputVariant variant = variants.get(i);
+			futures[i] = CompletableFuture.supplyAsync(() -> {
+				try {
+					return client.variant(location, variant, source, output);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor).handle((result, error) -> done(source, variant, result, error));
+		}
+		CompletableFuture.allOf(futures).join();
+	}
+
+	/**
+	 * Метод для записи всех вариантов файла асинхронным клиентом.
+	 * @param client асинхронный клиент
+	 * @param lease аренда ключа, которым сжат файл
+	 * @param location адрес сжатого изображения на сервере
+	 * @param source исходный файл
+	 * @return завершается после записи либо ошибки всех вариантов, ошибкой не завершается
+	 */
+	public CompletableFuture<Void> writeAsync(AsyncTinifyClient client, KeyLease lease, String location, Path source) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[variants.size()];
+		for (int i = 0; i < futures.length; i++) {
+			OutputVariant variant = variants.get(i);
+			futures[i] = client.variant(lease, location, variant, source, output).handle((result, error) -> done(source, variant, result, error));
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	private Void done(Path source, OutputVariant variant, CompressionResult result, Throwable error) {
+		if (error != null) {
+			Throwable cause = error.getCause() != null ? error.getCause() : error;
+			logger.error("Failed write variant = {}, file = {}, message = {}", variant.getName(), source, cause.getMessage());
+			return null;
+		}
+		Path target = output.variantTarget(source, variant);
+		logger.info("Variant file = {}, size = {}", target, result.getSize());
+		written.accept(target, result);
+		return null;
+	}
+}
@@ -3,19 +3,24 @@ package com.trifonov.main;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.trifonov.compression.CompressionReport;
+import com.trifonov.compression.CompressionSettings;
 import com.trifonov.compression.Compressor;
-import com.trifonov.compression.FileInfo;
 import com.trifonov.compression.FileProvider;
 import com.trifonov.compression.FileReportCreator;
 import com.trifonov.compression.ReportCreator;
+import com.trifonov.compression.ReportWriter;
 
 /**
  * Основной класс для запуска и работы приложения.
@@ -51,6 +56,10 @@ public class Main {
 	 * Название файла со списком неиспользованных до лимита ключей.
 	 */
 	private final static String INCOMPLETE_KEYS = "incomplete-keys.txt";
+	/**
+	 * Название файла с остатками сжатий ключей.
+	 */
+	private final static String KEY_CREDITS = "key-credits.txt";
 	/**
 	 * Название файла со списком оставшихся несжатых файлов.
 	 */
@@ -63,64 +72,106 @@ public class Main {
 	 * Название файла со списком использованных до лимита ключей.
 	 */
 	private final static String WASTE_KEYS = "waste-keys.txt";
+	/**
+	 * Время ожидания завершения сжатия и записи отчетов после отмены в миллисекундах.
+	 */
+	private final static long CANCEL_TIMEOUT = 120_000;
 
 	private static final Logger logger = LogManager.getLogger();
 	
+	/**
+	 * Запуск приложения. Источник файлов и файл с ключами запрашиваются в консоли, если они не переданы аргументами,
+	 * что позволяет запускать режим наблюдения как службу.
+	 * @param args абсолютный путь источника файлов и абсолютное имя файла с ключами, могут отсутствовать
+	 */
 	public static void main(String[] args) {		
 		
-		Path sourcePath = FileProvider.getSourcePath();
+		Path sourcePath = args.length > 0 ? Paths.get(args[0]) : FileProvider.getSourcePath();
 		System.out.println();
-		Path keysPath = FileProvider.getKeysPath();
+		Path keysPath = args.length > 1 ? Paths.get(args[1]) : FileProvider.getKeysPath();
 		System.out.println();
 		
-		Compressor compressor = new Compressor();
-		compressor.compress(sourcePath, keysPath);
-		
 		Main main = new Main();
+		Compressor compressor = new Compressor(CompressionSettings.fromProperties(main.props("/compression.properties")));
+		compressor.addListener(progress -> logger.info("Progress: {}", progress));
+		Thread mainThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			if (mainThread.isAlive()) {
+				compressor.cancel();
+				try {
+					mainThread.join(CANCEL_TIMEOUT);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}));
+		
 		Properties props = main.props();
+		ReportCreator reportCreator = null;
+		CompressionReport report = null;
 		if (!props.isEmpty()) {
+			reportCreator = new FileReportCreator();
+			// Списки файлов записываются во время сжатия, по мере появления результатов.
+			report = new CompressionReport(
+					ReportWriter.of(reportCreator.createFileInfosWriter(name(props, "failed.read.files", FAILED_READ_FILES)),
+							reportCreator.createFileInfoJsonWriter(name(props, "failed.read.files.json", FAILED_READ_FILES_JSON))),
+					ReportWriter.of(reportCreator.createFileInfosWriter(name(props, "uncompressed.files.file", UNCOMPRESSED_FILES)),
+							reportCreator.createFileInfoJsonWriter(name(props, "uncompressed.files.json", UNCOMPRESSED_FILES_JSON))),
+					ReportWriter.of(reportCreator.createFileInfosWriter(name(props, "failed.compressed.files.file", FAILED_COMPRESSED_FILES)),
+							reportCreator.createFileInfoJsonWriter(name(props, "failed.compressed.files.json", FAILED_COMPRESSED_JSON))));
+			compressor.addListener(report);
+		}
+		
+		compressor.compress(sourcePath, keysPath);
+		
+		if (report != null) {
+			report.close();
+			
 			AtomicInteger countCompressed = compressor.getCountCompressed();		
-			Queue<FileInfo> failedCompressedFiles = compressor.getFailedCompressedFiles();
-			Queue<FileInfo> uncompressedFiles = compressor.getUncompressedFiles();
-			List<FileInfo> failedReadFilesList = compressor.getFailedReadFilesList();
 			Queue<String> failedKeys = compressor.getFailedKeys();
 			Queue<String> wasteKeys = compressor.getWasteKeys();
 			Queue<String> incompleteKeys = compressor.getIncompleteKeys();			
+			List<String> keyCredits = compressor.getKeyCredits().entrySet().stream()
+					.map(Map.Entry::toString)
+					.collect(Collectors.toList());
 			
-			ReportCreator reportCreator = new FileReportCreator();
-			
-			reportCreator.createReportNumber(countCompressed.get(),
-					props.getProperty("count.compressed_file") != null ? props.getProperty("count.compressed_file"): COUNT_COMPRESSED_FILE);
-			reportCreator.createReportFileInfos(failedReadFilesList,
-					props.getProperty("failed.read.files") != null ? props.getProperty("failed.read.files") : FAILED_READ_FILES);
-			reportCreator.createReportFileInfos(uncompressedFiles, 
-					props.getProperty("uncompressed.files.file") != null ? props.getProperty("uncompressed.files.file") : UNCOMPRESSED_FILES);
-			reportCreator.createReportFileInfos(failedCompressedFiles, 
-					props.getProperty("failed.compressed.files.file") != null ? props.getProperty("failed.compressed.files.file") : FAILED_COMPRESSED_FILES);
-			reportCreator.createReportStrings(failedKeys, 
-					props.getProperty("failed.keys.file") != null ? props.getProperty("failed.keys.file") : FAILED_KEYS);
-			reportCreator.createReportStrings(incompleteKeys,
-					props.getProperty("incomplete.keys.file") != null ? props.getProperty("incomplete.keys.file") : INCOMPLETE_KEYS);
-			reportCreator.createReportStrings(wasteKeys, 
-					props.getProperty("waste.key.files") != null ? props.getProperty("waste.key.files") : WASTE_KEYS);
-			reportCreator.createFileInfoJson(failedReadFilesList,
-					props.getProperty("failed.read.files.json") != null ? props.getProperty("failed.read.files.json") : FAILED_READ_FILES_JSON);
-			reportCreator.createFileInfoJson(uncompressedFiles, 
-					props.getProperty("uncompressed.files.json") != null ? props.getProperty("uncompressed.files.json") : UNCOMPRESSED_FILES_JSON);
-			reportCreator.createFileInfoJson(failedCompressedFiles, 
-					props.getProperty("failed.compressed.files.json") != null ? props.getProperty("failed.compressed.files.json") : FAILED_COMPRESSED_JSON);
+			reportCreator.createReportNumber(countCompressed.get(), name(props, "count.compressed_file", COUNT_COMPRESSED_FILE));
+			reportCreator.createReportStrings(failedKeys, name(props, "failed.keys.file", FAILED_KEYS));
+			reportCreator.createReportStrings(incompleteKeys, name(props, "incomplete.keys.file", INCOMPLETE_KEYS));
+			reportCreator.createReportStrings(wasteKeys, name(props, "waste.key.files", WASTE_KEYS));
+			reportCreator.createReportStrings(keyCredits, name(props, "key.credits.file", KEY_CREDITS));
 		}	
 		
 	}
 	
+	/**
+	 * Метод для получения имени отчета из properties.
+	 * @param props Properties с именами отчетов
+	 * @param property имя свойства
+	 * @param defaultName имя отчета, если свойство отсутствует
+	 * @return имя отчета
+	 */
+	private static String name(Properties props, String property, String defaultName) {
+		return props.getProperty(property) != null ? props.getProperty(property) : defaultName;
+	}
+	
 	/**
 	 * Метод для получения properties.
 	 * @return Properties
 	 */
 	public Properties props() {
+		return props("/report.properties");
+	}
+	
+	/**
+	 * Метод для получения properties из ресурса.
+	 * @param resource имя ресурса
+	 * @return Properties
+	 */
+	public Properties props(String resource) {
 		Properties props = new Properties();
 		
-		try(InputStream in = this.getClass().getResourceAsStream("/report.properties")) {
+		try(InputStream in = this.getClass().getResourceAsStream(resource)) {
 			props.load(in);			
 		} catch(IOException e) {
 			logger.error("Failed get propeties. IOException. ", e);
@@ -0,0 +1,303 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Тесты сжатия изображений внутри архивов {@link ArchiveRewriter} на локальном сервере {@link FakeTinifyServer}. Новые архивы
+ * проверяются чтением через {@link ZipFile}, {@link ZipInputStream} и {@link JarFile}.
+ * @author Alexandr Trifonov
+ *
+ */
+class ArchiveRewriterTest {
+	private final static int END_SIGNATURE = 0x06054b50;
+	private final static int CENTRAL_HEADER_SIZE = 46;
+	private final static String COMMENT = "Архив с изображениями";
+
+	@TempDir
+	Path dir;
+	@TempDir
+	Path work;
+
+	private FakeTinifyServer server;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = new FakeTinifyServer();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.close();
+	}
+
+	@Test
+	void archiveIsRewrittenWithStoredImagesAndCopiedEntries() throws IOException {
+		byte[] stored = image(1000);
+		byte[] deflated = image(2000);
+		byte[] text = "Текст, который копируется без распаковки. ".repeat(50).getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.setComment(COMMENT);
+			zip.putNextEntry(new ZipEntry("images/"));
+			zip.closeEntry();
+			zip.putNextEntry(storedEntry("images/stored.png", stored));
+			zip.write(stored);
+			zip.closeEntry();
+			// Сжатые записи ZipOutputStream записывает с дескриптором данных после содержимого.
+			zip.putNextEntry(new ZipEntry("images/deflated.png"));
+			zip.write(deflated);
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("readme.txt"));
+			zip.write(text);
+			zip.closeEntry();
+		}
+		// Центральный каталог записан в обратном порядке: записи читаются по смещению в архиве.
+		Path archive = Files.write(dir.resolve("assets.zip"), reverseCentralDirectory(bytes.toByteArray()));
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			assertEquals(List.of("readme.txt", "images/deflated.png", "images/stored.png", "images/"), names(zip));
+			assertEquals(ZipEntry.DEFLATED, zip.getEntry("readme.txt").getMethod());
+		}
+
+		Compressor compressor = new Compressor(settings());
+		compressor.compress(dir, keys("key-1"));
+
+		assertEquals(1, compressor.getCountCompressed().get());
+		assertEquals(2, server.getShrinks());
+		try (ZipFile zip = new ZipFile(archive.toFile())) {
+			assertEquals(List.of("images/", "images/stored.png", "images/deflated.png", "readme.txt"), names(zip));
+			assertEquals(COMMENT, zip.getComment());
+			assertStored(zip, "images/stored.png", Arrays.copyOf(stored, stored.length / 2));
+			assertStored(zip, "images/deflated.png", Arrays.copyOf(deflated, deflated.length / 2));
+			ZipEntry copied = zip.getEntry("readme.txt");
+			assertEquals(ZipEntry.DEFLATED, copied.getMethod());
+			assertTrue(copied.getCompressedSize() < text.length);
+			assertArrayEquals(text, read(zip, copied));
+		}
+		// Последовательное чтение проверяет локальные заголовки: размеры и CRC без дескрипторов данных.
+		try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive))) {
+			List<String> names = new ArrayList<>();
+			for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+				names.add(entry.getName());
+				if (!entry.isDirectory()) {
+					assertTrue(entry.getSize() >= 0, entry.getName());
+					assertTrue(entry.getCrc() >= 0, entry.getName());
+				}
+				zip.readAllBytes();
+			}
+			assertEquals(List.of("images/", "images/stored.png", "images/deflated.png", "readme.txt"), names);
+		}
+	}
+
+	@Test
+	void signedJarIsNotChanged() throws Exception {
+		byte[] image = image(1000);
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+		Path jar = work.resolve("assets.jar");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			out.putNextEntry(new JarEntry("images/photo.png"));
+			out.write(image);
+			out.closeEntry();
+		}
+		sign(jar);
+		Path archive = Files.copy(jar, dir.resolve("assets.jar"));
+		byte[] signed = Files.readAllBytes(archive);
+
+		Compressor compressor = new Compressor(settings());
+		compressor.compress(dir, keys("key-1"));
+
+		assertEquals(0, compressor.getCountCompressed().get());
+		assertEquals(List.of(archive.toString()), compressor.getUncompressedFiles().stream().map(FileInfo::getName).toList());
+		assertEquals(0, server.getShrinks());
+		assertArrayEquals(signed, Files.readAllBytes(archive));
+		try (JarFile verified = new JarFile(archive.toFile(), true)) {
+			JarEntry entry = verified.getJarEntry("images/photo.png");
+			assertArrayEquals(image, read(verified, entry));
+			assertNotNull(entry.getCodeSigners());
+		}
+	}
+
+	@Test
+	void zip64ArchiveIsRejectedWithoutChanges() throws IOException {
+		Path archive = dir.resolve("large.zip");
+		// Больше 65534 записей: количество записей хранится только в конце центрального каталога ZIP64.
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+			for (int i = 0; i < 0xFFFF; i++) {
+				zip.putNextEntry(storedEntry("e" + i, new byte[0]));
+				zip.closeEntry();
+			}
+		}
+		byte[] original = Files.readAllBytes(archive);
+		ArchiveRewriter rewriter = new ArchiveRewriter(Runnable::run, 4, 1024 * 1024);
+
+		assertThrows(ZipException.class, () -> rewriter.rewrite(archive, new OutputStage(dir, null, null), (name, data) -> null));
+		assertArrayEquals(original, Files.readAllBytes(archive));
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(List.of(archive), files.toList());
+		}
+	}
+
+	@Test
+	void archiveWithoutSmallerImagesIsNotChanged() throws IOException {
+		byte[] image = image(1000);
+		Path archive = dir.resolve("assets.zip");
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+			zip.putNextEntry(storedEntry("photo.png", image));
+			zip.write(image);
+			zip.closeEntry();
+		}
+		byte[] original = Files.readAllBytes(archive);
+		ArchiveRewriter rewriter = new ArchiveRewriter(Runnable::run, 4, 1024 * 1024);
+
+		ArchiveRewriter.Result result = rewriter.rewrite(archive, new OutputStage(dir, null, null), (name, data) -> data);
+
+		assertEquals(1, result.getImages());
+		assertEquals(0, result.getCompressed());
+		assertNull(result.getOutput());
+		assertArrayEquals(original, Files.readAllBytes(archive));
+	}
+
+	private static void assertStored(ZipFile zip, String name, byte[] expected) throws IOException {
+		ZipEntry entry = zip.getEntry(name);
+		CRC32 crc = new CRC32();
+		crc.update(expected);
+		assertEquals(ZipEntry.STORED, entry.getMethod(), name);
+		assertEquals(expected.length, entry.getSize(), name);
+		assertEquals(expected.length, entry.getCompressedSize(), name);
+		assertEquals(crc.getValue(), entry.getCrc(), name);
+		assertArrayEquals(expected, read(zip, entry), name);
+	}
+
+	private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+		try (InputStream in = zip.getInputStream(entry)) {
+			return in.readAllBytes();
+		}
+	}
+
+	private static List<String> names(ZipFile zip) {
+		return Collections.list(zip.entries()).stream().map(ZipEntry::getName).toList();
+	}
+
+	private static ZipEntry storedEntry(String name, byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(data.length);
+		entry.setCompressedSize(data.length);
+		entry.setCrc(crc.getValue());
+		return entry;
+	}
+
+	/**
+	 * Метод для записи центрального каталога архива в обратном порядке. Смещения локальных заголовков не меняются.
+	 */
+	private static byte[] reverseCentralDirectory(byte[] archive) {
+		ByteBuffer buffer = ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN);
+		int end = archive.length - 22;
+		while (buffer.getInt(end) != END_SIGNATURE) {
+			end--;
+		}
+		int count = Short.toUnsignedInt(buffer.getShort(end + 10));
+		int start = buffer.getInt(end + 16);
+		List<byte[]> records = new ArrayList<>();
+		int position = start;
+		for (int i = 0; i < count; i++) {
+			int length = CENTRAL_HEADER_SIZE + Short.toUnsignedInt(buffer.getShort(position + 28)) + Short.toUnsignedInt(buffer.getShort(position + 30))
+					+ Short.toUnsignedInt(buffer.getShort(position + 32));
+			records.add(Arrays.copyOfRange(archive, position, position + length));
+			position += length;
+		}
+		Collections.reverse(records);
+		byte[] reversed = archive.clone();
+		position = start;
+		for (byte[] record : records) {
+			System.arraycopy(record, 0, reversed, position, record.length);
+			position += record.length;
+		}
+		return reversed;
+	}
+
+	/**
+	 * Метод для подписи JAR архива самоподписанным ключом через keytool и jarsigner.
+	 */
+	private void sign(Path jar) throws IOException, InterruptedException {
+		Path keystore = work.resolve("keystore.p12");
+		run("keytool", "-genkeypair", "-keystore", keystore.toString(), "-storepass", "password", "-keypass", "password", "-alias", "test",
+				"-dname", "CN=test", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2");
+		run("jarsigner", "-keystore", keystore.toString(), "-storepass", "password", jar.toString(), "test");
+	}
+
+	private void run(String tool, String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + tool);
+		command.addAll(Arrays.asList(args));
+		Path log = work.resolve(tool + ".out");
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+		assertTrue(process.waitFor(60, TimeUnit.SECONDS), tool);
+		assertEquals(0, process.exitValue(), Files.readString(log));
+	}
+
+	private CompressionSettings settings() {
+		CompressionSettings settings = new CompressionSettings();
+		settings.setEndpoint(server.getEndpoint());
+		settings.setWorkerCount(2);
+		settings.setArchives(true);
+		settings.setIndexFile("");
+		settings.setJournalFile("");
+		settings.setKeyLedgerFile("");
+		settings.setMetricsFile("");
+		return settings;
+	}
+
+	private Path keys(String... keys) throws IOException {
+		return Files.write(work.resolve("keys.txt"), Arrays.asList(keys));
+	}
+
+	/**
+	 * @return изображение со случайным содержимым, которое архиватор почти не сжимает
+	 */
+	private static byte[] image(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, data, 0, 8);
+		return data;
+	}
+}
@@ -0,0 +1,154 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.tinify.AccountException;
+
+/**
+ * Тесты асинхронного клиента TinyPNG и окна одновременных запросов асинхронного сжатия на локальном сервере {@link FakeTinifyServer}.
+ * @author Alexandr Trifonov
+ *
+ */
+class AsyncTinifyClientTest {
+	@TempDir
+	Path dir;
+	@TempDir
+	Path work;
+
+	private FakeTinifyServer server;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = new FakeTinifyServer();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.close();
+	}
+
+	@Test
+	void compressesFileIntoTempFile() throws IOException {
+		Path source = image("photo.png", 1000);
+		OutputStage output = new OutputStage(dir, null, null);
+		try (AsyncTinifyClient client = new AsyncTinifyClient(server.getEndpoint(), 2, null);
+				TinifyClient keyClient = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			KeyLease lease = new KeyLease("key-1", keyClient);
+			Path temp = client.compress(lease, new FileInfo(source.toString(), 1000), source, output, null).join();
+
+			assertEquals(1000, Files.size(source));
+			CompressionResult result = output.commit(source, temp);
+			assertEquals(500, result.getSize());
+			assertEquals(500, Files.size(source));
+			assertEquals(1, keyClient.getCompressionCount());
+		}
+	}
+
+	@Test
+	void rejectedKeyFailsWithCredentialsException() throws IOException {
+		Path source = image("photo.png", 1000);
+		try (AsyncTinifyClient client = new AsyncTinifyClient(server.getEndpoint(), 2, null);
+				TinifyClient keyClient = new TinifyClient("invalid-key", server.getEndpoint(), 1)) {
+			KeyLease lease = new KeyLease("invalid-key", keyClient);
+			CompletionException e = assertThrows(CompletionException.class,
+					() -> client.compress(lease, new FileInfo(source.toString(), 1000), source, new OutputStage(dir, null, null), null).join());
+
+			assertInstanceOf(CredentialsException.class, e.getCause());
+			assertEquals(1000, Files.size(source));
+			assertEquals(0, tempFiles());
+		}
+	}
+
+	@Test
+	void exhaustedKeyFailsWithAccountException() throws IOException {
+		Path source = image("photo.png", 1000);
+		server.setKeyLimit(10);
+		server.setCount("key-1", 10);
+		try (AsyncTinifyClient client = new AsyncTinifyClient(server.getEndpoint(), 2, null);
+				TinifyClient keyClient = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			KeyLease lease = new KeyLease("key-1", keyClient);
+			CompletionException e = assertThrows(CompletionException.class,
+					() -> client.compress(lease, new FileInfo(source.toString(), 1000), source, new OutputStage(dir, null, null), null).join());
+
+			assertEquals(AccountException.class, e.getCause().getClass());
+			assertEquals(10, keyClient.getCompressionCount());
+			assertEquals(0, tempFiles());
+		}
+	}
+
+	@Test
+	void missingFileFailsWithUploadException() {
+		Path source = dir.resolve("missing.png");
+		try (AsyncTinifyClient client = new AsyncTinifyClient(server.getEndpoint(), 2, null);
+				TinifyClient keyClient = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			KeyLease lease = new KeyLease("key-1", keyClient);
+			CompletionException e = assertThrows(CompletionException.class,
+					() -> client.compress(lease, new FileInfo(source.toString(), 1000), source, new OutputStage(dir, null, null), null).join());
+
+			assertInstanceOf(UploadException.class, e.getCause());
+			assertEquals(0, server.getRequests());
+		}
+	}
+
+	@Test
+	void asyncEngineKeepsRequestsWithinWindow() throws IOException {
+		int files = 40;
+		for (int i = 0; i < files; i++) {
+			image("photo" + i + ".png", 1000 + i);
+		}
+		server.setLatencyMillis(20);
+		CompressionSettings settings = settings(ExecutionEngine.ASYNC);
+		settings.setAsyncWindow(4);
+		Compressor compressor = new Compressor(settings);
+		compressor.compress(dir, keys("key-1", "key-2"));
+
+		assertEquals(files, compressor.getCountCompressed().get());
+		assertTrue(compressor.getUncompressedFiles().isEmpty());
+		assertEquals(files, server.getShrinks());
+		assertTrue(server.getMaxInFlight() <= 4, "max in flight = " + server.getMaxInFlight());
+		assertTrue(server.getMaxInFlight() > 1, "max in flight = " + server.getMaxInFlight());
+	}
+
+	private CompressionSettings settings(ExecutionEngine engine) {
+		CompressionSettings settings = new CompressionSettings();
+		settings.setEndpoint(server.getEndpoint());
+		settings.setEngine(engine);
+		settings.setIndexFile("");
+		settings.setJournalFile("");
+		settings.setKeyLedgerFile("");
+		settings.setMetricsFile("");
+		return settings;
+	}
+
+	private Path keys(String... keys) throws IOException {
+		return Files.write(work.resolve("keys.txt"), Arrays.asList(keys));
+	}
+
+	private long tempFiles() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".tmp")).count();
+		}
+	}
+
+	private Path image(String name, int size) throws IOException {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) 7);
+		System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, data, 0, 8);
+		return Files.write(dir.resolve(name), data);
+	}
+}
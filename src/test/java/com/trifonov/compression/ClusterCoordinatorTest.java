@@ -0,0 +1,251 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Тесты аренд {@link ClusterCoordinator}: потеря аренды, которую забрал другой узел, и передача шардов остановленного узла
+ * другому узлу. Узлы второго теста запускаются отдельными процессами {@link ClusterNode} с общей директорией узлов.
+ * @author Alexandr Trifonov
+ *
+ */
+class ClusterCoordinatorTest {
+	private final static int LEASE_MILLIS = 1000;
+
+	@TempDir
+	Path dir;
+	@TempDir
+	Path work;
+
+	private FakeTinifyServer server;
+	private final List<Process> processes = new ArrayList<>();
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = new FakeTinifyServer();
+	}
+
+	@AfterEach
+	void stop() {
+		processes.forEach(Process::destroyForcibly);
+		server.close();
+	}
+
+	@Test
+	void lostShardLeaseIsNotOverwrittenAndShardIsStopped() throws Exception {
+		Path cluster = work.resolve("cluster");
+		try (ClusterCoordinator first = new ClusterCoordinator(cluster, dir, "node-a", 1, LEASE_MILLIS);
+				ClusterCoordinator second = new ClusterCoordinator(cluster, dir, "node-b", 1, LEASE_MILLIS)) {
+			List<Integer> lost = new CopyOnWriteArrayList<>();
+			first.setShardListener(lost::add);
+			assertEquals(0, first.claimShard());
+			first.start(0, 10);
+			assertEquals(-1, second.claimShard());
+
+			// Узел node-a завис дольше срока аренды, и node-b забрал аренду так же, как забирает просроченную аренду.
+			takeAway(cluster.resolve("shard-0.lease"));
+			assertEquals(0, second.claimShard());
+			await(() -> !lost.isEmpty(), LEASE_MILLIS * 2);
+
+			assertEquals(List.of(0), lost);
+			assertFalse(first.isActive(0));
+			first.processed("photo.png", true);
+			assertFalse(Files.exists(cluster.resolve("shard-0.log")));
+			// Продления обоих узлов не меняют аренду node-b.
+			Thread.sleep(LEASE_MILLIS);
+			assertEquals("node-b", owner(cluster.resolve("shard-0.lease")));
+			assertEquals(List.of(0), lost);
+		}
+	}
+
+	@Test
+	void lostKeyLeaseRetiresKey() throws Exception {
+		Path cluster = work.resolve("cluster");
+		try (ClusterCoordinator first = new ClusterCoordinator(cluster, dir, "node-a", 1, LEASE_MILLIS);
+				ClusterCoordinator second = new ClusterCoordinator(cluster, dir, "node-b", 1, LEASE_MILLIS)) {
+			List<String> lost = new CopyOnWriteArrayList<>();
+			first.setKeyListener(lost::add);
+			assertEquals(List.of("key-1", "key-2"), first.claimKeys(List.of("key-1", "key-2"), 0));
+			assertEquals(List.of(), second.claimKeys(List.of("key-1", "key-2"), 0));
+
+			Path lease = cluster.resolve("key-" + UUID.nameUUIDFromBytes("key-2".getBytes(StandardCharsets.UTF_8)) + ".lease");
+			takeAway(lease);
+			assertEquals(List.of("key-2"), second.claimKeys(List.of("key-1", "key-2"), 0));
+			await(() -> !lost.isEmpty(), LEASE_MILLIS * 2);
+
+			assertEquals(List.of("key-2"), lost);
+			assertEquals("node-b", owner(lease));
+			// Подписчик, который подписался позже, получает уже потерянные ключи.
+			List<String> late = new ArrayList<>();
+			first.setKeyListener(late::add);
+			assertEquals(List.of("key-2"), late);
+		}
+	}
+
+	@Test
+	void shardsAndLogUseNamesRelativeToRoot() throws Exception {
+		Path cluster = work.resolve("cluster");
+		Path first = Paths.get("/mnt/assets");
+		Path second = Paths.get("/data/assets");
+		try (ClusterCoordinator mnt = new ClusterCoordinator(cluster, first, "node-a", 16, LEASE_MILLIS);
+				ClusterCoordinator data = new ClusterCoordinator(cluster, second, "node-b", 16, LEASE_MILLIS)) {
+			for (int i = 0; i < 100; i++) {
+				String name = "photos/" + i + "/photo" + i + ".png";
+				assertEquals(mnt.shardOf(first.resolve(name).toString()), data.shardOf(second.resolve(name).toString()), name);
+			}
+			String name = first.resolve("photos/photo.png").toString();
+			int shard = mnt.shardOf(name);
+			while (mnt.claimShard() != shard) {
+				// Шарды берутся по очереди, пока не будет взят шард файла.
+			}
+			mnt.start(shard, 2);
+			mnt.processed(name, true);
+
+			assertEquals(Set.of("photos/photo.png"), data.processedFiles(shard));
+			assertEquals("photos/photo.png", data.relativeName(second.resolve("photos/photo.png").toString()));
+		}
+	}
+
+	@Test
+	void survivingNodeTakesOverShardsOfKilledNode() throws Exception {
+		int files = 48;
+		int shards = 4;
+		images(files);
+		server.setLatencyMillis(150);
+		Path keys = Files.write(work.resolve("keys.txt"), Arrays.asList("key-1", "key-2", "key-3", "key-4"));
+		Path cluster = work.resolve("cluster");
+
+		Process killed = node("node-a", dir, keys, cluster, shards);
+		await(() -> !shardLeases(cluster, "node-a").isEmpty() && server.getShrinks() > 0, 30_000);
+		// Второй узел видит то же дерево по другому пути, как при подключении общей директории в другую точку.
+		Path mount = Files.createSymbolicLink(work.resolve("mount"), dir).resolve(".");
+		Process survivor = node("node-b", mount, keys, cluster, shards);
+		await(() -> !shardLeases(cluster, "node-b").isEmpty(), 30_000);
+		killed.destroyForcibly().waitFor();
+		Set<String> orphaned = shardLeases(cluster, "node-a");
+
+		assertFalse(orphaned.isEmpty(), "node-a holds no shards");
+		assertTrue(survivor.waitFor(60, TimeUnit.SECONDS), log("node-b"));
+		assertEquals(0, survivor.exitValue(), log("node-b"));
+		for (int shard = 0; shard < shards; shard++) {
+			assertTrue(Files.exists(cluster.resolve("shard-" + shard + ".done")), "shard = " + shard);
+		}
+		for (String shard : orphaned) {
+			assertEquals("node-b", Files.readString(cluster.resolve(shard + ".done")), shard);
+		}
+		// Каждый файл сжат ровно один раз: повторное сжатие уменьшило бы файл еще в два раза.
+		for (int i = 0; i < files; i++) {
+			assertEquals((1000 + i) / 2, Files.size(dir.resolve("photo" + i + ".png")), "photo" + i);
+		}
+		Set<String> logged = new HashSet<>();
+		for (int shard = 0; shard < shards; shard++) {
+			Path log = cluster.resolve("shard-" + shard + ".log");
+			if (Files.exists(log)) {
+				for (String name : Files.readAllLines(log)) {
+					assertTrue(logged.add(name), "Compressed twice = " + name);
+				}
+			}
+		}
+		assertEquals(files, logged.size());
+	}
+
+	/**
+	 * Метод для переименования аренды, как это делает узел, который забирает просроченную аренду.
+	 */
+	private static void takeAway(Path lease) throws IOException {
+		Path expired = lease.resolveSibling(lease.getFileName() + ".node-b.expired");
+		Files.move(lease, expired);
+		Files.delete(expired);
+	}
+
+	private static String owner(Path lease) throws IOException {
+		return Files.readAllLines(lease).get(0);
+	}
+
+	/**
+	 * @return имена шардов, аренда которых принадлежит узлу
+	 */
+	private static Set<String> shardLeases(Path cluster, String node) {
+		Set<String> shards = new HashSet<>();
+		if (!Files.isDirectory(cluster)) {
+			return shards;
+		}
+		try (Stream<Path> files = Files.list(cluster)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				String name = file.getFileName().toString();
+				if (name.startsWith("shard-") && name.endsWith(".lease")) {
+					try {
+						if (node.equals(owner(file))) {
+							shards.add(name.substring(0, name.length() - ".lease".length()));
+						}
+					} catch (IOException | IndexOutOfBoundsException e) {
+						// Аренда освобождена или записывается.
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Директория еще создается.
+		}
+		return shards;
+	}
+
+	private Process node(String node, Path source, Path keys, Path cluster, int shards) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+				"-cp", System.getProperty("java.class.path"), ClusterNode.class.getName(),
+				server.getEndpoint(), source.toString(), keys.toString(), cluster.toString(), node, Integer.toString(shards),
+				Integer.toString(LEASE_MILLIS));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(work.resolve(node + ".out").toFile());
+		Process process = builder.start();
+		processes.add(process);
+		return process;
+	}
+
+	private String log(String node) {
+		try {
+			return Files.readString(work.resolve(node + ".out"));
+		} catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	private static void await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "Condition is not met in " + timeoutMillis + " ms");
+			Thread.sleep(20);
+		}
+	}
+
+	private void images(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[1000 + i];
+			Arrays.fill(data, (byte) 7);
+			System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, data, 0, 8);
+			Files.write(dir.resolve("photo" + i + ".png"), data);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.trifonov.compression;
+
+import java.nio.file.Paths;
+
+/**
+ * Узел кластера в отдельном процессе для {@link ClusterCoordinatorTest}: сжимает директорию через общую директорию узлов
+ * и завершается после завершения всех шардов.
+ * Аргументы: адрес сервера, директория с файлами, файл с ключами, директория узлов, имя узла, количество шардов, срок аренды в миллисекундах.
+ * @author Alexandr Trifonov
+ *
+ */
+class ClusterNode {
+	public static void main(String[] args) {
+		CompressionSettings settings = new CompressionSettings();
+		settings.setEndpoint(args[0]);
+		settings.setIndexFile("");
+		settings.setJournalFile("");
+		settings.setKeyLedgerFile("");
+		settings.setMetricsFile("");
+		settings.setWorkerCount(2);
+		settings.setClusterDir(args[3]);
+		settings.setClusterNode(args[4]);
+		settings.setClusterShards(Integer.parseInt(args[5]));
+		settings.setClusterLeaseMillis(Integer.parseInt(args[6]));
+		settings.setClusterNodeKeys(2);
+		Compressor compressor = new Compressor(settings);
+		compressor.compress(Paths.get(args[1]), Paths.get(args[2]));
+		System.out.println("Compressed = " + compressor.getCountCompressed().get() + ", uncompressed = " + compressor.getUncompressedFiles().size());
+	}
+}
@@ -0,0 +1,95 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Тесты восстановления индекса сжатых файлов {@link CompressionIndex} после аварийного завершения посреди записи.
+ * @author Alexandr Trifonov
+ *
+ */
+class CompressionIndexTest {
+	private final static int HEADER_SIZE = 8;
+	private final static int RECORD_SIZE = 32;
+
+	@TempDir
+	Path dir;
+	@TempDir
+	Path work;
+
+	@Test
+	void partialLastRecordIsTruncatedOnOpen() throws IOException {
+		int files = 5;
+		Path file = work.resolve("index.bin");
+		try (CompressionIndex index = CompressionIndex.open(file, false)) {
+			for (int i = 0; i < files; i++) {
+				index.record(image(i), i);
+			}
+		}
+		assertEquals(HEADER_SIZE + files * RECORD_SIZE, Files.size(file));
+		// Последняя запись записана наполовину.
+		truncate(file, HEADER_SIZE + (files - 1) * RECORD_SIZE + RECORD_SIZE / 2);
+
+		try (CompressionIndex index = CompressionIndex.open(file, false)) {
+			assertEquals(files - 1, index.size());
+			assertEquals(HEADER_SIZE + (files - 1) * RECORD_SIZE, Files.size(file));
+			for (int i = 0; i < files - 1; i++) {
+				assertTrue(isCompressed(index, i), "photo" + i);
+			}
+			assertFalse(isCompressed(index, files - 1));
+			index.record(image(files - 1), files - 1);
+		}
+		// Новые записи дописываются после последней полной записи.
+		assertEquals(HEADER_SIZE + files * RECORD_SIZE, Files.size(file));
+		try (CompressionIndex index = CompressionIndex.open(file, false)) {
+			assertEquals(files, index.size());
+			for (int i = 0; i < files; i++) {
+				assertTrue(isCompressed(index, i), "photo" + i);
+			}
+		}
+	}
+
+	@Test
+	void partialHeaderStartsEmptyIndex() throws IOException {
+		Path file = work.resolve("index.bin");
+		try (CompressionIndex index = CompressionIndex.open(file, false)) {
+			index.record(image(0), 0);
+		}
+		truncate(file, HEADER_SIZE / 2);
+
+		try (CompressionIndex index = CompressionIndex.open(file, false)) {
+			assertEquals(0, index.size());
+			index.record(image(0), 0);
+		}
+		try (CompressionIndex index = CompressionIndex.open(file, false)) {
+			assertEquals(1, index.size());
+			assertTrue(isCompressed(index, 0));
+		}
+	}
+
+	private boolean isCompressed(CompressionIndex index, int i) throws IOException {
+		Path path = dir.resolve("photo" + i + ".png");
+		return index.isCompressed(path, Files.readAttributes(path, BasicFileAttributes.class));
+	}
+
+	private Path image(int i) throws IOException {
+		return Files.write(dir.resolve("photo" + i + ".png"), new byte[1000 + i]);
+	}
+
+	private static void truncate(Path file, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size);
+		}
+	}
+}
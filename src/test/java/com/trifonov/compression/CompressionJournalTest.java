@@ -0,0 +1,102 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Тесты восстановления журнала сжатия {@link CompressionJournal} после аварийного завершения посреди записи.
+ * @author Alexandr Trifonov
+ *
+ */
+class CompressionJournalTest {
+	/**
+	 * Размер записи без строки: тип, число и длина строки.
+	 */
+	private final static int RECORD_OVERHEAD = 13;
+	private final static String LAST = "/photos/photo3.png";
+
+	@TempDir
+	Path work;
+
+	@Test
+	void partialLastRecordIsTruncatedOnReplay() throws IOException {
+		Path original = work.resolve("original.bin");
+		CompressionJournal journal = CompressionJournal.create(original, work.resolve("photos"), 1, 0);
+		for (int i = 0; i < 5; i++) {
+			journal.pending(new FileInfo("/photos/photo" + i + ".png", 1000 + i));
+		}
+		journal.compressed(new FileInfo("/photos/photo0.png", 1000));
+		journal.failed(new FileInfo("/photos/photo1.png", 1001));
+		journal.key("key-1", KeyStatus.EXHAUSTED);
+		journal.sync();
+		long complete = Files.size(original);
+		journal.compressed(new FileInfo(LAST, 1003));
+		journal.close();
+		long length = RECORD_OVERHEAD + LAST.length();
+		assertEquals(complete + length, Files.size(original));
+
+		// Запись обрывается после типа, внутри числа, после длины строки и внутри строки.
+		for (long cut : new long[] { 1, 5, RECORD_OVERHEAD, length - 1 }) {
+			Path file = Files.copy(original, work.resolve("journal.bin"), StandardCopyOption.REPLACE_EXISTING);
+			truncate(file, complete + cut);
+
+			CompressionJournal.State state = CompressionJournal.replay(file);
+
+			assertEquals(complete, Files.size(file), "cut = " + cut);
+			assertState(state, false);
+		}
+
+		Path file = work.resolve("journal.bin");
+		CompressionJournal.State state = CompressionJournal.replay(file);
+		journal = CompressionJournal.resume(file, state, 1, 0);
+		journal.compressed(new FileInfo(LAST, 1003));
+		journal.close();
+		assertState(CompressionJournal.replay(file), true);
+	}
+
+	@Test
+	void completeJournalIsNotTruncated() throws IOException {
+		Path file = work.resolve("journal.bin");
+		CompressionJournal journal = CompressionJournal.create(file, work.resolve("photos"), 1, 0);
+		journal.pending(new FileInfo(LAST, 1003));
+		journal.close();
+		long size = Files.size(file);
+
+		CompressionJournal.State state = CompressionJournal.replay(file);
+
+		assertEquals(size, Files.size(file));
+		assertEquals(List.of(new FileInfo(LAST, 1003)), List.copyOf(state.getPending()));
+	}
+
+	private void assertState(CompressionJournal.State state, boolean lastCompressed) {
+		assertEquals(work.resolve("photos").toString(), state.getSource());
+		assertTrue(state.isDone("/photos/photo0.png"));
+		assertTrue(state.isDone("/photos/photo1.png"));
+		assertEquals(List.of(new FileInfo("/photos/photo1.png", 1001)), state.getFailed());
+		assertEquals(Map.of("key-1", KeyStatus.EXHAUSTED), state.getKeys());
+		assertEquals(lastCompressed, state.isDone(LAST));
+		List<String> pending = state.getPending().stream().map(FileInfo::getName).toList();
+		assertEquals(lastCompressed ? List.of("/photos/photo2.png", "/photos/photo4.png")
+				: List.of("/photos/photo2.png", LAST, "/photos/photo4.png"), pending);
+		assertFalse(state.isDiscovered());
+	}
+
+	private static void truncate(Path file, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size);
+		}
+	}
+}
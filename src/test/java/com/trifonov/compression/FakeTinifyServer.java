@@ -0,0 +1,205 @@
+package com.trifonov.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP-сервер в том же процессе, который отвечает как TinyPNG API: POST /shrink возвращает адрес результата,
+ * GET по этому адресу возвращает первую половину загруженного файла. Сервер ведет счетчик сжатий каждого ключа и возвращает
+ * его в заголовке Compression-Count.
+ * Ключи, которые начинаются с invalid, отклоняются ответом 401, ключ с исчерпанным лимитом получает ответ 429.
+ * Для проверки повторов сервер может ответить ошибкой на заданное количество следующих запросов.
+ * Подписчик запросов вызывается до чтения тела запроса, например чтобы изменить файл во время загрузки.
+ * @author Alexandr Trifonov
+ *
+ */
+class FakeTinifyServer implements Closeable {
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "fake-tinify");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Map<String, byte[]> outputs = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+	private final AtomicInteger ids = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger shrinks = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	/**
+	 * Количество следующих запросов, которые получат ответ с ошибкой {@link #failureStatus}.
+	 */
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failureStatus = 503;
+	private volatile int latencyMillis;
+	private volatile int keyLimit = Integer.MAX_VALUE;
+	private volatile Consumer<HttpExchange> requestListener = exchange -> {
+	};
+
+	FakeTinifyServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * @return адрес сервера для настройки tinify.endpoint
+	 */
+	String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	void setLatencyMillis(int latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	void setKeyLimit(int keyLimit) {
+		this.keyLimit = keyLimit;
+	}
+
+	void setCount(String key, int count) {
+		counts.computeIfAbsent(key, k -> new AtomicInteger()).set(count);
+	}
+
+	int getCount(String key) {
+		AtomicInteger count = counts.get(key);
+		return count != null ? count.get() : 0;
+	}
+
+	/**
+	 * Метод для ответа ошибкой на следующие запросы.
+	 * @param count количество запросов
+	 * @param status код ответа
+	 */
+	void failNext(int count, int status) {
+		failureStatus = status;
+		failures.set(count);
+	}
+
+	void setRequestListener(Consumer<HttpExchange> requestListener) {
+		this.requestListener = requestListener;
+	}
+
+	int getRequests() {
+		return requests.get();
+	}
+
+	int getShrinks() {
+		return shrinks.get();
+	}
+
+	int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Запрос считается выполняемым до формирования ответа: клиент может начать следующий запрос, как только получит ответ,
+	 * еще до закрытия обмена на сервере.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		Response response;
+		maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+		try {
+			response = respond(exchange);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.close();
+			return;
+		} finally {
+			inFlight.decrementAndGet();
+		}
+		try {
+			if (response.compressionCount != null) {
+				exchange.getResponseHeaders().set("Compression-Count", Integer.toString(response.compressionCount));
+			}
+			exchange.sendResponseHeaders(response.status, response.body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response.body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Response respond(HttpExchange exchange) throws IOException, InterruptedException {
+		requests.incrementAndGet();
+		requestListener.accept(exchange);
+		byte[] body = exchange.getRequestBody().readAllBytes();
+		if (latencyMillis > 0) {
+			Thread.sleep(latencyMillis);
+		}
+		String key = key(exchange);
+		AtomicInteger count = counts.computeIfAbsent(key, k -> new AtomicInteger());
+		String path = exchange.getRequestURI().getPath();
+		if (path.equals("/shrink")) {
+			shrinks.incrementAndGet();
+		}
+		if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+			return new Response(failureStatus, error("InternalServerError", "Injected failure"), null);
+		} else if (key.startsWith("invalid")) {
+			return new Response(401, error("Unauthorized", "Credentials are invalid"), null);
+		} else if (path.equals("/shrink")) {
+			if (count.get() >= keyLimit) {
+				return new Response(429, error("TooManyRequests", "Your monthly limit has been exceeded"), count.get());
+			}
+			String id = Integer.toString(ids.incrementAndGet());
+			outputs.put(id, Arrays.copyOf(body, Math.max(1, body.length / 2)));
+			exchange.getResponseHeaders().set("Location", "/output/" + id);
+			return new Response(201, "{}".getBytes(StandardCharsets.UTF_8), count.incrementAndGet());
+		} else if (path.startsWith("/output/")) {
+			byte[] output = outputs.get(path.substring("/output/".length()));
+			if (output == null) {
+				return new Response(404, error("NotFound", "Unknown output"), count.get());
+			}
+			return new Response(200, output, count.get());
+		}
+		return new Response(404, error("NotFound", "Unknown path"), null);
+	}
+
+	private static String key(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization == null || !authorization.startsWith("Basic ")) {
+			return "";
+		}
+		String credentials = new String(Base64.getDecoder().decode(authorization.substring(6)), StandardCharsets.UTF_8);
+		return credentials.substring(credentials.indexOf(':') + 1);
+	}
+
+	private static byte[] error(String type, String message) {
+		return ("{\"error\":\"" + type + "\",\"message\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static class Response {
+		private final int status;
+		private final byte[] body;
+		private final Integer compressionCount;
+
+		private Response(int status, byte[] body, Integer compressionCount) {
+			this.status = status;
+			this.body = body;
+			this.compressionCount = compressionCount;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Тесты повторов после ошибок сервера: задержки {@link RetryPolicy}, задержка ключа в {@link KeyPool}, {@link CircuitBreaker}
+ * и ограничение повторов файла. Ошибки сервера имитирует {@link FakeTinifyServer}.
+ * @author Alexandr Trifonov
+ *
+ */
+class FaultInjectionTest {
+	@TempDir
+	Path dir;
+	@TempDir
+	Path work;
+
+	private FakeTinifyServer server;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = new FakeTinifyServer();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.close();
+	}
+
+	@Test
+	void retryDelayGrowsExponentiallyWithJitterUpToMaximum() {
+		RetryPolicy policy = new RetryPolicy(100, 1000);
+		for (int i = 0; i < 100; i++) {
+			assertBetween(50, 100, policy.delay(0));
+			assertBetween(100, 200, policy.delay(1));
+			assertBetween(400, 800, policy.delay(3));
+			assertBetween(500, 1000, policy.delay(10));
+			assertBetween(500, 1000, policy.delay(Integer.MAX_VALUE));
+		}
+	}
+
+	@Test
+	void keyIsPausedAfterFailure() throws InterruptedException {
+		CompressionSettings settings = settings();
+		settings.setRetryBaseMillis(200);
+		settings.setRetryMaxMillis(200);
+		try (KeyPool pool = new KeyPool(List.of("key-1"), settings)) {
+			pool.backoff(pool.lease());
+
+			long start = System.nanoTime();
+			KeyLease lease = pool.lease();
+			long waited = (System.nanoTime() - start) / 1_000_000;
+
+			assertNotNull(lease);
+			assertTrue(waited >= 90, "waited = " + waited);
+			pool.release(lease, true);
+		}
+	}
+
+	@Test
+	void breakerOpensAfterThresholdAndClosesAfterSuccessfulProbe() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(3, 100, 400);
+		assertTrue(breaker.acquire());
+		assertTrue(breaker.onFailure());
+		assertTrue(breaker.onFailure());
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.onFailure());
+		assertTrue(breaker.isOpen());
+
+		long waited = timeAcquire(breaker);
+		assertTrue(waited >= 90, "waited = " + waited);
+		// Ошибка пробного запроса не учитывается как попытка файла и удваивает паузу.
+		assertFalse(breaker.onFailure());
+		waited = timeAcquire(breaker);
+		assertTrue(waited >= 180, "waited = " + waited);
+
+		breaker.onSuccess();
+		assertFalse(breaker.isOpen());
+		assertTrue(timeAcquire(breaker) < 50);
+	}
+
+	@Test
+	void failedFilesAreRequeuedUpToRetryLimit() throws IOException {
+		int files = 5;
+		images(files);
+		server.failNext(Integer.MAX_VALUE, 503);
+		CompressionSettings settings = settings();
+		settings.setRetryAttempts(2);
+		settings.setBreakerThreshold(1000);
+		Compressor compressor = new Compressor(settings);
+		compressor.compress(dir, keys("key-1"));
+
+		assertEquals(0, compressor.getCountCompressed().get());
+		assertEquals(files, compressor.getUncompressedFiles().size());
+		// Каждый файл загружается один раз и повторяется два раза, клиент сам запросы не повторяет.
+		assertEquals(files * 3, server.getShrinks());
+		assertEquals(files * 2, compressor.getProgress().getRetries());
+	}
+
+	@Test
+	void workloadFinishesAfterOutage() throws IOException {
+		int files = 20;
+		images(files);
+		server.failNext(8, 503);
+		CompressionSettings settings = settings();
+		settings.setRetryAttempts(3);
+		settings.setBreakerThreshold(3);
+		settings.setBreakerOpenMillis(50);
+		settings.setBreakerMaxOpenMillis(100);
+		Compressor compressor = new Compressor(settings);
+		compressor.compress(dir, keys("key-1", "key-2"));
+
+		assertEquals(files, compressor.getCountCompressed().get());
+		assertTrue(compressor.getUncompressedFiles().isEmpty());
+		assertTrue(compressor.getProgress().getRetries() > 0);
+		for (int i = 0; i < files; i++) {
+			assertEquals((1000 + i) / 2, Files.size(dir.resolve("photo" + i + ".png")));
+		}
+	}
+
+	@Test
+	void fileChangedDuringUploadIsNotRetried() throws IOException {
+		int files = 10;
+		images(files);
+		Path large = dir.resolve("large.png");
+		byte[] data = new byte[32 * 1024 * 1024];
+		System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, data, 0, 8);
+		Files.write(large, data);
+		server.setRequestListener(exchange -> {
+			String length = exchange.getRequestHeaders().getFirst("Content-Length");
+			if (length != null && Long.parseLong(length) > 1024 * 1024) {
+				TinifyClientTest.truncate(large, 1000);
+			}
+		});
+		CompressionSettings settings = settings();
+		settings.setRetryAttempts(3);
+		settings.setRetryBaseMillis(30_000);
+		settings.setRetryMaxMillis(30_000);
+		settings.setBreakerThreshold(1);
+		settings.setBreakerOpenMillis(30_000);
+		settings.setBreakerMaxOpenMillis(30_000);
+		Compressor compressor = new Compressor(settings);
+		long start = System.nanoTime();
+		compressor.compress(dir, keys("key-1"));
+		long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+		// Ошибка чтения файла не задерживает ключ и не открывает выключатель, файл не повторяется.
+		assertTrue(elapsed < 20_000, "elapsed = " + elapsed);
+		assertEquals(List.of(large.toString()), compressor.getFailedReadFilesList().stream().map(FileInfo::getName).toList());
+		assertEquals(0, compressor.getProgress().getRetries());
+		assertEquals(files, compressor.getCountCompressed().get());
+		assertEquals(1000, Files.size(large));
+	}
+
+	private static long timeAcquire(CircuitBreaker breaker) throws InterruptedException {
+		long start = System.nanoTime();
+		assertTrue(breaker.acquire());
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+
+	private static void assertBetween(long min, long max, long value) {
+		assertTrue(value >= min && value <= max, "value = " + value + ", expected " + min + ".." + max);
+	}
+
+	private CompressionSettings settings() {
+		CompressionSettings settings = new CompressionSettings();
+		settings.setEndpoint(server.getEndpoint());
+		settings.setWorkerCount(4);
+		settings.setRetryBaseMillis(1);
+		settings.setRetryMaxMillis(5);
+		settings.setIndexFile("");
+		settings.setJournalFile("");
+		settings.setKeyLedgerFile("");
+		settings.setMetricsFile("");
+		return settings;
+	}
+
+	private Path keys(String... keys) throws IOException {
+		return Files.write(work.resolve("keys.txt"), Arrays.asList(keys));
+	}
+
+	private void images(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[1000 + i];
+			Arrays.fill(data, (byte) 7);
+			System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, data, 0, 8);
+			Files.write(dir.resolve("photo" + i + ".png"), data);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Тесты каталога файлов {@link FileCatalog} с индексом имен и без него.
+ * @author Alexandr Trifonov
+ *
+ */
+class FileCatalogTest {
+	private final static String DIR = File.separator + "photos" + File.separator;
+
+	@Test
+	void catalogWithoutIndexAddsEveryFile() {
+		FileCatalog catalog = new FileCatalog();
+		int first = catalog.add(DIR + "photo.png", 10);
+		int second = catalog.add(DIR + "photo.png", 20);
+
+		assertNotEquals(first, second);
+		assertEquals(2, catalog.size());
+	}
+
+	@Test
+	void indexedCatalogReusesIdOfKnownFile() {
+		FileCatalog catalog = new FileCatalog(true);
+		int id = catalog.add(DIR + "photo.png", 10);
+		// Файл изменился, пока ожидает сжатия: повторно в очередь он не попадает.
+		assertEquals(FileCatalog.NONE, catalog.add(DIR + "photo.png", 15));
+
+		catalog.setStatus(id, FileStatus.COMPRESSED);
+		assertEquals(id, catalog.add(DIR + "photo.png", 20));
+		assertEquals(1, catalog.size());
+		assertEquals(20, catalog.getSize(id));
+		assertEquals(FileStatus.PENDING, catalog.getStatus(id));
+		assertEquals(1, catalog.count(FileStatus.PENDING));
+		assertEquals(0, catalog.count(FileStatus.COMPRESSED));
+
+		catalog.setStatus(id, FileStatus.UNCOMPRESSED);
+		assertEquals(id, catalog.add(new FileInfo(DIR + "photo.png", 30), FileStatus.FAILED_READ));
+		assertEquals(FileStatus.FAILED_READ, catalog.getStatus(id));
+		assertEquals(0, catalog.count(FileStatus.UNCOMPRESSED));
+	}
+
+	@Test
+	void indexedCatalogFindsFilesAfterGrowth() {
+		FileCatalog catalog = new FileCatalog(true);
+		int files = 10_000;
+		for (int i = 0; i < files; i++) {
+			assertEquals(i, catalog.add(DIR + (i % 7) + File.separator + "photo" + i + ".png", i));
+			catalog.setStatus(i, FileStatus.COMPRESSED);
+		}
+		for (int i = 0; i < files; i++) {
+			assertEquals(i, catalog.add(DIR + (i % 7) + File.separator + "photo" + i + ".png", i + 1));
+		}
+		assertEquals(files, catalog.size());
+		assertEquals(files, catalog.count(FileStatus.PENDING));
+		assertEquals(DIR + "3" + File.separator + "photo10.png", catalog.getName(10));
+	}
+}
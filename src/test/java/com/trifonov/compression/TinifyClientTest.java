@@ -0,0 +1,171 @@
+package com.trifonov.compression;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.tinify.AccountException;
+import com.tinify.ClientException;
+import com.tinify.ServerException;
+
+/**
+ * Тесты клиента TinyPNG одного ключа на локальном сервере {@link FakeTinifyServer}.
+ * @author Alexandr Trifonov
+ *
+ */
+class TinifyClientTest {
+	@TempDir
+	Path dir;
+
+	private FakeTinifyServer server;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = new FakeTinifyServer();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.close();
+	}
+
+	@Test
+	void compressesFileAndReadsCompressionCount() throws IOException {
+		Path source = image("photo.png", 1000);
+		server.setCount("key-1", 41);
+		try (TinifyClient client = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			CompressionResult result = client.compress(new FileInfo(source.toString(), 1000), new OutputStage(dir, null, null));
+
+			assertEquals(500, result.getSize());
+			assertEquals(500, Files.size(source));
+			assertEquals(42, client.getCompressionCount());
+			assertEquals(42, server.getCount("key-1"));
+		}
+	}
+
+	@Test
+	void billsEachClientToItsOwnKey() throws IOException {
+		Path source = image("photo.png", 1000);
+		try (TinifyClient first = new TinifyClient("key-1", server.getEndpoint(), 1);
+				TinifyClient second = new TinifyClient("key-2", server.getEndpoint(), 1)) {
+			first.compress(new FileInfo(source.toString(), Files.size(source)), new OutputStage(dir, null, null));
+			first.compress(new FileInfo(source.toString(), Files.size(source)), new OutputStage(dir, null, null));
+			second.compress(new FileInfo(source.toString(), Files.size(source)), new OutputStage(dir, null, null));
+
+			assertEquals(2, first.getCompressionCount());
+			assertEquals(1, second.getCompressionCount());
+		}
+	}
+
+	@Test
+	void rejectedKeyThrowsCredentialsException() throws IOException {
+		Path source = image("photo.png", 1000);
+		byte[] original = Files.readAllBytes(source);
+		try (TinifyClient client = new TinifyClient("invalid-key", server.getEndpoint(), 1)) {
+			assertThrows(CredentialsException.class, () -> client.compress(new FileInfo(source.toString(), 1000), new OutputStage(dir, null, null)));
+
+			assertArrayEquals(original, Files.readAllBytes(source));
+		}
+	}
+
+	@Test
+	void exhaustedKeyThrowsAccountException() throws IOException {
+		Path source = image("photo.png", 1000);
+		server.setKeyLimit(500);
+		server.setCount("key-1", 500);
+		try (TinifyClient client = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			AccountException e = assertThrows(AccountException.class,
+					() -> client.compress(new FileInfo(source.toString(), 1000), new OutputStage(dir, null, null)));
+
+			assertEquals(AccountException.class, e.getClass());
+			assertEquals(500, client.getCompressionCount());
+		}
+	}
+
+	@Test
+	void fileChangedDuringUploadThrowsUploadException() throws IOException {
+		Path source = image("photo.png", 32 * 1024 * 1024);
+		server.setRequestListener(exchange -> truncate(source, 1000));
+		try (TinifyClient client = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			// Ошибка чтения файла не является ошибкой соединения.
+			assertThrows(UploadException.class, () -> client.compress(new FileInfo(source.toString(), 32 * 1024 * 1024), new OutputStage(dir, null, null)));
+
+			assertEquals(1000, Files.size(source));
+		}
+	}
+
+	@Test
+	void missingFileThrowsUploadException() {
+		Path source = dir.resolve("missing.png");
+		try (TinifyClient client = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			assertThrows(UploadException.class, () -> client.compress(new FileInfo(source.toString(), 1000), new OutputStage(dir, null, null)));
+			assertEquals(0, server.getRequests());
+		}
+	}
+
+	@Test
+	void uploadUsesCurrentFileSize() throws IOException {
+		Path source = image("photo.png", 2000);
+		try (TinifyClient client = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			// Размер из обхода директории устарел: файл загружается целиком.
+			CompressionResult result = client.compress(new FileInfo(source.toString(), 1000), new OutputStage(dir, null, null));
+
+			assertEquals(1000, result.getSize());
+		}
+	}
+
+	@Test
+	void parsesCompressionCountHeader() {
+		try (TinifyClient client = new TinifyClient("key-1", server.getEndpoint(), 1)) {
+			assertEquals(-1, client.getCompressionCount());
+			client.updateCompressionCount(" 17 ");
+			assertEquals(17, client.getCompressionCount());
+			client.updateCompressionCount("not a number");
+			assertEquals(17, client.getCompressionCount());
+			client.updateCompressionCount(null);
+			assertEquals(17, client.getCompressionCount());
+		}
+	}
+
+	@Test
+	void mapsErrorResponsesToTinifyExceptions() {
+		byte[] body = "{\"error\":\"BadSignature\",\"message\":\"Does not appear to be a PNG or JPEG file\"}".getBytes();
+
+		com.tinify.Exception client = TinifyClient.error(415, body);
+		assertInstanceOf(ClientException.class, client);
+		assertTrue(client.getMessage().startsWith("Does not appear to be a PNG or JPEG file"));
+		assertInstanceOf(CredentialsException.class, TinifyClient.error(401, body));
+		assertInstanceOf(AccountException.class, TinifyClient.error(429, body));
+		assertInstanceOf(ServerException.class, TinifyClient.error(503, "not json".getBytes()));
+	}
+
+	static void truncate(Path file, long size) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Path image(String name, int size) throws IOException {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) 7);
+		System.arraycopy(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' }, 0, data, 0, 8);
+		return Files.write(dir.resolve(name), data);
+	}
+}